@@ -0,0 +1,51 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Input data shared by the benchmarks.
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * A typical sequence of server responses: 90% public messages, 8% private messages, and a few
+     * user lists and errors. Every line is terminated with '\n'.
+     *
+     * @param lines Number of lines
+     * @return The responses
+     */
+    static String serverResponses(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            int kind = i % 50;
+            if (kind < 45) {
+                sb.append("msg user").append(i % 37).append(" Hello everyone, this is message number ")
+                        .append(i).append('\n');
+            } else if (kind < 49) {
+                sb.append("privmsg user").append(i % 37).append(" Just between us: ").append(i).append('\n');
+            } else if (i % 100 == 49) {
+                sb.append("users");
+                for (int u = 0; u < 37; u++) {
+                    sb.append(" user").append(u);
+                }
+                sb.append('\n');
+            } else {
+                sb.append("msgerr incorrect recipient nobody\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param size Length of the text
+     * @return A message text of the given length
+     */
+    static String text(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("lorem ipsum ");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package no.ntnu.datakomm.chat;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A listener which consumes every event, so that the JIT can't remove the work which produced it.
+ */
+class BlackholeListener implements ChatListener {
+    private final Blackhole blackhole;
+
+    BlackholeListener(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onDisconnect() {
+        blackhole.consume(this);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        blackhole.consume(success);
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        blackhole.consume(message);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        blackhole.consume(errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        blackhole.consume(usernames);
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        blackhole.consume(commands);
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        blackhole.consume(errMsg);
+    }
+}
@@ -0,0 +1,76 @@
+package no.ntnu.datakomm.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receiving path of the client: the bytes read from the socket are split into lines, parsed and
+ * dispatched to the listeners, the same way as the listening loop (parseIncomingCommands) does it.
+ * The input is a typical mix of server responses, mostly public and private messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundBenchmark {
+    private static final int LINES = 1000;
+
+    // Number of bytes returned by one read from the socket
+    @Param({"512", "8192"})
+    public int readSize;
+
+    private byte[] input;
+    private TCPClient client;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        input = BenchmarkData.serverResponses(LINES).getBytes(StandardCharsets.UTF_8);
+        client = new TCPClient();
+        client.addListener(new BlackholeListener(blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseAndDispatch() throws IOException {
+        LineFramer framer = new LineFramer(false);
+        ByteArrayInputStream in = new ChunkedInputStream(input, readSize);
+        while (framer.readFrom(in) > 0) {
+            client.handleReceivedData(framer);
+        }
+    }
+
+    /**
+     * Returns at most the given number of bytes per read, like a socket.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
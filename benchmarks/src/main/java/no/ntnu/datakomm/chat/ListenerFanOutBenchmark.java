@@ -0,0 +1,53 @@
+package no.ntnu.datakomm.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery of one received chat message to 1, 10 or 100 listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerFanOutBenchmark {
+    @Param({"1", "10", "100"})
+    public int listeners;
+
+    private byte[] line;
+    private TCPClient client;
+    private LineFramer framer;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        line = "msg alice Hello everyone, how is it going?\n".getBytes(StandardCharsets.UTF_8);
+        client = new TCPClient();
+        for (int i = 0; i < listeners; i++) {
+            client.addListener(new BlackholeListener(blackhole));
+        }
+        framer = new LineFramer(false);
+    }
+
+    @Benchmark
+    public void dispatchMessage() throws IOException {
+        framer.readFrom(new ByteArrayInputStream(line));
+        client.handleReceivedData(framer);
+    }
+}
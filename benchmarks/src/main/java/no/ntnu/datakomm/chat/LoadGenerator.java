@@ -0,0 +1,274 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.ReferenceChatServer;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator: opens many chat sessions (TCPClient instances) to one server and makes
+ * them exchange messages, to find out how many sessions one machine can drive and where it breaks.
+ * Without --host, it starts the reference chat server in the same process, so no network is needed.
+ *
+ * Usage (all options are optional):
+ *
+ *     java -cp target/benchmarks.jar no.ntnu.datakomm.chat.LoadGenerator --sessions=500
+ *         --loginRate=100 --messageRate=200 --privateRatio=0.2 --payload=64 --duration=30
+ *         --transport=nio --host=localhost --port=1300
+ *
+ * Every message carries the time it was sent, so the receivers measure the delivery latency. The
+ * progress is printed every second, and a summary at the end: messages/sec, delivery and connect
+ * latency percentiles, GC and thread statistics.
+ */
+public class LoadGenerator {
+    private static final String MARKER = "lg ";
+
+    private final int sessions;
+    private final double loginRate;
+    private final double messageRate;
+    private final double privateRatio;
+    private final int payload;
+    private final int durationSeconds;
+    private final boolean nio;
+    private final String host;
+    private final int port;
+
+    private final List<Session> connected = new CopyOnWriteArrayList<>();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    /**
+     * One simulated user.
+     */
+    private class Session extends EmptyChatListener {
+        final String username;
+        final TCPClient client;
+
+        Session(String username) {
+            this.username = username;
+            this.client = nio ? new TCPClient(NioEventLoop.shared()) : new TCPClient();
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            String text = message.getText();
+            if (text.startsWith(MARKER)) {
+                int end = text.indexOf(' ', MARKER.length());
+                long sentAt = Long.parseLong(text.substring(MARKER.length(), end < 0 ? text.length() : end));
+                deliveryLatency.record(System.nanoTime() - sentAt);
+                delivered.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onDisconnect() {
+            disconnects.incrementAndGet();
+            connected.remove(this);
+        }
+    }
+
+    private LoadGenerator(Map<String, String> options) {
+        sessions = Integer.parseInt(options.getOrDefault("sessions", "100"));
+        loginRate = Double.parseDouble(options.getOrDefault("loginRate", "50"));
+        messageRate = Double.parseDouble(options.getOrDefault("messageRate", "100"));
+        privateRatio = Double.parseDouble(options.getOrDefault("privateRatio", "0.2"));
+        payload = Integer.parseInt(options.getOrDefault("payload", "64"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        nio = options.getOrDefault("transport", "nio").equals("nio");
+        host = options.get("host");
+        port = Integer.parseInt(options.getOrDefault("port", "1300"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.out.println("Unknown argument: " + arg + ", expected --name=value");
+                return;
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        ReferenceChatServer server = null;
+        String targetHost = host;
+        int targetPort = port;
+        if (targetHost == null) {
+            server = ReferenceChatServer.start();
+            targetHost = server.getHost();
+            targetPort = server.getPort();
+        }
+        System.out.println("Load: " + sessions + " sessions (" + (nio ? "nio" : "blocking") + "), "
+                + loginRate + " logins/s, " + messageRate + " messages/s, " + (int) (privateRatio * 100)
+                + "% private, " + payload + " bytes payload, " + durationSeconds + " s, server "
+                + targetHost + ":" + targetPort);
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, task -> {
+            Thread t = new Thread(task, "load-generator");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+
+        // Ramp up: one login every 1/loginRate seconds, run on the client executor
+        String serverHost = targetHost;
+        int serverPort = targetPort;
+        long loginInterval = (long) (TimeUnit.SECONDS.toNanos(1) / loginRate);
+        for (int i = 0; i < sessions; i++) {
+            String username = "load" + i;
+            scheduler.schedule(() -> ChatExecutor.getDefault().execute(() -> openSession(username, serverHost, serverPort)),
+                    i * loginInterval, TimeUnit.NANOSECONDS);
+        }
+
+        // Messages: spread evenly over 10 ms ticks
+        String padding = BenchmarkData.text(payload);
+        double perTick = messageRate / 100;
+        double[] due = {0};
+        scheduler.scheduleAtFixedRate(() -> {
+            due[0] += perTick;
+            while (due[0] >= 1) {
+                due[0]--;
+                sendOne(padding);
+            }
+        }, 10, 10, TimeUnit.MILLISECONDS);
+
+        long lastSent = 0;
+        long lastDelivered = 0;
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1000000);
+            long s = sent.get();
+            long d = delivered.get();
+            System.out.printf("%3d s: %d sessions, sent %d/s, delivered %d/s, latency so far p50 %.2f ms, p99 %.2f ms%n",
+                    second, connected.size(), s - lastSent, d - lastDelivered,
+                    deliveryLatency.getValueAtPercentile(50) / 1e6, deliveryLatency.getValueAtPercentile(99) / 1e6);
+            lastSent = s;
+            lastDelivered = d;
+        }
+        scheduler.shutdownNow();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (Session session : connected) {
+            session.client.disconnect();
+        }
+        if (server != null) {
+            server.close();
+        }
+        report(seconds);
+    }
+
+    private void openSession(String username, String host, int port) {
+        Session session = new Session(username);
+        long started = System.nanoTime();
+        try {
+            if (!session.client.connect(host, port)) {
+                connectFailures.incrementAndGet();
+                return;
+            }
+            session.client.addListener(session);
+            session.client.startListenThread();
+            if (!session.client.login(username).get(30, TimeUnit.SECONDS)) {
+                connectFailures.incrementAndGet();
+                session.client.disconnect();
+                return;
+            }
+        } catch (Exception e) {
+            connectFailures.incrementAndGet();
+            session.client.disconnect();
+            return;
+        }
+        connectLatency.record(System.nanoTime() - started);
+        connected.add(session);
+    }
+
+    private void sendOne(String padding) {
+        int count = connected.size();
+        if (count == 0) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Session from;
+        try {
+            from = connected.get(random.nextInt(count));
+        } catch (IndexOutOfBoundsException e) {
+            // A session left meanwhile
+            return;
+        }
+        String text = MARKER + System.nanoTime() + " " + padding;
+        boolean ok;
+        if (count > 1 && random.nextDouble() < privateRatio) {
+            Session to = connected.get(random.nextInt(connected.size()));
+            if (to == from) {
+                return;
+            }
+            ok = from.client.sendPrivateMessage(to.username, text);
+        } else {
+            ok = from.client.sendPublicMessage(text);
+        }
+        if (ok) {
+            sent.incrementAndGet();
+        }
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.println("Sessions connected:   " + connectLatency.getCount() + " of " + sessions
+                + ", " + connectFailures.get() + " failed, " + disconnects.get() + " disconnected");
+        System.out.printf("Messages sent:        %d (%.1f/s)%n", sent.get(), sent.get() / seconds);
+        System.out.printf("Messages delivered:   %d (%.1f/s)%n", delivered.get(), delivered.get() / seconds);
+        System.out.println("Delivery latency:     " + summary(deliveryLatency));
+        System.out.println("Connect+login:        " + summary(connectLatency));
+
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("GC:                   %d collections, %d ms (%.2f%% of the run)%n",
+                gcCount, gcMillis, gcMillis / (seconds * 10));
+        System.out.println("Threads:              " + threads.getThreadCount() + " live, "
+                + threads.getPeakThreadCount() + " peak");
+        System.out.println("Heap used:            " + memory.getHeapMemoryUsage().getUsed() / (1024 * 1024) + " MB");
+        ChatExecutor executor = ChatExecutor.getDefault();
+        System.out.println("Client executor:      " + (executor.isVirtual() ? "virtual" : "platform")
+                + " threads, peak " + executor.getPeakActiveCount() + " active tasks");
+    }
+
+    /**
+     * @return The percentiles and the maximum of the latencies, in milliseconds
+     */
+    private static String summary(LatencyHistogram latency) {
+        if (latency.getCount() == 0) {
+            return "no samples";
+        }
+        List<String> parts = new ArrayList<>();
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            parts.add(String.format("p%s %.2f ms", p == 99.9 ? "99.9" : String.valueOf((int) p),
+                    latency.getValueAtPercentile(p) / 1e6));
+        }
+        parts.add(String.format("max %.2f ms", latency.getMax() / 1e6));
+        return String.join(", ", parts) + " (" + latency.getCount() + " samples)";
+    }
+}
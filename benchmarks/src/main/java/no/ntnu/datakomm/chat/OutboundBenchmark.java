@@ -0,0 +1,69 @@
+package no.ntnu.datakomm.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sending path of the client: commands are encoded and written to the socket, one by one or
+ * in batches. The socket is replaced by a sink which only consumes the buffers, so the numbers show
+ * the cost of the client itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboundBenchmark {
+    private static final int BATCH = 16;
+
+    // Length of the message text
+    @Param({"32", "1024"})
+    public int size;
+
+    private String command;
+    private CommandBatcher immediate;
+    private CommandBatcher batched;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        command = "msg " + BenchmarkData.text(size);
+        CommandBatcher.Sink sink = (batch, count) -> {
+            for (int i = 0; i < count; i++) {
+                blackhole.consume(batch[i].remaining());
+            }
+        };
+        immediate = new CommandBatcher(sink);
+        batched = new CommandBatcher(sink);
+        // A long window: the batch is written by the explicit flush only
+        batched.configure(TimeUnit.SECONDS.toMicros(60), 0);
+    }
+
+    @Benchmark
+    public void sendAndFlush() throws IOException {
+        immediate.send(command, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendBatched() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            batched.send(command, false);
+        }
+        batched.flush();
+    }
+}
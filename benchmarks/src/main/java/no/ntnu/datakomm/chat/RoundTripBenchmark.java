@@ -0,0 +1,89 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.ReferenceChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end round trips over the loopback interface, against the reference chat server running
+ * in the same process: a request and its reply, and a private message from one client to another.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    @Param({"blocking", "nio"})
+    public String transport;
+
+    private ReferenceChatServer server;
+    private TCPClient sender;
+    private TCPClient receiver;
+    // Completed by the receiver when the private message arrives
+    private volatile CompletableFuture<TextMessage> delivery;
+
+    @Setup
+    public void setup() throws Exception {
+        server = ReferenceChatServer.start();
+        sender = createClient("benchSender");
+        receiver = createClient("benchReceiver");
+        receiver.addListener(new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                CompletableFuture<TextMessage> waiting = delivery;
+                if (waiting != null) {
+                    waiting.complete(message);
+                }
+            }
+        });
+    }
+
+    private TCPClient createClient(String username) throws Exception {
+        TCPClient client = transport.equals("nio") ? new TCPClient(NioEventLoop.shared()) : new TCPClient();
+        if (!client.connect(server.getHost(), server.getPort())) {
+            throw new IOException(client.getLastError());
+        }
+        client.startListenThread();
+        if (!client.login(username).get(5, TimeUnit.SECONDS)) {
+            throw new IOException("Login failed: " + username);
+        }
+        return client;
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.disconnect();
+        receiver.disconnect();
+        server.close();
+    }
+
+    @Benchmark
+    public String[] requestReply() throws Exception {
+        return sender.fetchUsers().get(5, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public TextMessage privateMessage() throws Exception {
+        CompletableFuture<TextMessage> waiting = new CompletableFuture<>();
+        delivery = waiting;
+        sender.sendPrivateMessage("benchReceiver", "ping");
+        return waiting.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,60 @@
+package no.ntnu.datakomm.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creation, equals() and hashCode() of text messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextMessageBenchmark {
+    private String sender;
+    private String text;
+    private TextMessage message;
+    private TextMessage sameMessage;
+    private TextMessage otherMessage;
+
+    @Setup
+    public void setup() {
+        sender = "alice";
+        text = BenchmarkData.text(80);
+        message = new TextMessage(sender, false, text);
+        sameMessage = new TextMessage(new String(sender), false, new String(text));
+        otherMessage = new TextMessage(sender, true, text);
+    }
+
+    @Benchmark
+    public TextMessage create() {
+        return new TextMessage(sender, false, text);
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return message.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSame() {
+        return message.equals(sameMessage);
+    }
+
+    @Benchmark
+    public boolean equalsOther() {
+        return message.equals(otherMessage);
+    }
+}
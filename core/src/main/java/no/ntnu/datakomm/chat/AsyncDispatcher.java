@@ -0,0 +1,386 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.System.Logger.Level;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An optional dispatch stage between the socket reader and the listeners of a TCPClient. The
+ * reader (the main producer) publishes the events into a bounded ring buffer and goes back to the
+ * socket at once. Every listener has its own consumer thread which follows the ring buffer at its
+ * own pace, so a slow listener delays only itself.
+ *
+ * When the slowest listener falls a whole ring behind, the {@link OverflowPolicy} decides what
+ * happens: the reader waits, the oldest events are overwritten, or the new event is dropped. The
+ * {@link WaitStrategy} decides how idle consumers (and a blocked reader) wait.
+ *
+ * Enable it with {@link TCPClient#enableAsyncDispatch(int, WaitStrategy, OverflowPolicy)}.
+ */
+public class AsyncDispatcher {
+    private static final System.Logger LOGGER = System.getLogger(AsyncDispatcher.class.getName());
+
+    /**
+     * How the consumer threads wait for new events, and how the reader waits for free space.
+     */
+    public enum WaitStrategy {
+        /** Spin on the CPU. Lowest latency, burns one core per consumer. */
+        BUSY_SPIN,
+        /** Spin for a while, then yield the CPU to other threads. */
+        YIELDING,
+        /** Spin, yield, then sleep for short periods. Low CPU use when idle. */
+        SLEEPING,
+        /** Sleep on a lock until signaled. Lowest CPU use, highest latency. */
+        BLOCKING
+    }
+
+    /**
+     * What to do when the ring buffer is full (the slowest listener is a whole ring behind).
+     */
+    public enum OverflowPolicy {
+        /** The reader waits until the slowest listener makes room. Nothing is lost. */
+        BLOCK,
+        /** The new event is overwritten over the oldest one; listeners lagging behind skip events. */
+        DROP_OLDEST,
+        /** The new event is dropped, the listeners get it not at all. */
+        DROP_NEWEST
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long BLOCK_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<ChatEvent> slots;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+
+    // Sequence of the last published event. Written under publishLock only.
+    private final AtomicLong published = new AtomicLong(0);
+    // Serializes the producers: the socket reader, and rarely another thread (the end of a reconnect)
+    private final Object publishLock = new Object();
+    private final AtomicLong droppedNewest = new AtomicLong(0);
+    // The consumers, snapshot-on-write like the ListenerRegistry
+    private final AtomicReference<Consumer[]> consumers = new AtomicReference<>(new Consumer[0]);
+    private volatile boolean running = true;
+
+    // Used with the BLOCKING wait strategy only
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * @param capacity       Size of the ring buffer, rounded up to a power of two
+     * @param waitStrategy   How the threads wait
+     * @param overflowPolicy What happens when the ring buffer is full
+     */
+    AsyncDispatcher(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Start delivering events to a listener, on its own consumer thread. The listener gets the
+     * events published from now on.
+     *
+     * @param listener The listener
+     */
+    synchronized void addConsumer(ChatListener listener) {
+        if (!running) {
+            return;
+        }
+        Consumer consumer = new Consumer(listener, published.get());
+        Consumer[] current = consumers.get();
+        Consumer[] updated = new Consumer[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = consumer;
+        consumers.set(updated);
+        consumer.start();
+    }
+
+    /**
+     * Stop delivering events to a listener. Its consumer thread stops after the current event.
+     *
+     * @param listener The listener
+     */
+    synchronized void removeConsumer(ChatListener listener) {
+        Consumer[] current = consumers.get();
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener.equals(listener)) {
+                Consumer[] updated = new Consumer[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                consumers.set(updated);
+                current[i].active = false;
+                signal();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publish an event to all the consumers. Usually called by the socket reader only, but any thread
+     * may call it: the producers take turns, so the lock is almost never contended.
+     *
+     * @param event The event
+     */
+    void publish(ChatEvent event) {
+        synchronized (publishLock) {
+            long next = published.get() + 1;
+            if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+                int attempt = 0;
+                while (running && next - capacity > minimumConsumerSequence()) {
+                    if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                        droppedNewest.incrementAndGet();
+                        return;
+                    }
+                    idle(attempt++);
+                }
+            }
+            event.sequence = next;
+            slots.set((int) (next & mask), event);
+            published.set(next);
+        }
+        signal();
+    }
+
+    private long minimumConsumerSequence() {
+        long min = Long.MAX_VALUE;
+        for (Consumer c : consumers.get()) {
+            min = Math.min(min, c.sequence.get());
+        }
+        return min;
+    }
+
+    /**
+     * Wait a little, according to the wait strategy.
+     *
+     * @param attempt How many times the caller has waited for the same condition already
+     */
+    private void idle(int attempt) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELDING:
+                if (attempt < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                break;
+            case SLEEPING:
+                if (attempt < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else if (attempt < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                }
+                break;
+            case BLOCKING:
+                lock.lock();
+                try {
+                    // The timeout covers a signal which was sent just before we started waiting
+                    changed.awaitNanos(BLOCK_TIMEOUT_NANOS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Wake up the waiting threads. Only the BLOCKING strategy sleeps on the lock.
+     */
+    private void signal() {
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stop all the consumer threads. Events which are not delivered yet are discarded.
+     */
+    synchronized void shutdown() {
+        running = false;
+        for (Consumer c : consumers.getAndSet(new Consumer[0])) {
+            c.active = false;
+        }
+        signal();
+    }
+
+    private Consumer findConsumer(ChatListener listener) {
+        for (Consumer c : consumers.get()) {
+            if (c.listener.equals(listener)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Size of the ring buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The wait strategy in use
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @return The overflow policy in use
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return Total number of events published into the ring buffer
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return Number of events dropped because the ring buffer was full (DROP_NEWEST policy)
+     */
+    public long getDroppedNewestCount() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * @param listener A registered listener
+     * @return How many published events the listener has not processed yet, 0 for an unknown
+     * listener
+     */
+    public long getLag(ChatListener listener) {
+        Consumer c = findConsumer(listener);
+        return c != null ? Math.max(0, published.get() - c.sequence.get()) : 0;
+    }
+
+    /**
+     * @param listener A registered listener
+     * @return The highest lag of the listener seen so far, in events
+     */
+    public long getMaxLag(ChatListener listener) {
+        Consumer c = findConsumer(listener);
+        return c != null ? c.maxLag : 0;
+    }
+
+    /**
+     * @param listener A registered listener
+     * @return How many events the listener has processed
+     */
+    public long getDeliveredCount(ChatListener listener) {
+        Consumer c = findConsumer(listener);
+        return c != null ? c.delivered : 0;
+    }
+
+    /**
+     * @param listener A registered listener
+     * @return How many events the listener missed because they were overwritten (DROP_OLDEST policy)
+     */
+    public long getSkippedCount(ChatListener listener) {
+        Consumer c = findConsumer(listener);
+        return c != null ? c.skipped : 0;
+    }
+
+    /**
+     * Delivers the events to one listener, on its own thread.
+     */
+    private final class Consumer implements Runnable {
+        private final ChatListener listener;
+        // Sequence of the last event processed by this consumer
+        private final AtomicLong sequence;
+        private volatile boolean active = true;
+        // Statistics, written by the consumer thread only
+        private volatile long delivered = 0;
+        private volatile long skipped = 0;
+        private volatile long maxLag = 0;
+
+        Consumer(ChatListener listener, long startSequence) {
+            this.listener = listener;
+            this.sequence = new AtomicLong(startSequence);
+        }
+
+        void start() {
+            // A dedicated platform thread: with the spinning wait strategies a virtual thread
+            // would occupy a carrier thread anyway
+            Thread t = new Thread(this, "chat-dispatch-" + listener.getClass().getSimpleName());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            int attempt = 0;
+            while (active && running) {
+                long available = published.get();
+                if (available < next) {
+                    idle(attempt++);
+                    continue;
+                }
+                attempt = 0;
+                maxLag = Math.max(maxLag, available - next + 1);
+                while (next <= available && active) {
+                    ChatEvent event = slots.get((int) (next & mask));
+                    if (event.sequence != next) {
+                        // Overwritten by the producer (DROP_OLDEST): jump to the oldest event still there
+                        long oldest = published.get() - capacity + 1;
+                        skipped += oldest - next;
+                        next = oldest;
+                        sequence.set(next - 1);
+                        continue;
+                    }
+                    FlightEvents.ListenerCall call = FlightEvents.beginListenerCall();
+                    try {
+                        event.deliverTo(listener);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Listener " + listener.getClass().getName()
+                                + " failed", e);
+                    }
+                    if (call != null && call.shouldCommit()) {
+                        call.listenerClass = listener.getClass();
+                        call.callback = event.getType().getCallback();
+                        call.commit();
+                    }
+                    delivered++;
+                    sequence.set(next);
+                    next++;
+                }
+                signal();
+            }
+        }
+    }
+}
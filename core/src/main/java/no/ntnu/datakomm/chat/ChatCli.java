@@ -0,0 +1,195 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Command-line chat client, without JavaFX: for bots, monitoring and servers without a display.
+ *
+ * Usage: java -jar ChatClient-core.jar host port [username]
+ *
+ * Every line typed is sent as a public message, except the commands:
+ * /privmsg user text, /login username, /users, /help, /quit
+ *
+ * The messages, user lists and errors from the server are printed as they arrive. The startup
+ * report of {@link StartupTimer} is printed when the client is connected (and logged in, when a
+ * username is given).
+ */
+public class ChatCli implements ChatListener {
+    // How long to wait for the answer to the login
+    private static final long LOGIN_TIMEOUT_SECONDS = 10;
+
+    private final TCPClient tcpClient;
+    private volatile boolean quitting = false;
+
+    public ChatCli(TCPClient tcpClient) {
+        this.tcpClient = tcpClient;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: ChatCli host port [username]");
+            System.exit(2);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid port: " + args[1]);
+            System.exit(2);
+            return;
+        }
+        TCPClient tcpClient = new TCPClient();
+        tcpClient.setAutoReconnect(250, 10000, TimeUnit.MILLISECONDS, 100);
+        ChatCli cli = new ChatCli(tcpClient);
+        long start = System.nanoTime();
+        if (!tcpClient.connect(args[0], port)) {
+            System.out.println("Could not connect: " + tcpClient.getLastError());
+            System.exit(1);
+        }
+        StartupTimer.phase("connect", System.nanoTime() - start);
+        tcpClient.addListener(cli);
+        tcpClient.startListenThread();
+        if (args.length == 3) {
+            start = System.nanoTime();
+            if (!cli.login(args[2])) {
+                System.exit(1);
+            }
+            StartupTimer.phase("login", System.nanoTime() - start);
+        }
+        StartupTimer.firstContent();
+        cli.run(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Log in and wait for the answer of the server.
+     *
+     * @param username The username to log in with
+     * @return True when logged in
+     */
+    private boolean login(String username) {
+        try {
+            // The result is printed by onLoginResult()
+            return tcpClient.login(username).get(LOGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("Login failed: " + e);
+        }
+        return false;
+    }
+
+    /**
+     * Send the lines of the input until /quit or the end of the input, then disconnect.
+     *
+     * @param input The lines typed by the user
+     * @throws IOException When the input can't be read
+     */
+    public void run(BufferedReader input) throws IOException {
+        String line;
+        while ((line = input.readLine()) != null) {
+            if (!handleLine(line)) {
+                break;
+            }
+        }
+        quitting = true;
+        tcpClient.disconnect();
+    }
+
+    /**
+     * @param line A line typed by the user
+     * @return False when the user wants to quit
+     */
+    private boolean handleLine(String line) {
+        if (line.isEmpty()) {
+            return true;
+        }
+        String[] parts = line.split(" ", 3);
+        switch (parts[0]) {
+            case "/quit":
+                return false;
+            case "/users":
+                tcpClient.refreshUserList();
+                break;
+            case "/help":
+                tcpClient.askSupportedCommands();
+                break;
+            case "/login":
+                if (parts.length == 2) {
+                    tcpClient.tryLogin(parts[1]);
+                } else {
+                    System.out.println("Usage: /login username");
+                }
+                break;
+            case "/privmsg":
+                if (parts.length == 3) {
+                    tcpClient.sendPrivateMessage(parts[1], parts[2]);
+                } else {
+                    System.out.println("Usage: /privmsg user text");
+                }
+                break;
+            default:
+                tcpClient.sendPublicMessage(line);
+        }
+        return true;
+    }
+
+    @Override
+    public void onDisconnect() {
+        if (quitting) {
+            return;
+        }
+        if (tcpClient.isReconnecting()) {
+            System.out.println("Connection to the server lost, reconnecting...");
+        } else {
+            System.out.println("Connection to the server lost");
+            System.exit(1);
+        }
+    }
+
+    @Override
+    public void onReconnected() {
+        System.out.println("Reconnected to the server");
+    }
+
+    @Override
+    public void onReconnectFailed(String errMsg) {
+        System.out.println("Could not log in again after reconnecting: " + errMsg);
+        System.exit(1);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        System.out.println(success ? "Logged in" : "Login failed: " + errMsg);
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        System.out.println(message.getSender() + (message.isPrivate() ? " (private): " : ": ") + message.getText());
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        System.out.println("Message error: " + errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        System.out.println("Users: " + String.join(", ", usernames));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        System.out.println("Supported commands: " + String.join(", ", commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        System.out.println("Command error: " + errMsg);
+    }
+}
@@ -0,0 +1,142 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+
+/**
+ * One event received from the server, stored in the ring buffer of the {@link AsyncDispatcher}
+ * until every listener has got it. Immutable, except for the sequence number which is assigned by
+ * the ring buffer when the event is published.
+ */
+final class ChatEvent {
+
+    enum Type {
+        LOGIN_RESULT("onLoginResult"), DISCONNECT("onDisconnect"), USER_LIST("onUserList"),
+        USERS_CHANGED("onUsersChanged"), MESSAGES("onMessagesReceived"), MESSAGE_ERROR("onMessageError"),
+        SUPPORTED("onSupportedCommands"), COMMAND_ERROR("onCommandError"), RECONNECTED("onReconnected"),
+        RECONNECT_FAILED("onReconnectFailed");
+
+        private final String callback;
+
+        Type(String callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * @return Name of the ChatListener method which handles this type of events
+         */
+        String getCallback() {
+            return callback;
+        }
+    }
+
+    private final Type type;
+    private final boolean success;
+    private final String text;
+    private final String[] items;
+    private final String[] removedItems;
+    private final List<TextMessage> messages;
+
+    // Position in the ring buffer, set by the producer before the event becomes visible
+    long sequence;
+
+    private ChatEvent(Type type, boolean success, String text, String[] items,
+                      List<TextMessage> messages) {
+        this(type, success, text, items, null, messages);
+    }
+
+    private ChatEvent(Type type, boolean success, String text, String[] items, String[] removedItems,
+                      List<TextMessage> messages) {
+        this.type = type;
+        this.success = success;
+        this.text = text;
+        this.items = items;
+        this.removedItems = removedItems;
+        this.messages = messages;
+    }
+
+    static ChatEvent loginResult(boolean success, String errMsg) {
+        return new ChatEvent(Type.LOGIN_RESULT, success, errMsg, null, null);
+    }
+
+    static ChatEvent disconnect() {
+        return new ChatEvent(Type.DISCONNECT, false, null, null, null);
+    }
+
+    static ChatEvent reconnected() {
+        return new ChatEvent(Type.RECONNECTED, false, null, null, null);
+    }
+
+    static ChatEvent reconnectFailed(String errMsg) {
+        return new ChatEvent(Type.RECONNECT_FAILED, false, errMsg, null, null);
+    }
+
+    static ChatEvent userList(String[] users) {
+        return new ChatEvent(Type.USER_LIST, false, null, users, null);
+    }
+
+    static ChatEvent usersChanged(String[] joined, String[] left) {
+        return new ChatEvent(Type.USERS_CHANGED, false, null, joined, left, null);
+    }
+
+    static ChatEvent messages(List<TextMessage> messages) {
+        return new ChatEvent(Type.MESSAGES, false, null, null, messages);
+    }
+
+    static ChatEvent messageError(String errMsg) {
+        return new ChatEvent(Type.MESSAGE_ERROR, false, errMsg, null, null);
+    }
+
+    static ChatEvent supported(String[] commands) {
+        return new ChatEvent(Type.SUPPORTED, false, null, commands, null);
+    }
+
+    static ChatEvent commandError(String errMsg) {
+        return new ChatEvent(Type.COMMAND_ERROR, false, errMsg, null, null);
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * Call the listener method which corresponds to this event.
+     *
+     * @param listener The listener to notify
+     */
+    void deliverTo(ChatListener listener) {
+        switch (type) {
+            case LOGIN_RESULT:
+                listener.onLoginResult(success, text);
+                break;
+            case DISCONNECT:
+                listener.onDisconnect();
+                break;
+            case USER_LIST:
+                listener.onUserList(items);
+                break;
+            case USERS_CHANGED:
+                listener.onUsersChanged(items, removedItems);
+                break;
+            case MESSAGES:
+                listener.onMessagesReceived(messages);
+                break;
+            case MESSAGE_ERROR:
+                listener.onMessageError(text);
+                break;
+            case SUPPORTED:
+                listener.onSupportedCommands(items);
+                break;
+            case COMMAND_ERROR:
+                listener.onCommandError(text);
+                break;
+            case RECONNECTED:
+                listener.onReconnected();
+                break;
+            case RECONNECT_FAILED:
+                listener.onReconnectFailed(text);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the background tasks of the chat client: the listening loop of TCPClient, the connection
+ * setup and the user polling in the GUI. Every task gets its own thread. On JDKs which support
+ * virtual threads (Java 21 and newer) virtual threads are used by default, so that thousands of
+ * blocking reads cost next to nothing; on older JDKs ordinary platform threads are used.
+ *
+ * The executor counts the threads it starts and measures how long it takes from submitting a task
+ * until the task actually starts running (the thread creation latency).
+ */
+public class ChatExecutor implements Executor {
+
+    private static ChatExecutor defaultExecutor = null;
+
+    private final String name;
+    private final boolean virtual;
+    private final Executor delegate;
+
+    private final AtomicLong tasksStarted = new AtomicLong();
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicInteger peakActiveTasks = new AtomicInteger();
+    private final AtomicLong totalStartLatencyNanos = new AtomicLong();
+    private final AtomicLong maxStartLatencyNanos = new AtomicLong();
+
+    private ChatExecutor(String name, boolean virtual, Executor delegate) {
+        this.name = name;
+        this.virtual = virtual;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Create an executor which starts a new virtual thread for every task. Falls back to platform
+     * threads when the JDK does not support virtual threads.
+     *
+     * @return The executor
+     */
+    public static ChatExecutor virtualThreads() {
+        Executor virtualExecutor = createVirtualThreadExecutor();
+        if (virtualExecutor == null) {
+            return platformThreads();
+        }
+        return new ChatExecutor("virtual", true, virtualExecutor);
+    }
+
+    /**
+     * Create an executor which starts a new platform (OS) thread for every task.
+     *
+     * @return The executor
+     */
+    public static ChatExecutor platformThreads() {
+        return new ChatExecutor("platform", false, task -> new Thread(task).start());
+    }
+
+    /**
+     * Wrap any other executor, for example a thread pool, to use it for the chat client tasks.
+     *
+     * @param name     Name of the executor, used in diagnostics
+     * @param delegate The executor which will run the tasks
+     * @return The executor
+     */
+    public static ChatExecutor wrap(String name, Executor delegate) {
+        return new ChatExecutor(name, false, delegate);
+    }
+
+    /**
+     * @return The executor used by all the clients which were not given a specific one. Virtual
+     * threads when supported by the JDK, platform threads otherwise.
+     */
+    public static synchronized ChatExecutor getDefault() {
+        if (defaultExecutor == null) {
+            defaultExecutor = virtualThreads();
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Replace the default executor. Affects only the tasks started after this call.
+     *
+     * @param executor The new default executor
+     */
+    public static synchronized void setDefault(ChatExecutor executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * @return true when the running JDK supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return findVirtualThreadFactoryMethod() != null;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long submitTime = System.nanoTime();
+        delegate.execute(() -> {
+            recordStart(System.nanoTime() - submitTime);
+            try {
+                task.run();
+            } finally {
+                activeTasks.decrementAndGet();
+            }
+        });
+    }
+
+    private void recordStart(long latencyNanos) {
+        tasksStarted.incrementAndGet();
+        totalStartLatencyNanos.addAndGet(latencyNanos);
+        maxStartLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+        int active = activeTasks.incrementAndGet();
+        peakActiveTasks.accumulateAndGet(active, Math::max);
+    }
+
+    /**
+     * @return Name of the executor: "virtual", "platform" or the name given to {@link #wrap}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the tasks are run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return How many tasks (threads) have been started in total
+     */
+    public long getTasksStarted() {
+        return tasksStarted.get();
+    }
+
+    /**
+     * @return How many tasks (threads) are running right now
+     */
+    public int getActiveCount() {
+        return activeTasks.get();
+    }
+
+    /**
+     * @return The highest number of tasks which have been running at the same time
+     */
+    public int getPeakActiveCount() {
+        return peakActiveTasks.get();
+    }
+
+    /**
+     * @return Average time from submitting a task until it started running, in nanoseconds
+     */
+    public long getAverageStartLatencyNanos() {
+        long started = tasksStarted.get();
+        return started > 0 ? totalStartLatencyNanos.get() / started : 0;
+    }
+
+    /**
+     * @return The longest time from submitting a task until it started running, in nanoseconds
+     */
+    public long getMaxStartLatencyNanos() {
+        return maxStartLatencyNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ChatExecutor[" + name + ", started=" + getTasksStarted() + ", active=" + getActiveCount()
+                + ", peak=" + getPeakActiveCount() + ", avgStartLatency=" + getAverageStartLatencyNanos()
+                + "ns, maxStartLatency=" + getMaxStartLatencyNanos() + "ns]";
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() exists only on Java 21 and newer. The project is
+     * compiled for an older release, therefore the method is looked up by reflection.
+     */
+    private static Method findVirtualThreadFactoryMethod() {
+        try {
+            return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Executor createVirtualThreadExecutor() {
+        Method factory = findVirtualThreadFactoryMethod();
+        if (factory == null) {
+            return null;
+        }
+        try {
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
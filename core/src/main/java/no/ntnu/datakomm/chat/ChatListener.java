@@ -0,0 +1,119 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+
+/**
+ * Interface for a listener that can handle events received from the server
+ */
+public interface ChatListener {
+
+    /**
+     * This method is called when connection (socket) is closed by the remote
+     * end (server).
+     */
+    public void onDisconnect();
+
+    /**
+     * This method is called when a login procedure is done: either it succeeded
+     * or failed.
+     *
+     * @param success when true, the client has logged in, when false, login
+     * failed
+     * @param errMsg Error message in case of failure, or null on successful
+     * login
+     */
+    public void onLoginResult(boolean success, String errMsg);
+
+    /**
+     * This method is called when an incoming text message is received
+     *
+     * @param message message received (private or public)
+     */
+    public void onMessageReceived(TextMessage message);
+
+    /**
+     * This method is called with all the text messages which arrived together, in one read from the
+     * socket. By default it calls onMessageReceived() for each of them; override it to handle a burst
+     * of messages at once (for example, update the GUI once instead of once per message).
+     *
+     * @param messages messages received, in the order they arrived
+     */
+    public default void onMessagesReceived(List<TextMessage> messages) {
+        for (TextMessage message : messages) {
+            onMessageReceived(message);
+        }
+    }
+
+    /**
+     * This method is called when an error happened when we tried to send
+     * message to the server (the message was not sent to necessary recipients)
+     *
+     * @param errMsg Error message
+     */
+    public void onMessageError(String errMsg);
+
+    /**
+     * This method is called when a list of currently connected users is
+     * received
+     *
+     * @param usernames List of users
+     */
+    public void onUserList(String[] usernames);
+
+    /**
+     * This method is called when a list of currently connected users is received and it differs
+     * from the previous one. The first list after connecting is reported as all users joining.
+     *
+     * @param joined Users who are new in the list, sorted
+     * @param left   Users who are no longer in the list, sorted
+     */
+    public default void onUsersChanged(String[] joined, String[] left) {
+    }
+
+    /**
+     * This method is called when the client has connected again by itself after the connection was
+     * lost (see {@link TCPClient#setAutoReconnect(long, long, java.util.concurrent.TimeUnit, int)}),
+     * and logged in again with the last username. The messages sent during the outage have been
+     * sent by now.
+     */
+    public default void onReconnected() {
+    }
+
+    /**
+     * This method is called when the client gives up reconnecting by itself, because the server
+     * rejected the login with the last username too many times. The client is disconnected now, and
+     * the messages sent during the outage are dropped.
+     *
+     * @param errMsg The error message of the last rejected login
+     */
+    public default void onReconnectFailed(String errMsg) {
+    }
+
+    /**
+     * This method is called when a list of currently supported commands is
+     * received
+     *
+     * @param commands List of supported commands
+     */
+    public void onSupportedCommands(String[] commands);
+
+    /**
+     * This method is called when the server did not understand the last command
+     *
+     * @param errMsg Error message
+     */
+    public void onCommandError(String errMsg);
+
+    /**
+     * A critical listener (for example, an audit log) is always called on the receiving thread,
+     * even when it is slower than the listener budget of the client, see
+     * {@link TCPClient#setListenerBudget(long, java.util.concurrent.TimeUnit, int, int)}. Other
+     * listeners may be moved to their own thread when they are too slow.
+     *
+     * @return true if the listener must never be moved off the receiving thread
+     */
+    public default boolean isCritical() {
+        return false;
+    }
+
+}
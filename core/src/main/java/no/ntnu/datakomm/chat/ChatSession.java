@@ -0,0 +1,208 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One login of a {@link ChatSessionManager}: a {@link TCPClient} and the state of its connection.
+ * The events of the client are passed on to the listeners of the manager, tagged with this session.
+ */
+public class ChatSession implements ChatListener {
+    /**
+     * The life cycle of a session.
+     */
+    public enum State {
+        // Waiting for its turn to connect
+        QUEUED,
+        CONNECTING,
+        LOGGING_IN,
+        ONLINE,
+        // Could not connect or log in, see getLastError()
+        FAILED,
+        // The server closed the connection
+        LOST,
+        // Closed by us
+        CLOSED
+    }
+
+    private final ChatSessionManager manager;
+    private final String username;
+    private final TCPClient client;
+    // Changed by the connecting thread and the selector thread, under the lock of the session
+    private volatile State state = State.QUEUED;
+    private volatile String lastError = null;
+    // Completed when the session is online, or when it failed
+    private final CompletableFuture<Boolean> loginResult = new CompletableFuture<>();
+
+    ChatSession(ChatSessionManager manager, String username, TCPClient client) {
+        this.manager = manager;
+        this.username = username;
+        this.client = client;
+    }
+
+    /**
+     * @return The username this session logs in with
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return The client of this session, to send messages and commands
+     */
+    public TCPClient getClient() {
+        return client;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return Why the session failed or was lost, null if it did not
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return Completed with true when the session is online, with false when it could not connect
+     *         or log in
+     */
+    public CompletableFuture<Boolean> getLoginResult() {
+        return loginResult;
+    }
+
+    public boolean sendPublicMessage(String message) {
+        return client.sendPublicMessage(message);
+    }
+
+    public boolean sendPrivateMessage(String recipient, String message) {
+        return client.sendPrivateMessage(recipient, message);
+    }
+
+    /**
+     * Disconnect the session and remove it from its manager.
+     */
+    public void close() {
+        manager.remove(this);
+    }
+
+    /**
+     * Connect and log in. Called by the manager when it is the turn of this session, on a thread of
+     * the executor (connecting blocks).
+     *
+     * @return Completed when the login is answered, or right away when connecting fails
+     */
+    CompletableFuture<Boolean> start(String host, int port) {
+        if (state != State.QUEUED) {
+            return CompletableFuture.completedFuture(false);
+        }
+        setState(State.CONNECTING);
+        if (!client.connect(host, port)) {
+            fail(client.getLastError());
+            return loginResult;
+        }
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                // Closed while connecting
+                client.disconnect();
+                return loginResult;
+            }
+            client.addListener(this);
+        }
+        client.startListenThread();
+        setState(State.LOGGING_IN);
+        client.login(username).whenComplete((success, error) -> {
+            if (error != null) {
+                fail("Login not answered: " + error.getMessage());
+                client.disconnect();
+            }
+            // Otherwise onLoginResult() has handled it
+        });
+        return loginResult;
+    }
+
+    /**
+     * Disconnect, without notifying the listeners of a lost connection.
+     */
+    synchronized void stop() {
+        State previous = state;
+        state = State.CLOSED;
+        if (previous != State.CLOSED) {
+            client.removeListener(this);
+            client.disconnect();
+            loginResult.complete(false);
+            manager.stateChanged(this, previous, State.CLOSED);
+        }
+    }
+
+    private synchronized void fail(String error) {
+        lastError = error;
+        setState(State.FAILED);
+        loginResult.complete(false);
+    }
+
+    private synchronized void setState(State newState) {
+        State previous = state;
+        if (previous == State.CLOSED || previous == newState) {
+            return;
+        }
+        state = newState;
+        manager.stateChanged(this, previous, newState);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        if (state != State.LOGGING_IN) {
+            // A later login command of the user, not the one of the session
+            manager.fireLoginResult(this, success, errMsg);
+            return;
+        }
+        if (success) {
+            setState(State.ONLINE);
+            loginResult.complete(true);
+        } else {
+            fail("Login failed: " + errMsg);
+            client.disconnect();
+        }
+    }
+
+    @Override
+    public synchronized void onDisconnect() {
+        if (state != State.CLOSED && state != State.FAILED) {
+            lastError = "Connection lost";
+            setState(State.LOST);
+            loginResult.complete(false);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        manager.fireMessageReceived(this, message);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        manager.fireMessageError(this, errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        manager.fireUserList(this, usernames);
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        manager.fireSupportedCommands(this, commands);
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        manager.fireCommandError(this, errMsg);
+    }
+
+    @Override
+    public String toString() {
+        return username + " (" + state + ")";
+    }
+}
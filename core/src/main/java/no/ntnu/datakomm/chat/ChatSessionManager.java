@@ -0,0 +1,361 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many chat sessions (logins) to one server in one process, for bots and load tests. All the
+ * sessions share one selector thread, which reads their sockets and calls the listeners, and one
+ * {@link ClientMetrics}, so a session costs a socket and a few KB of memory, not threads. The events
+ * of all the sessions go to the same {@link SessionListener}s, tagged with the session.
+ *
+ * New sessions are connected and logged in at a limited rate, with a limited number of connects in
+ * progress at the same time, so that a mass login does not flood the server:
+ *
+ *     ChatSessionManager manager = new ChatSessionManager("localhost", 1300);
+ *     manager.setConnectRate(100, 20);
+ *     manager.addListener(new SessionListener() { ... });
+ *     for (int i = 0; i < 1000; i++) {
+ *         manager.addSession("bot" + i);
+ *     }
+ *     manager.whenAllStarted().join();
+ */
+public class ChatSessionManager implements Closeable {
+    // How often the rate limiter lets new connects through
+    private static final System.Logger LOGGER = System.getLogger(ChatSessionManager.class.getName());
+    private static final long TICK_MILLIS = 10;
+    // The receive buffer of a session starts small, chat lines are short. It grows when needed.
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private final String host;
+    private final int port;
+    private final NioEventLoop eventLoop;
+    private final boolean ownEventLoop;
+    // Runs the connects, which block until the connection is established
+    private final Executor executor;
+    private final ClientMetrics metrics = new ClientMetrics();
+
+    private final Map<String, ChatSession> sessions = new ConcurrentHashMap<>();
+    private final List<SessionListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<ChatSession.State, AtomicInteger> stateCounts = new EnumMap<>(ChatSession.State.class);
+
+    // Sessions waiting for their turn to connect
+    private final Queue<ChatSession> queued = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService ticker;
+    private final AtomicInteger connecting = new AtomicInteger();
+    // Guarded by this
+    private double connectsPerSecond = 50;
+    private int maxConcurrentConnects = 16;
+    private double connectPermits = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a manager with its own selector thread.
+     *
+     * @param host Host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @throws IOException When the selector can't be opened
+     */
+    public ChatSessionManager(String host, int port) throws IOException {
+        this(host, port, new NioEventLoop(), true, ChatExecutor.getDefault());
+    }
+
+    /**
+     * Create a manager which uses the given selector loop, for example {@link NioEventLoop#shared()}.
+     * The loop is not closed with the manager.
+     *
+     * @param host      Host name or IP address of the chat server
+     * @param port      TCP port of the chat server
+     * @param eventLoop The selector loop to serve the sockets of the sessions
+     * @param executor  Runs the connects
+     */
+    public ChatSessionManager(String host, int port, NioEventLoop eventLoop, Executor executor) {
+        this(host, port, eventLoop, false, executor);
+    }
+
+    private ChatSessionManager(String host, int port, NioEventLoop eventLoop, boolean ownEventLoop,
+                               Executor executor) {
+        this.host = host;
+        this.port = port;
+        this.eventLoop = eventLoop;
+        this.ownEventLoop = ownEventLoop;
+        this.executor = executor;
+        for (ChatSession.State state : ChatSession.State.values()) {
+            stateCounts.put(state, new AtomicInteger());
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, "chat-session-connector");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Limit the speed of connecting and logging in the new sessions.
+     *
+     * @param perSecond     How many sessions may start connecting per second (default 50)
+     * @param maxConcurrent How many sessions may be connecting or logging in at the same time
+     *                      (default 16)
+     */
+    public synchronized void setConnectRate(double perSecond, int maxConcurrent) {
+        if (perSecond <= 0 || maxConcurrent <= 0) {
+            throw new IllegalArgumentException("The connect rate and concurrency must be positive");
+        }
+        connectsPerSecond = perSecond;
+        maxConcurrentConnects = maxConcurrent;
+    }
+
+    /**
+     * Add a session. It is connected and logged in when its turn comes, see
+     * {@link ChatSession#getLoginResult()}.
+     *
+     * @param username The username to log in with
+     * @return The new session
+     * @throws IllegalArgumentException When there is a session with this username already
+     * @throws IllegalStateException    When the manager is closed
+     */
+    public ChatSession addSession(String username) {
+        if (closed) {
+            throw new IllegalStateException("The session manager is closed");
+        }
+        ChatSession session = new ChatSession(this, username, new TCPClient(eventLoop, metrics, READ_BUFFER_SIZE));
+        if (sessions.putIfAbsent(username, session) != null) {
+            throw new IllegalArgumentException("Session " + username + " exists already");
+        }
+        stateCounts.get(ChatSession.State.QUEUED).incrementAndGet();
+        queued.add(session);
+        return session;
+    }
+
+    /**
+     * Add a session for each username, see {@link #addSession(String)}.
+     *
+     * @param usernames The usernames to log in with
+     * @return The new sessions, in the same order
+     */
+    public List<ChatSession> addSessions(Collection<String> usernames) {
+        List<ChatSession> added = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            added.add(addSession(username));
+        }
+        return added;
+    }
+
+    /**
+     * @return Completed when every session added so far is online or has failed
+     */
+    public CompletableFuture<Void> whenAllStarted() {
+        return CompletableFuture.allOf(sessions.values().stream()
+                .map(ChatSession::getLoginResult)
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * The task of the ticker thread. An exception must not get out of it: the scheduled executor
+     * would cancel the ticker, and the queued sessions would never connect.
+     */
+    private void tick() {
+        try {
+            startQueued();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.ERROR, "Error while starting the queued sessions", e);
+        }
+    }
+
+    /**
+     * Start connecting as many queued sessions as the rate and the concurrency limit allow. Runs on
+     * the ticker thread.
+     */
+    private void startQueued() {
+        synchronized (this) {
+            connectPermits = Math.min(connectPermits + connectsPerSecond * TICK_MILLIS / 1000.0,
+                    Math.max(1, connectsPerSecond * TICK_MILLIS / 1000.0));
+        }
+        while (!queued.isEmpty()) {
+            synchronized (this) {
+                if (connectPermits < 1 || connecting.get() >= maxConcurrentConnects) {
+                    return;
+                }
+                connectPermits--;
+            }
+            ChatSession session = queued.poll();
+            if (session == null) {
+                return;
+            }
+            connecting.incrementAndGet();
+            try {
+                executor.execute(() -> startSession(session));
+            } catch (RejectedExecutionException e) {
+                connecting.decrementAndGet();
+                // Try again on a later tick
+                queued.add(session);
+                LOGGER.log(Level.WARNING, "Could not start connecting a session: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connect and log in one session, and give back its place among the connecting sessions when it
+     * is done. The place is given back also when the start fails with an exception (for example a
+     * session listener throws), otherwise the queued sessions would stop connecting after a few
+     * such failures.
+     *
+     * @param session The session
+     */
+    private void startSession(ChatSession session) {
+        CompletableFuture<Boolean> started = null;
+        try {
+            started = session.start(host, port);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not start the session " + session.getUsername(), e);
+            session.getLoginResult().complete(false);
+        } finally {
+            if (started == null) {
+                connecting.decrementAndGet();
+            } else {
+                started.whenComplete((online, error) -> connecting.decrementAndGet());
+            }
+        }
+    }
+
+    /**
+     * Disconnect a session and forget it.
+     *
+     * @param session The session
+     */
+    void remove(ChatSession session) {
+        if (sessions.remove(session.getUsername(), session)) {
+            queued.remove(session);
+            session.stop();
+            // Counted only while it is in the manager
+            stateCounts.get(ChatSession.State.CLOSED).decrementAndGet();
+        }
+    }
+
+    /**
+     * @param username A username
+     * @return The session with this username, null if there is none
+     */
+    public ChatSession getSession(String username) {
+        return sessions.get(username);
+    }
+
+    /**
+     * @return All the sessions, in no particular order
+     */
+    public List<ChatSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * @return Number of sessions in each state. The closed sessions are not in the manager any more,
+     *         so the count of CLOSED is 0 except while they are being closed.
+     */
+    public Map<ChatSession.State, Integer> getStateCounts() {
+        Map<ChatSession.State, Integer> counts = new EnumMap<>(ChatSession.State.class);
+        stateCounts.forEach((state, count) -> counts.put(state, count.get()));
+        return counts;
+    }
+
+    /**
+     * @return Number of sessions which are logged in
+     */
+    public int getOnlineCount() {
+        return stateCounts.get(ChatSession.State.ONLINE).get();
+    }
+
+    /**
+     * @return The metrics of all the sessions together: connect time, commands and responses,
+     *         bytes. Can be published in JMX with {@link ClientMetrics#registerMBean(String)}.
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void addListener(SessionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SessionListener listener) {
+        listeners.remove(listener);
+    }
+
+    void stateChanged(ChatSession session, ChatSession.State previous, ChatSession.State state) {
+        stateCounts.get(previous).decrementAndGet();
+        stateCounts.get(state).incrementAndGet();
+        for (SessionListener l : listeners) {
+            l.onStateChanged(session, previous, state);
+        }
+    }
+
+    void fireLoginResult(ChatSession session, boolean success, String errMsg) {
+        for (SessionListener l : listeners) {
+            l.onLoginResult(session, success, errMsg);
+        }
+    }
+
+    void fireMessageReceived(ChatSession session, TextMessage message) {
+        for (SessionListener l : listeners) {
+            l.onMessageReceived(session, message);
+        }
+    }
+
+    void fireMessageError(ChatSession session, String errMsg) {
+        for (SessionListener l : listeners) {
+            l.onMessageError(session, errMsg);
+        }
+    }
+
+    void fireUserList(ChatSession session, String[] usernames) {
+        for (SessionListener l : listeners) {
+            l.onUserList(session, usernames);
+        }
+    }
+
+    void fireSupportedCommands(ChatSession session, String[] commands) {
+        for (SessionListener l : listeners) {
+            l.onSupportedCommands(session, commands);
+        }
+    }
+
+    void fireCommandError(ChatSession session, String errMsg) {
+        for (SessionListener l : listeners) {
+            l.onCommandError(session, errMsg);
+        }
+    }
+
+    /**
+     * Disconnect all the sessions and stop. The selector thread is stopped too, unless it was given
+     * to the constructor.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ticker.shutdownNow();
+        for (ChatSession session : getSessions()) {
+            remove(session);
+        }
+        if (ownEventLoop) {
+            eventLoop.close();
+        }
+    }
+}
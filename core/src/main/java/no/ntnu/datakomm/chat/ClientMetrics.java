@@ -0,0 +1,260 @@
+package no.ntnu.datakomm.chat;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.System.Logger.Level;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of one {@link TCPClient}: connect time, the time a command waits between
+ * sendCommand() and the write to the socket (send-to-flush), the time from reading a line from the
+ * socket to the end of the listener calls (dispatch), the number of commands and responses of each
+ * type, and the bytes sent and received.
+ *
+ * The values can be pulled with the getters, or published in JMX with {@link #registerMBean(String)}.
+ * Recording is lock-free and cheap enough to stay on all the time.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+    private static final System.Logger LOGGER = System.getLogger(ClientMetrics.class.getName());
+
+    /**
+     * The commands which are counted separately, the rest is counted as "other"
+     */
+    private static final String[] COMMANDS = {"login", "msg", "privmsg", "users", "help"};
+    private static final String OTHER = "other";
+
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram sendToFlush = new LatencyHistogram();
+    private final LatencyHistogram dispatch = new LatencyHistogram();
+    private final AtomicLongArray commandsSent = new AtomicLongArray(COMMANDS.length + 1);
+    private final AtomicLongArray responsesReceived = new AtomicLongArray(ResponseParser.Type.values().length);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    private ObjectName registeredName = null;
+
+    void recordConnect(long nanos) {
+        connectTime.record(nanos);
+    }
+
+    void recordSendToFlush(long nanos, int commands) {
+        sendToFlush.record(nanos, commands);
+    }
+
+    void recordDispatch(long nanos, int lines) {
+        dispatch.record(nanos, lines);
+    }
+
+    /**
+     * Count a command which is sent.
+     *
+     * @param command The command line, without the line terminator
+     */
+    void countCommand(String command) {
+        int index = COMMANDS.length;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            String word = COMMANDS[i];
+            if (command.startsWith(word)
+                    && (command.length() == word.length() || command.charAt(word.length()) == ' ')) {
+                index = i;
+                break;
+            }
+        }
+        commandsSent.incrementAndGet(index);
+    }
+
+    void countResponse(ResponseParser.Type type, int bytes) {
+        responsesReceived.incrementAndGet(type.ordinal());
+        bytesIn.add(bytes);
+    }
+
+    void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void countReconnect() {
+        reconnects.increment();
+    }
+
+    /**
+     * @return Time of connect() calls, in nanoseconds
+     */
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * @return Time from sendCommand() to the write of the command to the socket, in nanoseconds
+     */
+    public LatencyHistogram getSendToFlushTime() {
+        return sendToFlush;
+    }
+
+    /**
+     * @return Time from reading a line from the socket to the end of the listener calls for it, in
+     *         nanoseconds
+     */
+    public LatencyHistogram getDispatchTime() {
+        return dispatch;
+    }
+
+    @Override
+    public long getConnectCount() {
+        return connectTime.getCount();
+    }
+
+    @Override
+    public double getConnectTimeMeanMicros() {
+        return connectTime.getMean() / 1000;
+    }
+
+    @Override
+    public double getConnectTimeMaxMicros() {
+        return connectTime.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getSendToFlushCount() {
+        return sendToFlush.getCount();
+    }
+
+    @Override
+    public double getSendToFlushP50Micros() {
+        return sendToFlush.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getSendToFlushP99Micros() {
+        return sendToFlush.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getSendToFlushMaxMicros() {
+        return sendToFlush.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getDispatchCount() {
+        return dispatch.getCount();
+    }
+
+    @Override
+    public double getDispatchP50Micros() {
+        return dispatch.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDispatchP99Micros() {
+        return dispatch.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDispatchP999Micros() {
+        return dispatch.getValueAtPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getDispatchMaxMicros() {
+        return dispatch.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getReconnectCount() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommandsSent() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            counts.put(COMMANDS[i], commandsSent.get(i));
+        }
+        counts.put(OTHER, commandsSent.get(COMMANDS.length));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getResponsesReceived() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (ResponseParser.Type type : ResponseParser.Type.values()) {
+            // Named as in the protocol: LOGIN_OK is "loginok"
+            counts.put(type.name().toLowerCase().replace("_", ""), responsesReceived.get(type.ordinal()));
+        }
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        connectTime.reset();
+        sendToFlush.reset();
+        dispatch.reset();
+        for (int i = 0; i < commandsSent.length(); i++) {
+            commandsSent.set(i, 0);
+        }
+        for (int i = 0; i < responsesReceived.length(); i++) {
+            responsesReceived.set(i, 0);
+        }
+        bytesIn.reset();
+        bytesOut.reset();
+        reconnects.reset();
+    }
+
+    /**
+     * Publish the metrics in the platform MBean server, as
+     * no.ntnu.datakomm.chat:type=TCPClient,name=(name).
+     *
+     * @param name Identifies the client among the others in the same JVM
+     * @return true on success, false if the name is taken or invalid
+     */
+    public synchronized boolean registerMBean(String name) {
+        unregisterMBean();
+        try {
+            ObjectName objectName = new ObjectName("no.ntnu.datakomm.chat:type=TCPClient,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = objectName;
+            return true;
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register the client metrics in JMX: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Remove the metrics from the platform MBean server, if they were registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        registeredName = null;
+    }
+
+    @Override
+    public String toString() {
+        return "connect: " + connectTime + ", send-to-flush: " + sendToFlush + ", dispatch: " + dispatch
+                + ", bytes in/out: " + getBytesIn() + "/" + getBytesOut();
+    }
+}
@@ -0,0 +1,55 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+
+/**
+ * The metrics of one TCPClient as seen in JMX (for example in JConsole or JDK Mission Control).
+ * Latencies are in microseconds.
+ */
+public interface ClientMetricsMXBean {
+
+    long getConnectCount();
+
+    long getReconnectCount();
+
+    double getConnectTimeMeanMicros();
+
+    double getConnectTimeMaxMicros();
+
+    long getSendToFlushCount();
+
+    double getSendToFlushP50Micros();
+
+    double getSendToFlushP99Micros();
+
+    double getSendToFlushMaxMicros();
+
+    long getDispatchCount();
+
+    double getDispatchP50Micros();
+
+    double getDispatchP99Micros();
+
+    double getDispatchP999Micros();
+
+    double getDispatchMaxMicros();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return Number of commands sent, per command word
+     */
+    Map<String, Long> getCommandsSent();
+
+    /**
+     * @return Number of responses received, per response type
+     */
+    Map<String, Long> getResponsesReceived();
+
+    /**
+     * Start counting from zero.
+     */
+    void reset();
+}
@@ -0,0 +1,178 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the outgoing commands of one connection and writes them to the socket in batches. The
+ * commands issued within a short time window, or up to a byte budget, are written with one
+ * (gathering) write instead of one write and one flush per command. With an empty window (the
+ * default) every command is written immediately.
+ *
+ * All the methods are thread-safe, the writes to the socket are serialized here.
+ */
+class CommandBatcher {
+    private static final System.Logger LOGGER = System.getLogger(CommandBatcher.class.getName());
+
+    /**
+     * The socket side: writes a batch of encoded commands with as few system calls as possible.
+     */
+    interface Sink {
+        /**
+         * @param batch Encoded commands, each terminated with '\n'
+         * @param count How many first elements of the array to write
+         * @throws IOException When the socket is broken
+         */
+        void writeBatch(ByteBuffer[] batch, int count) throws IOException;
+    }
+
+    // One timer thread flushes the delayed batches of all the connections
+    private static final ScheduledExecutorService FLUSH_TIMER =
+            Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "chat-flush-timer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final Sink sink;
+    // Records the send-to-flush times and the bytes written, may be null
+    private final ClientMetrics metrics;
+
+    private long windowMicros = 0;
+    private int maxBatchBytes = 0;
+
+    private ByteBuffer[] pending = new ByteBuffer[16];
+    // When each pending command was queued (System.nanoTime())
+    private long[] pendingSince = new long[16];
+    private int pendingCount = 0;
+    private int pendingBytes = 0;
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    CommandBatcher(Sink sink) {
+        this(sink, null);
+    }
+
+    CommandBatcher(Sink sink, ClientMetrics metrics) {
+        this.sink = sink;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the batching parameters.
+     *
+     * @param windowMicros  How long a command may wait for more commands, in microseconds. 0 turns
+     *                      batching off.
+     * @param maxBatchBytes When this many bytes are pending, the batch is written at once, without
+     *                      waiting for the window to end. 0 means no limit.
+     */
+    synchronized void configure(long windowMicros, int maxBatchBytes) {
+        this.windowMicros = windowMicros;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Queue one command for sending.
+     *
+     * @param command   The command, without the line terminator
+     * @param immediate When true, the command (and everything queued before it) is written now,
+     *                  regardless of the batching window
+     * @return Number of bytes of the encoded command
+     * @throws IOException When the socket is broken
+     */
+    synchronized int send(String command, boolean immediate) throws IOException {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(command + "\n");
+        if (pendingCount == pending.length) {
+            ByteBuffer[] bigger = new ByteBuffer[pending.length * 2];
+            System.arraycopy(pending, 0, bigger, 0, pendingCount);
+            pending = bigger;
+            long[] biggerSince = new long[pendingSince.length * 2];
+            System.arraycopy(pendingSince, 0, biggerSince, 0, pendingCount);
+            pendingSince = biggerSince;
+        }
+        if (metrics != null) {
+            pendingSince[pendingCount] = System.nanoTime();
+        }
+        pending[pendingCount++] = encoded;
+        int bytes = encoded.remaining();
+        pendingBytes += bytes;
+
+        if (immediate || windowMicros <= 0 || (maxBatchBytes > 0 && pendingBytes >= maxBatchBytes)) {
+            flush();
+        } else if (scheduledFlush == null) {
+            scheduledFlush = FLUSH_TIMER.schedule(this::flushQuietly, windowMicros,
+                    TimeUnit.MICROSECONDS);
+        }
+        return bytes;
+    }
+
+    /**
+     * Write all the pending commands now.
+     *
+     * @throws IOException When the socket is broken
+     */
+    synchronized void flush() throws IOException {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pendingCount == 0) {
+            return;
+        }
+        try {
+            sink.writeBatch(pending, pendingCount);
+            if (metrics != null) {
+                long now = System.nanoTime();
+                for (int i = 0; i < pendingCount; i++) {
+                    metrics.recordSendToFlush(now - pendingSince[i], 1);
+                }
+                metrics.addBytesOut(pendingBytes);
+            }
+        } finally {
+            for (int i = 0; i < pendingCount; i++) {
+                pending[i] = null;
+            }
+            pendingCount = 0;
+            pendingBytes = 0;
+        }
+    }
+
+    /**
+     * Flush from the timer thread. A broken socket is detected and reported by the reading side.
+     */
+    private synchronized void flushQuietly() {
+        scheduledFlush = null;
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write the batched commands: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drop the pending commands, for example when the connection is closed.
+     */
+    synchronized void discard() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            pending[i] = null;
+        }
+        pendingCount = 0;
+        pendingBytes = 0;
+    }
+
+    /**
+     * @return Number of bytes waiting to be written
+     */
+    synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+}
@@ -0,0 +1,207 @@
+package no.ntnu.datakomm.chat;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the {@link TCPClient}: commands sent, socket reads, listener calls,
+ * connects and disconnects. These events have a duration, so slow listeners and socket stalls
+ * show up directly in JDK Mission Control. The rare {@link ListenerIsolated} warning is recorded
+ * in every recording.
+ *
+ * The other events are disabled by default, even in a running recording. While disabled, an event
+ * costs one check of a static flag (the event objects are removed by escape analysis). Until the
+ * flight recorder is started in the JVM, no event is created at all: on JDK 17, loading the first
+ * event class starts up the recorder, which would add 0.4 s to the startup of every client. To record
+ * them, enable them by name in a recording, for example with the chat.jfc settings in the project
+ * root:
+ *
+ * java -XX:StartFlightRecording:settings=default,settings=chat.jfc,filename=chat.jfr ...
+ */
+final class FlightEvents {
+    private static final String CATEGORY = "Chat Client";
+
+    private FlightEvents() {
+    }
+
+    @Name("no.ntnu.datakomm.chat.CommandSent")
+    @Label("Command Sent")
+    @Description("A command queued for the server by sendCommand(), including the write when it is not batched")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class CommandSent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("no.ntnu.datakomm.chat.SocketRead")
+    @Label("Socket Read")
+    @Description("One read from the socket. In blocking mode the duration includes the wait for data.")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class SocketRead extends Event {
+        @Label("NIO")
+        boolean nio;
+
+        @Label("Bytes Read")
+        @DataAmount
+        int bytes;
+
+        @Label("End of Stream")
+        boolean endOfStream;
+    }
+
+    @Name("no.ntnu.datakomm.chat.ListenerCall")
+    @Label("Listener Call")
+    @Description("A call of one ChatListener method by the notifiers of the client")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class ListenerCall extends Event {
+        @Label("Listener Class")
+        Class<?> listenerClass;
+
+        @Label("Callback")
+        String callback;
+    }
+
+    @Name("no.ntnu.datakomm.chat.ListenerIsolated")
+    @Label("Listener Isolated")
+    @Description("A listener was too slow for the receiving thread and was moved to its own thread")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ListenerIsolated extends Event {
+        @Label("Listener Class")
+        Class<?> listenerClass;
+
+        @Label("Callback")
+        String callback;
+
+        @Label("Call Duration")
+        @Timespan
+        long callDuration;
+
+        @Label("Budget")
+        @Timespan
+        long budget;
+    }
+
+    @Name("no.ntnu.datakomm.chat.Connect")
+    @Label("Connect")
+    @Category(CATEGORY)
+    @Enabled(false)
+    static final class Connect extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+
+        @Label("NIO")
+        boolean nio;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("no.ntnu.datakomm.chat.Disconnect")
+    @Label("Disconnect")
+    @Category(CATEGORY)
+    @Enabled(false)
+    static final class Disconnect extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+
+        @Label("Connection Lost")
+        @Description("True when the connection was closed by the server or the network")
+        boolean lost;
+    }
+
+    /**
+     * @return True when the flight recorder has been started in this JVM, from the command line or
+     *         later with jcmd. Until then, the events are not created.
+     */
+    static boolean isActive() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /**
+     * Begin a {@link CommandSent} event, if the flight recorder is active. The other begin methods
+     * below work the same way.
+     *
+     * @return The event, or null when the flight recorder is not active
+     */
+    static CommandSent beginCommandSent() {
+        if (!isActive()) {
+            return null;
+        }
+        CommandSent event = new CommandSent();
+        event.begin();
+        return event;
+    }
+
+    static SocketRead beginSocketRead() {
+        if (!isActive()) {
+            return null;
+        }
+        SocketRead event = new SocketRead();
+        event.begin();
+        return event;
+    }
+
+    static ListenerCall beginListenerCall() {
+        if (!isActive()) {
+            return null;
+        }
+        ListenerCall event = new ListenerCall();
+        event.begin();
+        return event;
+    }
+
+    static Connect beginConnect() {
+        if (!isActive()) {
+            return null;
+        }
+        Connect event = new Connect();
+        event.begin();
+        return event;
+    }
+
+    static Disconnect beginDisconnect() {
+        if (!isActive()) {
+            return null;
+        }
+        Disconnect event = new Disconnect();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param command A command line
+     * @return The command word, for example "privmsg"
+     */
+    static String commandWord(String command) {
+        int space = command.indexOf(' ');
+        return space < 0 ? command : command.substring(0, space);
+    }
+}
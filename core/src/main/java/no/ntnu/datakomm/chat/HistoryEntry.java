@@ -0,0 +1,82 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * One message read back from the {@link HistoryJournal}.
+ */
+public class HistoryEntry {
+    private final long position;
+    private final long timestamp;
+    private final boolean outgoing;
+    private final boolean priv;
+    private final String peer;
+    private final String text;
+
+    /**
+     * @param position  Position of the entry in the journal
+     * @param timestamp When the message was sent or received, in milliseconds since the epoch
+     * @param outgoing  When true, the message was sent by us
+     * @param priv      When true, the message is private
+     * @param peer      The sender of a received message, the recipient of a sent private message,
+     *                  empty for a sent public message
+     * @param text      Text of the message
+     */
+    public HistoryEntry(long position, long timestamp, boolean outgoing, boolean priv, String peer,
+                        String text) {
+        this.position = position;
+        this.timestamp = timestamp;
+        this.outgoing = outgoing;
+        this.priv = priv;
+        this.peer = peer;
+        this.text = text;
+    }
+
+    /**
+     * @return Position of the entry in the journal, see {@link HistoryJournal#read(long)}
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return When the message was sent or received, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return true if the message was sent by us, false if it was received
+     */
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public boolean isPrivate() {
+        return priv;
+    }
+
+    /**
+     * @return The sender of a received message, the recipient of a sent private message, empty for a
+     *         sent public message
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return The message as the GUI shows it: our own messages have no sender
+     */
+    public TextMessage toTextMessage() {
+        return new TextMessage(outgoing ? "" : peer, priv, text);
+    }
+
+    @Override
+    public String toString() {
+        return (outgoing ? "to " : "from ") + peer + (priv ? " (private)" : "") + " at " + timestamp + ": "
+                + text;
+    }
+}
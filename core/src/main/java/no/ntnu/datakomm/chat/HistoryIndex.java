@@ -0,0 +1,633 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Full-text index of the {@link HistoryJournal}: for every word, sender and flag, the positions of
+ * the records which contain it (a posting list). Queries are words and fields, all of which must
+ * match:
+ *
+ * hello world, sender:bob hello, sender:bob AND hello, is:private, is:sent
+ *
+ * Words are compared case-insensitively, as sequences of letters and digits. The results come
+ * newest first.
+ *
+ * The index follows the journal: as a listener of the client, it indexes the new records in the
+ * background whenever messages arrive; a search indexes whatever is still missing first. The
+ * posting lists are kept as deltas of positions in variable-length bytes. New records are indexed
+ * in memory; every 50000 records they are written to an immutable segment file, which is
+ * memory-mapped for searching. The segment files are merged into one when there are too many.
+ * After a restart only the records after the last segment are indexed again.
+ */
+public class HistoryIndex implements ChatListener, Closeable {
+    private static final System.Logger LOGGER = System.getLogger(HistoryIndex.class.getName());
+    private static final int MAGIC = 0x43484931; // "CHI1"
+    // Magic, term count, first position, end position, reserved
+    private static final int HEADER = 32;
+    // Per term: term offset, term length, postings offset, postings length, postings count
+    private static final int DICT_ENTRY = 20;
+    private static final int FLUSH_RECORDS = 50000;
+    private static final int MAX_SEGMENTS = 8;
+    // Longer words are not indexed
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final String PREFIX = "index-";
+    private static final String SUFFIX = ".idx";
+    private static final String SENDER = "sender:";
+    private static final String PRIVATE = "is:private";
+    private static final String SENT = "is:sent";
+    private static final Comparator<byte[]> TERM_ORDER = Arrays::compareUnsigned;
+
+    /**
+     * Positions in ascending order, each stored as the difference from the previous one, 7 bits
+     * per byte.
+     */
+    static final class PostingList {
+        private byte[] bytes = new byte[8];
+        private int length = 0;
+        private int count = 0;
+        private long last = 0;
+
+        void add(long position) {
+            if (count > 0 && position == last) {
+                // The same record again (a word repeated in a message)
+                return;
+            }
+            long delta = position - last;
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((delta & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = position;
+            count++;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * Append the positions to a list.
+         */
+        void decodeInto(PositionList out) {
+            decode(ByteBuffer.wrap(bytes, 0, length), 0, length, count, out);
+        }
+    }
+
+    /**
+     * A growable array of positions.
+     */
+    static final class PositionList {
+        long[] values = new long[16];
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * An index segment file, mapped read-only.
+     */
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final int termCount;
+        final long end;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.termCount = buffer.getInt(4);
+            this.end = buffer.getLong(16);
+        }
+
+        byte[] term(int i) {
+            int entry = HEADER + i * DICT_ENTRY;
+            byte[] term = new byte[buffer.getInt(entry + 4)];
+            buffer.get(buffer.getInt(entry), term);
+            return term;
+        }
+
+        /**
+         * @return Index of the term in the dictionary, or -1
+         */
+        int find(byte[] term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = TERM_ORDER.compare(term(mid), term);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        void decodeInto(int i, PositionList out) {
+            int entry = HEADER + i * DICT_ENTRY;
+            int offset = buffer.getInt(entry + 8);
+            decode(buffer, offset, offset + buffer.getInt(entry + 12), buffer.getInt(entry + 16), out);
+        }
+    }
+
+    private final HistoryJournal journal;
+    private final Path directory;
+    private final Executor executor;
+    private final int flushRecords;
+
+    // Guarded by this, like the fields below. Oldest first.
+    private final List<Segment> segments = new ArrayList<>();
+    private Map<String, PostingList> live = new HashMap<>();
+    private int liveRecords = 0;
+    private long liveFirst = -1;
+    // Everything in the journal before this position is indexed
+    private long indexedEnd = 0;
+    private boolean closed = false;
+
+    private final AtomicBoolean catchUpScheduled = new AtomicBoolean(false);
+
+    /**
+     * Open the index of a journal. The records which are not indexed yet are indexed by
+     * {@link #catchUp()}, or by the first search.
+     *
+     * @param journal   The journal to index
+     * @param directory The directory of the index segments, created if it does not exist
+     * @param executor  Runs the indexing when messages arrive
+     * @throws IOException When the directory can't be used
+     */
+    public HistoryIndex(HistoryJournal journal, Path directory, Executor executor) throws IOException {
+        this(journal, directory, executor, FLUSH_RECORDS);
+    }
+
+    /**
+     * @param flushRecords Number of records indexed in memory before they are written to a segment
+     */
+    HistoryIndex(HistoryJournal journal, Path directory, Executor executor, int flushRecords) throws IOException {
+        this.journal = journal;
+        this.flushRecords = flushRecords;
+        this.directory = directory;
+        this.executor = executor;
+        Files.createDirectories(directory);
+        long start = journal.getStartPosition();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // The names hold the end positions, zero-padded: the name order is the position order
+        files.sort(Comparator.comparing(Path::toString));
+        for (Path file : files) {
+            Segment segment = map(file);
+            if (segment == null || segment.end <= start) {
+                // Broken, or only about records which have expired from the journal
+                Files.deleteIfExists(file);
+                continue;
+            }
+            segments.add(segment);
+            indexedEnd = segment.end;
+        }
+    }
+
+    private static Segment map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return buffer.getInt(0) == MAGIC ? new Segment(file, buffer) : null;
+        }
+    }
+
+    /**
+     * Index all the records which were added to the journal since the last call.
+     */
+    public synchronized void catchUp() {
+        if (closed) {
+            return;
+        }
+        journal.scan(indexedEnd, entry -> {
+            add(entry);
+            indexedEnd = journal.positionAfter(entry);
+            if (liveRecords >= flushRecords) {
+                flushQuietly();
+            }
+        });
+    }
+
+    private void add(HistoryEntry entry) {
+        long position = entry.getPosition();
+        if (liveFirst < 0) {
+            liveFirst = position;
+        }
+        tokenize(entry.getText(), token -> postings(token).add(position));
+        if (!entry.isOutgoing()) {
+            postings(SENDER + entry.getPeer().toLowerCase(Locale.ROOT)).add(position);
+        } else {
+            postings(SENT).add(position);
+        }
+        if (entry.isPrivate()) {
+            postings(PRIVATE).add(position);
+        }
+        liveRecords++;
+    }
+
+    private PostingList postings(String term) {
+        return live.computeIfAbsent(term, t -> new PostingList());
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            // Stays in memory, the next flush tries again
+            LOGGER.log(Level.WARNING, "Could not write the history index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the records indexed in memory to a new segment file, and merge the segments if there
+     * are too many of them.
+     *
+     * @throws IOException When the segment can't be written
+     */
+    public synchronized void flush() throws IOException {
+        if (liveRecords == 0) {
+            return;
+        }
+        List<byte[]> terms = new ArrayList<>(live.size());
+        Map<byte[], PostingList> byTerm = new HashMap<>();
+        for (Map.Entry<String, PostingList> e : live.entrySet()) {
+            byte[] term = e.getKey().getBytes(StandardCharsets.UTF_8);
+            terms.add(term);
+            byTerm.put(term, e.getValue());
+        }
+        terms.sort(TERM_ORDER);
+        List<PostingList> postings = new ArrayList<>(terms.size());
+        for (byte[] term : terms) {
+            postings.add(byTerm.get(term));
+        }
+        segments.add(write(terms, postings, liveFirst, indexedEnd));
+        live = new HashMap<>();
+        liveRecords = 0;
+        liveFirst = -1;
+        if (segments.size() > MAX_SEGMENTS) {
+            merge();
+        }
+    }
+
+    /**
+     * Write a segment file. It is written under a temporary name and renamed when complete, so a
+     * crash never leaves a partial segment behind.
+     */
+    private Segment write(List<byte[]> terms, List<PostingList> postings, long first, long end) throws IOException {
+        long termBytes = 0;
+        long postingBytes = 0;
+        for (int i = 0; i < terms.size(); i++) {
+            termBytes += terms.get(i).length;
+            postingBytes += postings.get(i).length;
+        }
+        long size = HEADER + (long) DICT_ENTRY * terms.size() + termBytes + postingBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Index segment too big");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(terms.size()).putLong(first).putLong(end).putLong(0);
+        int termOffset = HEADER + DICT_ENTRY * terms.size();
+        int postingOffset = (int) (termOffset + termBytes);
+        for (int i = 0; i < terms.size(); i++) {
+            PostingList list = postings.get(i);
+            buffer.putInt(termOffset).putInt(terms.get(i).length);
+            buffer.putInt(postingOffset).putInt(list.length).putInt(list.count);
+            buffer.put(termOffset, terms.get(i));
+            buffer.put(postingOffset, list.bytes, 0, list.length);
+            termOffset += terms.get(i).length;
+            postingOffset += list.length;
+        }
+        buffer.clear();
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, end, SUFFIX));
+        Path temp = directory.resolve(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return map(path);
+    }
+
+    /**
+     * Merge all the segments into one: for every term, the posting lists of the segments are
+     * joined (they cover increasing ranges of positions).
+     */
+    private void merge() throws IOException {
+        int n = segments.size();
+        int[] cursor = new int[n];
+        byte[][] current = new byte[n][];
+        for (int s = 0; s < n; s++) {
+            current[s] = segments.get(s).termCount > 0 ? segments.get(s).term(0) : null;
+        }
+        List<byte[]> terms = new ArrayList<>();
+        List<PostingList> postings = new ArrayList<>();
+        PositionList positions = new PositionList();
+        while (true) {
+            byte[] smallest = null;
+            for (byte[] term : current) {
+                if (term != null && (smallest == null || TERM_ORDER.compare(term, smallest) < 0)) {
+                    smallest = term;
+                }
+            }
+            if (smallest == null) {
+                break;
+            }
+            positions.size = 0;
+            for (int s = 0; s < n; s++) {
+                if (current[s] != null && Arrays.equals(current[s], smallest)) {
+                    Segment segment = segments.get(s);
+                    segment.decodeInto(cursor[s], positions);
+                    cursor[s]++;
+                    current[s] = cursor[s] < segment.termCount ? segment.term(cursor[s]) : null;
+                }
+            }
+            PostingList merged = new PostingList();
+            for (int i = 0; i < positions.size; i++) {
+                merged.add(positions.values[i]);
+            }
+            terms.add(smallest);
+            postings.add(merged);
+        }
+        Segment first = segments.get(0);
+        Segment last = segments.get(n - 1);
+        Segment mergedSegment = write(terms, postings, first.buffer.getLong(8), last.end);
+        for (Segment segment : segments) {
+            if (!segment.path.equals(mergedSegment.path)) {
+                Files.deleteIfExists(segment.path);
+            }
+        }
+        segments.clear();
+        segments.add(mergedSegment);
+    }
+
+    /**
+     * Find the records matching a query.
+     *
+     * @param query Words and fields (sender:name, is:private, is:sent), all of which must match.
+     *              The word AND between them is allowed.
+     * @param limit Maximum number of results
+     * @return The matching records, newest first
+     */
+    public List<HistoryEntry> search(String query, int limit) {
+        long[] positions = find(query);
+        List<HistoryEntry> results = new ArrayList<>(Math.min(limit, positions.length));
+        for (int i = positions.length - 1; i >= 0 && results.size() < limit; i--) {
+            HistoryEntry entry = journal.read(positions[i]);
+            // Null if the record has expired from the journal
+            if (entry != null) {
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Find the positions of the records matching a query, see {@link #search(String, int)}.
+     *
+     * @param query The query
+     * @return Positions of the matching records, in ascending order
+     */
+    public synchronized long[] find(String query) {
+        catchUp();
+        Set<String> terms = parseQuery(query);
+        if (terms.isEmpty()) {
+            return new long[0];
+        }
+        List<PositionList> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            PositionList list = lookUp(term);
+            if (list.size == 0) {
+                return new long[0];
+            }
+            lists.add(list);
+        }
+        // Start with the shortest list, the result can't be longer
+        lists.sort(Comparator.comparingInt(l -> l.size));
+        long[] result = Arrays.copyOf(lists.get(0).values, lists.get(0).size);
+        int size = result.length;
+        for (int l = 1; l < lists.size() && size > 0; l++) {
+            size = intersect(result, size, lists.get(l));
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Keep in a[0..size) only the values which are also in b. Both are sorted.
+     *
+     * @return The new size of a
+     */
+    private static int intersect(long[] a, int size, PositionList b) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size && j < b.size; i++) {
+            long value = a[i];
+            while (j < b.size && b.values[j] < value) {
+                j++;
+            }
+            if (j < b.size && b.values[j] == value) {
+                a[kept++] = value;
+            }
+        }
+        return kept;
+    }
+
+    private PositionList lookUp(String term) {
+        PositionList list = new PositionList();
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        for (Segment segment : segments) {
+            int i = segment.find(key);
+            if (i >= 0) {
+                segment.decodeInto(i, list);
+            }
+        }
+        PostingList livePostings = live.get(term);
+        if (livePostings != null) {
+            livePostings.decodeInto(list);
+        }
+        return list;
+    }
+
+    /**
+     * @return The terms of the query, as they are stored in the index
+     */
+    static Set<String> parseQuery(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String part : query.trim().split("\\s+")) {
+            String lower = part.toLowerCase(Locale.ROOT);
+            if (part.isEmpty() || part.equals("AND")) {
+                continue;
+            }
+            if (lower.startsWith(SENDER) && lower.length() > SENDER.length()) {
+                terms.add(lower);
+            } else if (lower.equals(PRIVATE) || lower.equals(SENT)) {
+                terms.add(lower);
+            } else {
+                tokenize(part, terms::add);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Split a text into lower-case words of letters and digits.
+     */
+    static void tokenize(String text, Consumer<String> out) {
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(text.codePointAt(i))) {
+                i += Character.charCount(text.codePointAt(i));
+            }
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.codePointAt(i))) {
+                i += Character.charCount(text.codePointAt(i));
+            }
+            if (i > start && i - start <= MAX_TOKEN_LENGTH) {
+                out.accept(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private static void decode(ByteBuffer buffer, int from, int to, int count, PositionList out) {
+        long position = 0;
+        int p = from;
+        for (int k = 0; k < count && p < to; k++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(p++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            position += delta;
+            out.add(position);
+        }
+    }
+
+    /**
+     * @return Position in the journal up to which the records are indexed
+     */
+    public synchronized long getIndexedEnd() {
+        return indexedEnd;
+    }
+
+    /**
+     * @return Number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Index the new records in the background, unless that is scheduled already. Called for the
+     * received messages by the listener methods; call it after sending a message too, the client
+     * writes the sent messages to the journal without notifying the listeners.
+     */
+    public void scheduleCatchUp() {
+        if (catchUpScheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                catchUpScheduled.set(false);
+                catchUp();
+            });
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        scheduleCatchUp();
+    }
+
+    @Override
+    public void onMessagesReceived(List<TextMessage> messages) {
+        // The messages are in the journal already, the client writes them there first
+        scheduleCatchUp();
+    }
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onReconnected() {
+        // The messages kept during the outage are sent and written to the journal now
+        scheduleCatchUp();
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    /**
+     * Write the records indexed in memory to disk, so that they need not be indexed again after a
+     * restart. The journal is not closed.
+     *
+     * @throws IOException When the segment can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            flush();
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,657 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Persistent history of the chat messages sent and received: an append-only log of memory-mapped
+ * segment files in one directory. Appending a message encodes it straight into the mapped segment,
+ * without allocation and without system calls, so it can be done on the receiving thread. The
+ * operating system writes the pages to disk; they are also forced to disk once a second, and when
+ * a segment is full.
+ *
+ * Record format (big-endian): body length (int), CRC32C of the body (int), body, body length again
+ * (int, for reading backwards). Body: timestamp in milliseconds (long), flags (byte: 1 = outgoing,
+ * 2 = private), length of the peer name (unsigned short), peer name and text in UTF-8. The length
+ * is written last, so a record becomes visible only when it is complete. After a crash, the last
+ * segment is checked record by record and everything after the last valid record is erased.
+ *
+ * A record is identified by its position: the base position of its segment (in the file name) plus
+ * its offset in the segment. When the active segment is full, a new one is started. The oldest
+ * segments are deleted when they are older than the maximum age, or when the journal is bigger than
+ * the maximum size. All the methods are thread-safe.
+ */
+public class HistoryJournal implements Closeable {
+    private static final System.Logger LOGGER = System.getLogger(HistoryJournal.class.getName());
+    private static final int MAGIC = 0x43484a31; // "CHJ1"
+    private static final int SEGMENT_HEADER = 8;
+    // Length, checksum, length again
+    private static final int RECORD_OVERHEAD = 12;
+    // Timestamp, flags, length of the peer name
+    private static final int BODY_HEADER = 11;
+    private static final byte OUTGOING = 1;
+    private static final byte PRIVATE = 2;
+    private static final String PREFIX = "history-";
+    private static final String SUFFIX = ".log";
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    // One thread forces the journals to disk, so that the writers never wait for it
+    private static final ScheduledExecutorService SYNC_TIMER =
+            Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "chat-journal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * A segment file. The active one is mapped for writing, the older ones are mapped read-only
+     * when they are read for the first time.
+     */
+    private static final class Segment {
+        final long base;
+        final Path path;
+        final int capacity;
+        MappedByteBuffer buffer;
+        // Offset after the last record, -1 if not known yet
+        int end = -1;
+
+        Segment(long base, Path path, int capacity) {
+            this.base = base;
+            this.path = path;
+            this.capacity = capacity;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxAgeMillis;
+    private final long maxTotalBytes;
+
+    // All the segments by base position, oldest first. Guarded by this, like the fields below.
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private FileChannel activeChannel;
+    private final CRC32C crc = new CRC32C();
+    private long totalBytes = 0;
+    private boolean unsynced = false;
+    private boolean closed = false;
+    private final ScheduledFuture<?> syncTask;
+
+    /**
+     * Open the journal in the given directory, with segments of 8 MB, kept for 30 days and up to
+     * 256 MB in total.
+     *
+     * @param directory The directory of the segment files, created if it does not exist
+     * @throws IOException When the directory or the last segment can't be opened
+     */
+    public HistoryJournal(Path directory) throws IOException {
+        this(directory, 8 << 20, TimeUnit.DAYS.toMillis(30), 256L << 20);
+    }
+
+    /**
+     * Open the journal in the given directory.
+     *
+     * @param directory     The directory of the segment files, created if it does not exist
+     * @param segmentSize   Size of a segment file in bytes. Also the limit for the size of a record.
+     * @param maxAgeMillis  Segments whose messages are all older than this are deleted, 0 to keep
+     *                      them forever
+     * @param maxTotalBytes The oldest segments are deleted when all together are bigger than this,
+     *                      0 for no limit
+     * @throws IOException When the directory or the last segment can't be opened
+     */
+    public HistoryJournal(Path directory, int segmentSize, long maxAgeMillis, long maxTotalBytes)
+            throws IOException {
+        if (segmentSize < 1024 || maxAgeMillis < 0 || maxTotalBytes < 0) {
+            throw new IllegalArgumentException("Invalid journal limits");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxTotalBytes = maxTotalBytes;
+        Files.createDirectories(directory);
+        synchronized (this) {
+            findSegments();
+            if (segments.isEmpty()) {
+                startSegment(0);
+            } else {
+                openLastSegment();
+            }
+            expireSegments();
+        }
+        syncTask = SYNC_TIMER.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void findSegments() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long base = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                    long size = Files.size(file);
+                    if (size > Integer.MAX_VALUE) {
+                        continue;
+                    }
+                    segments.put(base, new Segment(base, file, (int) size));
+                    totalBytes += size;
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+    }
+
+    /**
+     * Map the newest segment for writing and find its end. Whatever follows the last valid record
+     * was being written during a crash and is erased.
+     */
+    private void openLastSegment() throws IOException {
+        Segment last = segments.lastEntry().getValue();
+        FileChannel channel = FileChannel.open(last.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer;
+        if (last.capacity < SEGMENT_HEADER + RECORD_OVERHEAD
+                || (buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, last.capacity)).getInt(0) != MAGIC) {
+            // Crashed while the segment was created: start again
+            channel.close();
+            segments.remove(last.base);
+            totalBytes -= last.capacity;
+            Files.delete(last.path);
+            startSegment(last.base);
+            return;
+        }
+        int end = SEGMENT_HEADER;
+        int next;
+        while ((next = validRecordEnd(buffer, end, last.capacity, true)) > 0) {
+            end = next;
+        }
+        if (end + 4 <= last.capacity && buffer.getInt(end) != 0) {
+            LOGGER.log(Level.WARNING, "History journal: erasing an incomplete record at the end of " + last.path);
+            for (int i = end; i < last.capacity; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+        last.buffer = buffer;
+        last.end = end;
+        active = last;
+        activeChannel = channel;
+    }
+
+    /**
+     * Create a new, empty segment and make it the active one.
+     */
+    private void startSegment(long base) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, base, SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer.putInt(0, MAGIC);
+        Segment segment = new Segment(base, path, segmentSize);
+        segment.buffer = buffer;
+        segment.end = SEGMENT_HEADER;
+        segments.put(base, segment);
+        totalBytes += segmentSize;
+        active = segment;
+        activeChannel = channel;
+    }
+
+    /**
+     * Check the record at the given offset.
+     *
+     * @param verify When true, the checksum is verified too
+     * @return Offset after the record, or -1 if there is no valid record
+     */
+    private int validRecordEnd(ByteBuffer buffer, int offset, int capacity, boolean verify) {
+        if (offset + RECORD_OVERHEAD > capacity) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        if (length < BODY_HEADER || length > capacity - offset - RECORD_OVERHEAD
+                || buffer.getInt(offset + 8 + length) != length) {
+            return -1;
+        }
+        if (verify) {
+            crc.reset();
+            ByteBuffer body = buffer.duplicate();
+            body.limit(offset + 8 + length).position(offset + 8);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                return -1;
+            }
+        }
+        return offset + RECORD_OVERHEAD + length;
+    }
+
+    /**
+     * Append a message received from the server. The sender and the text may be any character
+     * sequences (for example, views into the receive buffer), nothing is allocated.
+     *
+     * @param timestamp When the message was received, in milliseconds since the epoch
+     * @param priv      When true, the message is private
+     * @param sender    The sender
+     * @param text      Text of the message
+     * @return true on success, false if the journal is closed, the message does not fit in a
+     *         segment, or a new segment can't be created
+     */
+    public boolean appendReceived(long timestamp, boolean priv, CharSequence sender, CharSequence text) {
+        return append(timestamp, false, priv, sender, text);
+    }
+
+    /**
+     * Append a message sent by us.
+     *
+     * @param timestamp When the message was sent, in milliseconds since the epoch
+     * @param recipient The recipient of a private message, null for a public message
+     * @param text      Text of the message
+     * @return true on success, false if the journal is closed, the message does not fit in a
+     *         segment, or a new segment can't be created
+     */
+    public boolean appendSent(long timestamp, CharSequence recipient, CharSequence text) {
+        return append(timestamp, true, recipient != null, recipient != null ? recipient : "", text);
+    }
+
+    private synchronized boolean append(long timestamp, boolean outgoing, boolean priv, CharSequence peer,
+                                        CharSequence text) {
+        if (closed) {
+            return false;
+        }
+        int peerBytes = utf8Length(peer);
+        int bodyLength = BODY_HEADER + peerBytes + utf8Length(text);
+        int recordLength = RECORD_OVERHEAD + bodyLength;
+        if (peerBytes > 0xFFFF || SEGMENT_HEADER + recordLength > segmentSize) {
+            return false;
+        }
+        if (active.end + recordLength > active.capacity && !rollSegment()) {
+            return false;
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.end;
+        int body = offset + 8;
+        buffer.putLong(body, timestamp);
+        buffer.put(body + 8, (byte) ((outgoing ? OUTGOING : 0) | (priv ? PRIVATE : 0)));
+        buffer.putShort(body + 9, (short) peerBytes);
+        int textStart = putUtf8(buffer, body + BODY_HEADER, peer);
+        putUtf8(buffer, textStart, text);
+        buffer.putInt(body + bodyLength, bodyLength);
+        crc.reset();
+        buffer.limit(body + bodyLength).position(body);
+        crc.update(buffer);
+        buffer.clear();
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        // The length goes last: until it is written, the record does not exist
+        buffer.putInt(offset, bodyLength);
+        active.end = offset + recordLength;
+        unsynced = true;
+        return true;
+    }
+
+    /**
+     * Seal the full active segment and start the next one.
+     *
+     * @return false if the new segment can't be created
+     */
+    private boolean rollSegment() {
+        Segment full = active;
+        FileChannel fullChannel = activeChannel;
+        try {
+            startSegment(full.base + full.capacity);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "History journal: could not start a new segment: " + e.getMessage());
+            return false;
+        }
+        // Flushing the full segment takes a while, the writer does not wait for it
+        SYNC_TIMER.execute(() -> {
+            full.buffer.force();
+            try {
+                fullChannel.close();
+            } catch (IOException e) {
+                // The mapping stays valid
+            }
+        });
+        expireSegments();
+        return true;
+    }
+
+    /**
+     * Delete the oldest segments while they are too old, or while the journal is too big. The
+     * active segment is never deleted.
+     */
+    private void expireSegments() {
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean tooBig = maxTotalBytes > 0 && totalBytes > maxTotalBytes;
+            // Every message in a segment is older than the first message of the next one
+            boolean tooOld = maxAgeMillis > 0 && firstTimestamp(segments.higherEntry(oldest.base).getValue()) < oldestAllowed;
+            if (!tooBig && !tooOld) {
+                return;
+            }
+            segments.remove(oldest.base);
+            totalBytes -= oldest.capacity;
+            oldest.buffer = null;
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "History journal: could not delete " + oldest.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Timestamp of the first record in the segment, Long.MAX_VALUE if it is empty
+     */
+    private long firstTimestamp(Segment segment) {
+        if (segment.buffer != null) {
+            return segment.buffer.getInt(SEGMENT_HEADER) > 0 ? segment.buffer.getLong(SEGMENT_HEADER + 8) : Long.MAX_VALUE;
+        }
+        // Read just the first record header, without mapping the whole segment
+        ByteBuffer header = ByteBuffer.allocate(16);
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            channel.read(header, SEGMENT_HEADER);
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+        return header.getInt(0) > 0 ? header.getLong(8) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Force the changes of the active segment to disk. Called once a second by the sync timer; the
+     * writers are not blocked meanwhile.
+     */
+    public void sync() {
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            if (closed || !unsynced) {
+                return;
+            }
+            unsynced = false;
+            buffer = active.buffer;
+        }
+        buffer.force();
+    }
+
+    /**
+     * @return Position after the newest record: the next record will be written at or after it
+     */
+    public synchronized long getEndPosition() {
+        return active.base + active.end;
+    }
+
+    /**
+     * @return Position of the oldest segment: every record still in the journal is at or after it
+     */
+    public synchronized long getStartPosition() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @param entry A record read from this journal
+     * @return Position right after the record, where {@link #scan(long, Consumer)} continues with
+     *         the next one
+     */
+    public long positionAfter(HistoryEntry entry) {
+        return entry.getPosition() + RECORD_OVERHEAD + BODY_HEADER + utf8Length(entry.getPeer())
+                + utf8Length(entry.getText());
+    }
+
+    /**
+     * @return Number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return Size of all the segment files together, in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Read the record at the given position.
+     *
+     * @param position Position of a record, as returned by {@link HistoryEntry#getPosition()}
+     * @return The entry, or null if there is no record at the position (for example, it has expired)
+     */
+    public HistoryEntry read(long position) {
+        Segment segment;
+        ByteBuffer buffer;
+        int end;
+        synchronized (this) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(position);
+            if (e == null) {
+                return null;
+            }
+            segment = e.getValue();
+            buffer = mapForReading(segment);
+            end = segment.end;
+        }
+        int offset = (int) (position - segment.base);
+        if (buffer == null || offset < SEGMENT_HEADER || offset >= end || validRecordEnd(buffer, offset, end, false) < 0) {
+            return null;
+        }
+        return decode(buffer, segment.base, offset);
+    }
+
+    /**
+     * Read the newest records.
+     *
+     * @param count Maximum number of records
+     * @return The records, oldest first
+     */
+    public List<HistoryEntry> readLast(int count) {
+        return readBefore(Long.MAX_VALUE, count);
+    }
+
+    /**
+     * Read the records just before a position, for example to load older history when the user
+     * scrolls up.
+     *
+     * @param position The position of a record, or {@link #getEndPosition()}
+     * @param count    Maximum number of records
+     * @return The records before the position, oldest first. Empty when there are no older ones.
+     */
+    public List<HistoryEntry> readBefore(long position, int count) {
+        List<HistoryEntry> entries = new ArrayList<>(Math.min(count, 1024));
+        long limit = position;
+        while (entries.size() < count) {
+            Segment segment;
+            ByteBuffer buffer;
+            int end;
+            synchronized (this) {
+                Map.Entry<Long, Segment> e = segments.lowerEntry(limit);
+                if (e == null) {
+                    break;
+                }
+                segment = e.getValue();
+                buffer = mapForReading(segment);
+                end = segment.end;
+            }
+            if (buffer != null) {
+                int offset = (int) Math.min(end, limit - segment.base);
+                // Walk backwards, using the length at the end of every record
+                while (offset > SEGMENT_HEADER && entries.size() < count) {
+                    int length = buffer.getInt(offset - 4);
+                    offset -= RECORD_OVERHEAD + length;
+                    entries.add(decode(buffer, segment.base, offset));
+                }
+            }
+            limit = segment.base;
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    /**
+     * Pass all the records from a position on to a consumer, oldest first. The records appended
+     * during the scan may or may not be included.
+     *
+     * @param position The position to start from: 0 for the oldest record, the position of a
+     *                 record, or {@link #positionAfter(HistoryEntry)} of one
+     * @param consumer Receives the records
+     */
+    public void scan(long position, Consumer<HistoryEntry> consumer) {
+        long from = position;
+        while (true) {
+            Segment segment;
+            ByteBuffer buffer;
+            int end;
+            synchronized (this) {
+                Map.Entry<Long, Segment> e = segments.floorEntry(from);
+                if (e == null || from >= e.getKey() + e.getValue().capacity) {
+                    // Before the oldest segment (expired meanwhile) or after the end of a segment
+                    e = segments.higherEntry(from);
+                }
+                if (e == null) {
+                    return;
+                }
+                segment = e.getValue();
+                buffer = mapForReading(segment);
+                end = segment.end;
+            }
+            if (buffer != null) {
+                int offset = (int) Math.max(SEGMENT_HEADER, from - segment.base);
+                while (offset < end) {
+                    consumer.accept(decode(buffer, segment.base, offset));
+                    offset += RECORD_OVERHEAD + buffer.getInt(offset);
+                }
+            }
+            from = segment.base + segment.capacity;
+        }
+    }
+
+    /**
+     * Get a read-only view of a segment, mapping it if needed. Must be called with the lock held.
+     *
+     * @return The view, or null if the segment can't be read
+     */
+    private ByteBuffer mapForReading(Segment segment) {
+        if (segment.buffer == null) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.capacity);
+                if (segment.capacity < SEGMENT_HEADER || buffer.getInt(0) != MAGIC) {
+                    return null;
+                }
+                // A sealed segment: its records were checked when it was the active one
+                int end = SEGMENT_HEADER;
+                int next;
+                while ((next = validRecordEnd(buffer, end, segment.capacity, false)) > 0) {
+                    end = next;
+                }
+                segment.buffer = buffer;
+                segment.end = end;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "History journal: could not read " + segment.path + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return segment.buffer.duplicate();
+    }
+
+    private static HistoryEntry decode(ByteBuffer buffer, long base, int offset) {
+        int length = buffer.getInt(offset);
+        int body = offset + 8;
+        long timestamp = buffer.getLong(body);
+        byte flags = buffer.get(body + 8);
+        int peerBytes = buffer.getShort(body + 9) & 0xFFFF;
+        byte[] bytes = new byte[length - BODY_HEADER];
+        buffer.get(body + BODY_HEADER, bytes);
+        String peer = new String(bytes, 0, peerBytes, StandardCharsets.UTF_8);
+        String text = new String(bytes, peerBytes, bytes.length - peerBytes, StandardCharsets.UTF_8);
+        return new HistoryEntry(base + offset, timestamp, (flags & OUTGOING) != 0, (flags & PRIVATE) != 0, peer,
+                text);
+    }
+
+    /**
+     * @return Number of bytes of the text in UTF-8. Unpaired surrogates are counted as '?', like
+     *         the standard encoder does.
+     */
+    private static int utf8Length(CharSequence s) {
+        int length = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encode the text in UTF-8 into the buffer, at the given offset.
+     *
+     * @return Offset after the encoded text
+     */
+    private static int putUtf8(ByteBuffer buffer, int offset, CharSequence s) {
+        int p = offset;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put(p++, (byte) c);
+            } else if (c < 0x800) {
+                buffer.put(p++, (byte) (0xC0 | (c >> 6)));
+                buffer.put(p++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put(p++, (byte) (0xF0 | (cp >> 18)));
+                buffer.put(p++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put(p++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put(p++, (byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put(p++, (byte) '?');
+            } else {
+                buffer.put(p++, (byte) (0xE0 | (c >> 12)));
+                buffer.put(p++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put(p++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Force everything to disk and close the journal. Appending is not possible afterwards; the
+     * records which were read stay valid.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        syncTask.cancel(false);
+        active.buffer.force();
+        activeChannel.close();
+    }
+}
@@ -0,0 +1,140 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.System.Logger.Level;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in the listener registry for a listener which was too slow to be called on the receiving
+ * thread. The calls are put into a bounded queue and made by a worker of the client executor, in
+ * the same order. When the queue is full, the new calls are dropped (and counted), so the slow
+ * listener can never hold up the receiving thread again.
+ */
+final class IsolatedListener implements ChatListener {
+    private static final System.Logger LOGGER = System.getLogger(IsolatedListener.class.getName());
+
+    // Put into the queue to stop the worker
+    private static final Runnable STOP = () -> {
+    };
+
+    private final ChatListener delegate;
+    private final BlockingQueue<Runnable> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * @param delegate The slow listener
+     * @param capacity How many calls may wait in the queue
+     * @param executor Runs the worker which calls the listener
+     */
+    IsolatedListener(ChatListener delegate, int capacity, Executor executor) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        executor.execute(this::work);
+    }
+
+    /**
+     * @return The slow listener
+     */
+    ChatListener getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return Number of calls dropped because the queue was full
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop the worker. The calls still in the queue are discarded.
+     */
+    void stop() {
+        running = false;
+        queue.clear();
+        queue.offer(STOP);
+    }
+
+    private void enqueue(Runnable call) {
+        if (running && !queue.offer(call)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                Runnable call = queue.take();
+                if (call == STOP) {
+                    return;
+                }
+                try {
+                    call.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Listener " + delegate.getClass().getName() + " failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+        enqueue(delegate::onDisconnect);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        enqueue(() -> delegate.onLoginResult(success, errMsg));
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        enqueue(() -> delegate.onMessageReceived(message));
+    }
+
+    @Override
+    public void onMessagesReceived(List<TextMessage> messages) {
+        enqueue(() -> delegate.onMessagesReceived(messages));
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        enqueue(() -> delegate.onMessageError(errMsg));
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        enqueue(() -> delegate.onUserList(usernames));
+    }
+
+    @Override
+    public void onUsersChanged(String[] joined, String[] left) {
+        enqueue(() -> delegate.onUsersChanged(joined, left));
+    }
+
+    @Override
+    public void onReconnected() {
+        enqueue(delegate::onReconnected);
+    }
+
+    @Override
+    public void onReconnectFailed(String errMsg) {
+        enqueue(() -> delegate.onReconnectFailed(errMsg));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        enqueue(() -> delegate.onSupportedCommands(commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        enqueue(() -> delegate.onCommandError(errMsg));
+    }
+}
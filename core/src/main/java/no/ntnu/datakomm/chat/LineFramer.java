@@ -0,0 +1,142 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Collects the bytes received from the server and splits them into lines (one line is one command).
+ * The lines are not copied anywhere: the handler gets the position of every complete line inside the
+ * receive buffer. An incomplete line stays in the buffer until the rest of it arrives.
+ */
+class LineFramer {
+    static final int INITIAL_SIZE = 8 * 1024;
+    // A line longer than this is considered a protocol error
+    static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    /**
+     * Receives the complete lines found in the buffer.
+     */
+    interface LineHandler {
+        /**
+         * Handle one line. The line terminator ("\n" or "\r\n") is not included. The buffer content
+         * is valid only during this call.
+         *
+         * @param buffer The receive buffer
+         * @param start  Index of the first byte of the line
+         * @param end    Index after the last byte of the line
+         * @return true to continue with the next line, false to stop (for example when the
+         * connection got closed by the handler)
+         */
+        boolean onLine(ByteBuffer buffer, int start, int end);
+    }
+
+    private final boolean direct;
+    // Kept in "write mode": position is the end of the received data
+    private ByteBuffer buffer;
+    // How many bytes in the beginning of the buffer have already been checked for '\n'
+    private int scanned = 0;
+
+    /**
+     * @param direct When true, use a direct buffer (for socket channels), otherwise a heap buffer
+     *               (for input streams)
+     */
+    LineFramer(boolean direct) {
+        this(direct, INITIAL_SIZE);
+    }
+
+    /**
+     * @param direct      When true, use a direct buffer, otherwise a heap buffer
+     * @param initialSize Initial size of the buffer, it grows when a line does not fit
+     */
+    LineFramer(boolean direct, int initialSize) {
+        this.direct = direct;
+        this.buffer = allocate(initialSize);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Read available bytes from a channel into the buffer.
+     *
+     * @return Number of bytes read, -1 on end of stream
+     * @throws IOException When reading fails
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        return channel.read(buffer);
+    }
+
+    /**
+     * Read bytes from a stream into the buffer. Blocks until at least one byte is available.
+     * Works only with a heap buffer.
+     *
+     * @return Number of bytes read, -1 on end of stream
+     * @throws IOException When reading fails
+     */
+    int readFrom(InputStream in) throws IOException {
+        int bytesRead = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+        if (bytesRead > 0) {
+            buffer.position(buffer.position() + bytesRead);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * @return Number of received bytes which are not yet consumed as complete lines
+     */
+    int bufferedBytes() {
+        return buffer.position();
+    }
+
+    /**
+     * Pass all the complete lines in the buffer to the handler. If the handler throws, the line it
+     * got is consumed, the rest stays in the buffer and the exception is passed on.
+     *
+     * @param handler The handler
+     * @return false if the buffer is full of one line that exceeds the maximum line length,
+     * true otherwise
+     */
+    boolean drainLines(LineHandler handler) {
+        buffer.flip();
+        int lineStart = 0;
+        int end = buffer.limit();
+        int scanEnd = end;
+        try {
+            for (int i = scanned; i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    int start = lineStart;
+                    int lineEnd = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    lineStart = i + 1;
+                    // If the handler stops or throws, the rest is scanned again next time
+                    scanEnd = lineStart;
+                    if (!handler.onLine(buffer, start, lineEnd)) {
+                        break;
+                    }
+                    scanEnd = end;
+                }
+            }
+        } finally {
+            // Back to write mode even when the handler failed, otherwise the next read would
+            // overwrite the bytes which are not consumed yet
+            buffer.position(lineStart);
+            buffer.compact();
+            scanned = scanEnd - lineStart;
+        }
+
+        if (!buffer.hasRemaining()) {
+            // The buffer is full of one incomplete line, make room for the rest of it
+            if (buffer.capacity() >= MAX_LINE_LENGTH) {
+                return false;
+            }
+            ByteBuffer bigger = allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The listeners of one TCPClient. The listeners are kept in an array which is never modified: every
+ * registration or removal creates a new array and swaps it in with compare-and-set. The receiving
+ * thread takes the current array and loops over it without locks and without creating an iterator,
+ * while other threads (the GUI, tests) add and remove listeners at any time.
+ *
+ * Registration copies the array, which is fine because listeners are registered rarely compared to
+ * how often events are dispatched.
+ */
+class ListenerRegistry {
+    private static final ChatListener[] EMPTY = new ChatListener[0];
+
+    private final AtomicReference<ChatListener[]> listeners = new AtomicReference<>(EMPTY);
+
+    /**
+     * Register a listener, unless it is registered already.
+     *
+     * @param listener The listener to add
+     * @return true if the listener was added
+     */
+    boolean add(ChatListener listener) {
+        while (true) {
+            ChatListener[] current = listeners.get();
+            if (indexOf(current, listener) >= 0) {
+                return false;
+            }
+            ChatListener[] updated = new ChatListener[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = listener;
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener The listener to remove
+     * @return true if the listener was registered
+     */
+    boolean remove(ChatListener listener) {
+        while (true) {
+            ChatListener[] current = listeners.get();
+            int index = indexOf(current, listener);
+            if (index < 0) {
+                return false;
+            }
+            ChatListener[] updated;
+            if (current.length == 1) {
+                updated = EMPTY;
+            } else {
+                updated = new ChatListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            }
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Put another listener in the place of a registered one.
+     *
+     * @param listener    The registered listener
+     * @param replacement The listener which takes its place
+     * @return true if the listener was registered
+     */
+    boolean replace(ChatListener listener, ChatListener replacement) {
+        while (true) {
+            ChatListener[] current = listeners.get();
+            int index = indexOf(current, listener);
+            if (index < 0) {
+                return false;
+            }
+            ChatListener[] updated = current.clone();
+            updated[index] = replacement;
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private static int indexOf(ChatListener[] array, ChatListener listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the listeners registered right now. The returned array must not be modified.
+     *
+     * @return The current listeners
+     */
+    ChatListener[] snapshot() {
+        return listeners.get();
+    }
+
+    /**
+     * @return true if there are no listeners
+     */
+    boolean isEmpty() {
+        return listeners.get().length == 0;
+    }
+
+    /**
+     * @return Number of registered listeners
+     */
+    int size() {
+        return listeners.get().length;
+    }
+}
@@ -0,0 +1,244 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The socket of one TCPClient in NIO transport mode. Incoming bytes are read by the selector thread
+ * of a {@link NioEventLoop} into a direct buffer, split into lines on '\n' and passed to the client
+ * one line (one command) at a time, without copying. Outgoing batches of commands are written
+ * directly from the calling thread with one gathering write whenever the socket accepts them, the
+ * rest is queued and written when the socket becomes writable.
+ */
+class NioChannel implements CommandBatcher.Sink {
+    private static final System.Logger LOGGER = System.getLogger(NioChannel.class.getName());
+
+    private final TCPClient client;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+
+    // Used only by the selector thread
+    private final LineFramer framer;
+    private SelectionKey key;
+
+    // Data which the socket did not accept yet. Guarded by itself.
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    private NioChannel(TCPClient client, NioEventLoop loop, SocketChannel channel, int readBufferSize) {
+        this.framer = new LineFramer(true, readBufferSize);
+        this.client = client;
+        this.loop = loop;
+        this.channel = channel;
+    }
+
+    /**
+     * Open a connection to the chat server and register it in the event loop. The connection itself
+     * is established in blocking mode (on the calling thread), after that the channel is switched to
+     * non-blocking mode.
+     *
+     * @param client The client which will receive the incoming lines
+     * @param loop   The event loop to serve this channel
+     * @param host   Host name or IP address of the chat server
+     * @param port   TCP port of the chat server
+     * @param tcpNoDelay When true, Nagle's algorithm is disabled on the socket
+     * @param readBufferSize Initial size of the receive buffer, in bytes
+     * @return The connected channel
+     * @throws IOException When connection fails
+     */
+    static NioChannel open(TCPClient client, NioEventLoop loop, String host, int port,
+                           boolean tcpNoDelay, int readBufferSize) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.connect(new InetSocketAddress(host, port));
+            socketChannel.configureBlocking(false);
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        NioChannel nioChannel = new NioChannel(client, loop, socketChannel, readBufferSize);
+        loop.execute(nioChannel::register);
+        return nioChannel;
+    }
+
+    /**
+     * Register the channel in the selector. Reading is not enabled until {@link #setReading(boolean)}.
+     */
+    private void register() {
+        try {
+            key = channel.register(loop.selector(), 0, this);
+        } catch (ClosedChannelException e) {
+            // Closed before it got registered, nothing to do
+        }
+    }
+
+    /**
+     * Start (true) or stop (false) delivering incoming lines to the client.
+     *
+     * @param enabled When true, the socket is read whenever data arrives
+     */
+    void setReading(boolean enabled) {
+        loop.execute(() -> setInterest(SelectionKey.OP_READ, enabled));
+    }
+
+    /**
+     * Write a batch of encoded commands to the server with one gathering write. Whatever the socket
+     * does not accept now is queued.
+     *
+     * @param batch Encoded commands
+     * @param count How many first elements of the array to write
+     * @throws IOException When the socket is broken
+     */
+    @Override
+    public void writeBatch(ByteBuffer[] batch, int count) throws IOException {
+        synchronized (writeQueue) {
+            int written = 0;
+            if (writeQueue.isEmpty()) {
+                channel.write(batch, 0, count);
+                while (written < count && !batch[written].hasRemaining()) {
+                    written++;
+                }
+                if (written == count) {
+                    return;
+                }
+                // The socket buffer is full, the rest will be written when the socket is writable
+                loop.execute(() -> setInterest(SelectionKey.OP_WRITE, true));
+            }
+            for (int i = written; i < count; i++) {
+                writeQueue.add(batch[i]);
+            }
+        }
+    }
+
+    /**
+     * Turn Nagle's algorithm off (true) or on (false).
+     *
+     * @param on The value of the TCP_NODELAY socket option
+     * @throws IOException When the option can't be set
+     */
+    void setTcpNoDelay(boolean on) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, on);
+    }
+
+    /**
+     * Called by the event loop when the channel is ready for reading or writing.
+     *
+     * @param readyKey The selection key of this channel
+     */
+    void handleReady(SelectionKey readyKey) {
+        if (!readyKey.isValid()) {
+            return;
+        }
+        if (readyKey.isWritable()) {
+            flushWriteQueue();
+        }
+        if (readyKey.isValid() && readyKey.isReadable()) {
+            readLines();
+        }
+    }
+
+    /**
+     * Read whatever is available on the socket and pass all the complete lines to the client. An
+     * incomplete line stays in the buffer until the rest of it arrives.
+     */
+    private void readLines() {
+        FlightEvents.SocketRead event = FlightEvents.beginSocketRead();
+        int bytesRead;
+        try {
+            bytesRead = framer.readFrom(channel);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        TCPClient.endSocketRead(event, true, bytesRead);
+        if (bytesRead < 0) {
+            abort();
+            return;
+        }
+        boolean ok;
+        try {
+            ok = client.handleReceivedData(framer);
+        } catch (RuntimeException e) {
+            // A listener failed. Only this connection is closed, the loop serves the other clients.
+            LOGGER.log(Level.WARNING,
+                    "Error while handling the data from the server, closing the connection", e);
+            abort();
+            return;
+        }
+        if (!ok) {
+            LOGGER.log(Level.WARNING, "Too long line received from the server, closing the connection");
+            abort();
+        }
+    }
+
+    /**
+     * Write the queued data to the socket, as much as it accepts.
+     */
+    private void flushWriteQueue() {
+        synchronized (writeQueue) {
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer head = writeQueue.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                setInterest(SelectionKey.OP_WRITE, false);
+                return;
+            } catch (IOException e) {
+                // Aborted below, outside the lock
+            }
+        }
+        // Not under the lock of the queue: abort() takes the locks of the client and of its batcher,
+        // and the sending threads take those first and this one last
+        abort();
+    }
+
+    /**
+     * Turn an interest operation on or off. Must be called on the selector thread.
+     */
+    private void setInterest(int op, boolean enabled) {
+        if (key != null && key.isValid()) {
+            int ops = key.interestOps();
+            key.interestOps(enabled ? ops | op : ops & ~op);
+        }
+    }
+
+    /**
+     * @return true while the socket is open
+     */
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Close the socket. Called when the client disconnects by itself.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.DEBUG, "Error while closing the channel: " + e.getMessage());
+        }
+        synchronized (writeQueue) {
+            writeQueue.clear();
+        }
+    }
+
+    /**
+     * Close the socket because the connection is lost, and let the client know about it.
+     */
+    void abort() {
+        close();
+        client.onConnectionLost();
+    }
+}
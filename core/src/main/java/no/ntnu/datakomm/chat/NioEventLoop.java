@@ -0,0 +1,137 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger.Level;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread which serves the sockets of many TCPClient instances running in NIO
+ * transport mode. Instead of starting one blocking listening thread per connection, every client
+ * registers its channel here, and the loop reads incoming bytes and hands complete lines back to
+ * the client that owns the channel.
+ */
+public class NioEventLoop implements Closeable {
+    private static final System.Logger LOGGER = System.getLogger(NioEventLoop.class.getName());
+
+    private static NioEventLoop sharedLoop = null;
+
+    private final Selector selector;
+    private final Thread selectorThread;
+    // Tasks submitted from other threads, executed on the selector thread between select() calls.
+    // All the SelectionKey manipulation is done through these tasks.
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * Create a new event loop and start its selector thread.
+     *
+     * @throws IOException When the selector can't be opened
+     */
+    public NioEventLoop() throws IOException {
+        selector = Selector.open();
+        selectorThread = new Thread(this::run, "chat-nio-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Get the event loop shared by all the clients which did not ask for a dedicated one.
+     *
+     * @return The shared event loop, started on first use
+     */
+    public static synchronized NioEventLoop shared() {
+        if (sharedLoop == null || !sharedLoop.running) {
+            try {
+                sharedLoop = new NioEventLoop();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the NIO selector", e);
+            }
+        }
+        return sharedLoop;
+    }
+
+    /**
+     * @return The selector used by this loop. Must be used on the selector thread only.
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return true when called from the selector thread of this loop
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == selectorThread;
+    }
+
+    /**
+     * @return The number of channels currently registered in this loop
+     */
+    public int getChannelCount() {
+        return selector.isOpen() ? selector.keys().size() : 0;
+    }
+
+    /**
+     * The selector loop. Runs until the loop is closed.
+     */
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                runPendingTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioChannel channel = (NioChannel) key.attachment();
+                    channel.handleReady(key);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "NIO selector error: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // A misbehaving listener must not kill the loop for all the other clients
+                LOGGER.log(Level.ERROR, "Unexpected error in NIO selector thread", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((NioChannel) key.attachment()).abort();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error while closing the NIO selector: " + e.getMessage());
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Stop the selector thread and close all the channels registered in this loop.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
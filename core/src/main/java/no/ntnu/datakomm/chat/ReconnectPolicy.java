@@ -0,0 +1,53 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a {@link TCPClient} connects again after losing the connection: exponential backoff with full
+ * jitter. Before attempt n (counting from 0) the client waits a random time between 0 and
+ * min(maxDelay, initialDelay * 2^n). The randomness spreads the clients over the whole interval, so
+ * that when a server restarts, its clients don't all connect at the same moment.
+ */
+final class ReconnectPolicy {
+    // The client gives up after this many rejected logins in a row. The first rejections are
+    // expected: the server may still hold the login of the lost connection for a while.
+    static final int MAX_LOGIN_REJECTIONS = 5;
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final int outboxCapacity;
+
+    /**
+     * @param initialDelayMillis The longest wait before the first attempt
+     * @param maxDelayMillis     The longest wait before any attempt
+     * @param outboxCapacity     How many messages are kept while the connection is down
+     */
+    ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int outboxCapacity) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+        this.outboxCapacity = outboxCapacity;
+    }
+
+    /**
+     * @param attempt Number of the attempt, 0 for the first one after the connection was lost
+     * @return How long to wait before the attempt, in milliseconds
+     */
+    long delayMillis(int attempt) {
+        return ThreadLocalRandom.current().nextLong(ceilingMillis(attempt) + 1);
+    }
+
+    /**
+     * @return The longest wait before the attempt, in milliseconds
+     */
+    long ceilingMillis(int attempt) {
+        // No overflow: the delay has reached the maximum long before 2^62
+        int shift = Math.min(attempt, 62);
+        long ceiling = initialDelayMillis << shift;
+        return ceiling < 0 || (ceiling >> shift) != initialDelayMillis ? maxDelayMillis
+                : Math.min(ceiling, maxDelayMillis);
+    }
+
+    int getOutboxCapacity() {
+        return outboxCapacity;
+    }
+}
@@ -0,0 +1,89 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Requests of one type (login, users or help) which are waiting for a reply from the server. The
+ * server answers the requests of one type in the order they were sent, therefore every reply
+ * completes the oldest pending request.
+ *
+ * Requests sent through the fire-and-forget methods (tryLogin, refreshUserList, ...) take a slot in
+ * the queue too, without a future, so that the replies to them are not matched to someone else's
+ * request.
+ *
+ * @param <T> Type of the reply value
+ */
+class RequestQueue<T> {
+    // Slot for a request nobody is waiting for. ArrayDeque does not accept null.
+    private static final CompletableFuture<?> UNTRACKED = new CompletableFuture<>();
+
+    private final Deque<CompletableFuture<?>> pending = new ArrayDeque<>();
+
+    /**
+     * Add a request to the end of the queue.
+     *
+     * @param future The future to complete when the reply arrives, or null if nobody waits for it
+     */
+    synchronized void add(CompletableFuture<T> future) {
+        pending.addLast(future != null ? future : UNTRACKED);
+    }
+
+    /**
+     * Remove the request added last, used when sending it failed.
+     */
+    synchronized void removeLast() {
+        pending.pollLast();
+    }
+
+    /**
+     * @return true if the oldest pending request has a future waiting for the reply
+     */
+    synchronized boolean isNextTracked() {
+        CompletableFuture<?> next = pending.peekFirst();
+        return next != null && next != UNTRACKED;
+    }
+
+    /**
+     * Complete the oldest pending request with the reply. A reply nobody asked for is ignored.
+     *
+     * @param value The reply
+     */
+    @SuppressWarnings("unchecked")
+    void completeNext(T value) {
+        CompletableFuture<?> next;
+        synchronized (this) {
+            next = pending.pollFirst();
+        }
+        if (next != null && next != UNTRACKED) {
+            // Completed outside the lock: dependent actions may send new requests
+            ((CompletableFuture<T>) next).complete(value);
+        }
+    }
+
+    /**
+     * Fail all the pending requests, for example when the connection is closed.
+     *
+     * @param cause The reason
+     */
+    void failAll(Throwable cause) {
+        CompletableFuture<?>[] failed;
+        synchronized (this) {
+            failed = pending.toArray(new CompletableFuture<?>[0]);
+            pending.clear();
+        }
+        for (CompletableFuture<?> f : failed) {
+            if (f != UNTRACKED) {
+                f.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * @return Number of requests waiting for a reply
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+}
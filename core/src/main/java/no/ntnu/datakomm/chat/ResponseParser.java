@@ -0,0 +1,282 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses one line received from the server directly from the receive buffer. The command is
+ * recognized by its leading bytes, without decoding the line into a String. The arguments are
+ * decoded only when asked for, into a reusable char buffer, and handed out as CharSequence views.
+ * No Strings or arrays are created unless the caller converts the views explicitly.
+ *
+ * One parser must be used by one thread only. The views returned by the getters are valid until the
+ * next call to {@link #parse}.
+ */
+class ResponseParser {
+
+    /**
+     * Type of a response received from the server.
+     */
+    enum Type {
+        LOGIN_OK, LOGIN_ERR, MSG, PRIVMSG, MSG_ERR, CMD_ERR, USERS, SUPPORTED, UNKNOWN
+    }
+
+    private static final byte[] LOGINOK = ascii("loginok");
+    private static final byte[] LOGINERR = ascii("loginerr");
+    private static final byte[] MSG = ascii("msg");
+    private static final byte[] MSGERR = ascii("msgerr");
+    private static final byte[] PRIVMSG = ascii("privmsg");
+    private static final byte[] CMDERR = ascii("cmderr");
+    private static final byte[] USERS = ascii("users");
+    private static final byte[] SUPPORTED = ascii("supported");
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(1024);
+
+    private final CharSlice arguments = new CharSlice();
+    private final CharSlice sender = new CharSlice();
+    private final CharSlice text = new CharSlice();
+
+    // The line which was parsed last
+    private ByteBuffer buffer;
+    private int argumentsStart;
+    private int lineEnd;
+    private Type type = Type.UNKNOWN;
+    private boolean decoded;
+
+    private static byte[] ascii(String word) {
+        return word.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Recognize the command of one line. The buffer must not be modified until the arguments of this
+     * line are consumed.
+     *
+     * @param buffer Buffer holding the line
+     * @param start  Index of the first byte of the line
+     * @param end    Index after the last byte of the line
+     * @return Type of the response
+     */
+    Type parse(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.lineEnd = end;
+        this.decoded = false;
+
+        int wordEnd = start;
+        while (wordEnd < end && buffer.get(wordEnd) != ' ') {
+            wordEnd++;
+        }
+        argumentsStart = wordEnd < end ? wordEnd + 1 : end;
+        type = recognize(buffer, start, wordEnd - start);
+        return type;
+    }
+
+    /**
+     * Find the command by its first byte and length, then confirm the rest of the bytes.
+     */
+    private static Type recognize(ByteBuffer buffer, int start, int length) {
+        if (length == 0) {
+            return Type.UNKNOWN;
+        }
+        switch (buffer.get(start)) {
+            case 'l':
+                if (matches(LOGINOK, buffer, start, length)) {
+                    return Type.LOGIN_OK;
+                } else if (matches(LOGINERR, buffer, start, length)) {
+                    return Type.LOGIN_ERR;
+                }
+                break;
+            case 'm':
+                if (matches(MSG, buffer, start, length)) {
+                    return Type.MSG;
+                } else if (matches(MSGERR, buffer, start, length)) {
+                    return Type.MSG_ERR;
+                }
+                break;
+            case 'p':
+                if (matches(PRIVMSG, buffer, start, length)) {
+                    return Type.PRIVMSG;
+                }
+                break;
+            case 'c':
+                if (matches(CMDERR, buffer, start, length)) {
+                    return Type.CMD_ERR;
+                }
+                break;
+            case 'u':
+                if (matches(USERS, buffer, start, length)) {
+                    return Type.USERS;
+                }
+                break;
+            case 's':
+                if (matches(SUPPORTED, buffer, start, length)) {
+                    return Type.SUPPORTED;
+                }
+                break;
+            default:
+                break;
+        }
+        return Type.UNKNOWN;
+    }
+
+    private static boolean matches(byte[] word, ByteBuffer buffer, int start, int length) {
+        if (word.length != length) {
+            return false;
+        }
+        for (int i = 1; i < length; i++) {
+            if (buffer.get(start + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Type of the last parsed response
+     */
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * @return Everything after the command word (empty if there are no arguments)
+     */
+    CharSequence getArguments() {
+        decode();
+        return arguments;
+    }
+
+    /**
+     * @return For msg and privmsg: the username of the sender (the first argument)
+     */
+    CharSequence getSender() {
+        decode();
+        return sender;
+    }
+
+    /**
+     * @return For msg and privmsg: the message text (everything after the sender)
+     */
+    CharSequence getText() {
+        decode();
+        return text;
+    }
+
+    /**
+     * Split the arguments on spaces. This is the only place where an array is created, therefore it
+     * should be called only when someone really needs the array (users, supported).
+     *
+     * @return The arguments as separate strings, empty parts are skipped
+     */
+    String[] splitArguments() {
+        decode();
+        char[] a = chars.array();
+        int from = arguments.start;
+        int to = arguments.end;
+        int count = 0;
+        boolean inWord = false;
+        for (int i = from; i < to; i++) {
+            boolean space = a[i] == ' ';
+            if (!space && !inWord) {
+                count++;
+            }
+            inWord = !space;
+        }
+        String[] words = new String[count];
+        int n = 0;
+        int wordStart = -1;
+        for (int i = from; i <= to; i++) {
+            boolean space = i == to || a[i] == ' ';
+            if (space && wordStart >= 0) {
+                words[n++] = new String(a, wordStart, i - wordStart);
+                wordStart = -1;
+            } else if (!space && wordStart < 0) {
+                wordStart = i;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Decode the arguments of the last line into the char buffer, once per line.
+     */
+    private void decode() {
+        if (decoded) {
+            return;
+        }
+        decoded = true;
+        int byteCount = lineEnd - argumentsStart;
+        // UTF-8 never decodes to more chars than there are bytes
+        if (chars.capacity() < byteCount) {
+            chars = CharBuffer.allocate(Math.max(byteCount, chars.capacity() * 2));
+        }
+        chars.clear();
+        int savedPosition = buffer.position();
+        int savedLimit = buffer.limit();
+        buffer.limit(lineEnd);
+        buffer.position(argumentsStart);
+        decoder.reset();
+        decoder.decode(buffer, chars, true);
+        decoder.flush(chars);
+        buffer.limit(savedLimit);
+        buffer.position(savedPosition);
+
+        char[] a = chars.array();
+        int length = chars.position();
+        arguments.set(a, 0, length);
+        int space = 0;
+        while (space < length && a[space] != ' ') {
+            space++;
+        }
+        sender.set(a, 0, space);
+        text.set(a, Math.min(space + 1, length), length);
+    }
+
+    /**
+     * A reusable view of a part of the char buffer.
+     */
+    static final class CharSlice implements CharSequence {
+        private char[] array;
+        private int start;
+        private int end;
+
+        void set(char[] array, int start, int end) {
+            this.array = array;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+            }
+            return array[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > end - start || from > to) {
+                throw new IndexOutOfBoundsException("from " + from + ", to " + to);
+            }
+            CharSlice slice = new CharSlice();
+            slice.set(array, start + from, start + to);
+            return slice;
+        }
+
+        @Override
+        public String toString() {
+            return new String(array, start, end - start);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Receives the events of all the sessions of a {@link ChatSessionManager}, each with the session
+ * it came from. The events are delivered on the selector thread of the manager (or on the thread
+ * which connects the session, for the state changes while connecting), so they must return quickly.
+ * Override only the events you need.
+ */
+public interface SessionListener {
+    /**
+     * The state of a session changed, for example it is online, or it lost its connection.
+     *
+     * @param session  The session
+     * @param previous The state before
+     * @param state    The new state
+     */
+    default void onStateChanged(ChatSession session, ChatSession.State previous, ChatSession.State state) {
+    }
+
+    /**
+     * The answer to a login command sent by the user of a session which is online already. The
+     * login of the session itself is reported with {@link #onStateChanged}.
+     */
+    default void onLoginResult(ChatSession session, boolean success, String errMsg) {
+    }
+
+    default void onMessageReceived(ChatSession session, TextMessage message) {
+    }
+
+    default void onMessageError(ChatSession session, String errMsg) {
+    }
+
+    default void onUserList(ChatSession session, String[] usernames) {
+    }
+
+    default void onSupportedCommands(ChatSession session, String[] commands) {
+    }
+
+    default void onCommandError(ChatSession session, String errMsg) {
+    }
+}
@@ -0,0 +1,145 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Watches how long the listeners of a TCPClient take when they are called on the receiving thread.
+ * Every call over the budget is a strike, every call within it takes one strike away. A listener
+ * which collects enough strikes is replaced in the registry by an {@link IsolatedListener}, which
+ * calls it from its own worker, and a warning is logged (and recorded as a flight recorder event).
+ *
+ * Listeners which return true from {@link ChatListener#isCritical()} are never moved.
+ * Isolated listeners stay isolated until they are removed from the client.
+ */
+final class SlowListenerGuard {
+    private static final System.Logger LOGGER = System.getLogger(SlowListenerGuard.class.getName());
+
+    private final ListenerRegistry listeners;
+    private final Executor executor;
+
+    // 0 disables the checks
+    private volatile long budgetNanos = 0;
+    private volatile int maxStrikes = 3;
+    private volatile int queueCapacity = 1024;
+
+    // Only the listeners with strikes are here
+    private final Map<ChatListener, Integer> strikes = new ConcurrentHashMap<>();
+    // Key: the original listener
+    private final Map<ChatListener, IsolatedListener> isolated = new ConcurrentHashMap<>();
+
+    /**
+     * @param listeners The registry of the client. Its lock must be held when it is modified.
+     * @param executor  Runs the workers of the isolated listeners
+     */
+    SlowListenerGuard(ListenerRegistry listeners, Executor executor) {
+        this.listeners = listeners;
+        this.executor = executor;
+    }
+
+    void configure(long budgetNanos, int maxStrikes, int queueCapacity) {
+        if (budgetNanos < 0 || maxStrikes < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid listener budget");
+        }
+        this.maxStrikes = maxStrikes;
+        this.queueCapacity = queueCapacity;
+        this.budgetNanos = budgetNanos;
+        strikes.clear();
+    }
+
+    /**
+     * Check the time of one listener call. Called on the receiving thread.
+     *
+     * @param listener The listener which was called
+     * @param callback Name of the listener method, for the warning
+     * @param nanos    How long the call took
+     */
+    void check(ChatListener listener, String callback, long nanos) {
+        long budget = budgetNanos;
+        if (budget <= 0 || listener instanceof IsolatedListener) {
+            return;
+        }
+        if (nanos <= budget) {
+            if (!strikes.isEmpty()) {
+                strikes.computeIfPresent(listener, (l, n) -> n > 1 ? n - 1 : null);
+            }
+            return;
+        }
+        if (strikes.merge(listener, 1, Integer::sum) >= maxStrikes && !listener.isCritical()) {
+            isolate(listener, callback, nanos, budget);
+        }
+    }
+
+    private void isolate(ChatListener listener, String callback, long nanos, long budget) {
+        strikes.remove(listener);
+        IsolatedListener replacement = new IsolatedListener(listener, queueCapacity, executor);
+        synchronized (listeners) {
+            if (!listeners.replace(listener, replacement)) {
+                // Removed meanwhile
+                replacement.stop();
+                return;
+            }
+            isolated.put(listener, replacement);
+        }
+        LOGGER.log(Level.WARNING, "Listener " + listener.getClass().getName() + " is too slow (" + callback
+                + " took " + nanos / 1000000 + " ms), it gets the events on its own thread from now on");
+        if (!FlightEvents.isActive()) {
+            return;
+        }
+        FlightEvents.ListenerIsolated event = new FlightEvents.ListenerIsolated();
+        if (event.shouldCommit()) {
+            event.listenerClass = listener.getClass();
+            event.callback = callback;
+            event.callDuration = nanos;
+            event.budget = budget;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param listener A listener of the client
+     * @return true if the listener is isolated
+     */
+    boolean isIsolated(ChatListener listener) {
+        return isolated.containsKey(listener);
+    }
+
+    /**
+     * Forget a listener which is being removed from the client, and stop its worker if it was
+     * isolated. Must be called with the registry lock held.
+     *
+     * @param listener The listener
+     * @return The object which stands for the listener in the registry: the listener itself or its
+     *         replacement
+     */
+    ChatListener release(ChatListener listener) {
+        strikes.remove(listener);
+        IsolatedListener replacement = isolated.remove(listener);
+        if (replacement == null) {
+            return listener;
+        }
+        replacement.stop();
+        return replacement;
+    }
+
+    /**
+     * @return The listeners which were moved to their own worker
+     */
+    List<ChatListener> getIsolated() {
+        return new ArrayList<>(isolated.keySet());
+    }
+
+    /**
+     * @param listener A listener of the client
+     * @return Number of events the listener did not get because its queue was full, 0 if it is not
+     *         isolated
+     */
+    long getDroppedCount(ChatListener listener) {
+        IsolatedListener replacement = isolated.get(listener);
+        return replacement != null ? replacement.getDroppedCount() : 0;
+    }
+}
@@ -0,0 +1,112 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the phases of the application startup (loading the FXML, loading the history,
+ * connecting) and the time from the start of the JVM to the first visible content: the window of
+ * the GUI, or the connected client of {@link ChatCli}. The report is printed when the first content
+ * is shown, together with the resident memory of the process, with a warning when it took longer
+ * than the target, which can be set with the system property chat.startup.targetMillis (default
+ * 1000 ms).
+ */
+public final class StartupTimer {
+    private static final long TARGET_MILLIS = Long.getLong("chat.startup.targetMillis", 1000);
+
+    // Phase name -> duration in nanoseconds, in the order they were recorded
+    private static final Map<String, Long> phases = new LinkedHashMap<>();
+    private static long firstContentMillis = -1;
+
+    private StartupTimer() {
+    }
+
+    /**
+     * Record the duration of a startup phase. Phases recorded after the first content was shown
+     * (for example, connecting) are printed right away.
+     *
+     * @param name  Name of the phase
+     * @param nanos Duration of the phase, in nanoseconds
+     */
+    public static synchronized void phase(String name, long nanos) {
+        if (phases.containsKey(name)) {
+            // Only the first time counts, later ones are not part of the startup
+            return;
+        }
+        phases.put(name, nanos);
+        if (firstContentMillis >= 0) {
+            System.out.println(String.format("Startup: %s %.1f ms", name, nanos / 1e6));
+        }
+    }
+
+    /**
+     * Record that the first content is visible, and print the startup report. Only the first call
+     * counts.
+     */
+    public static synchronized void firstContent() {
+        if (firstContentMillis >= 0) {
+            return;
+        }
+        firstContentMillis = getMillisSinceJvmStart();
+        StringBuilder report = new StringBuilder("Startup: first content after ").append(firstContentMillis)
+                .append(" ms");
+        long rss = getResidentMemoryBytes();
+        if (rss >= 0) {
+            report.append(", resident memory ").append(rss >> 20).append(" MB");
+        }
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            report.append(String.format(", %s %.1f ms", phase.getKey(), phase.getValue() / 1e6));
+        }
+        System.out.println(report);
+        if (firstContentMillis > TARGET_MILLIS) {
+            System.out.println("Startup: slower than the target of " + TARGET_MILLIS + " ms");
+        }
+    }
+
+    /**
+     * @return Time since the JVM was started, in milliseconds
+     */
+    public static long getMillisSinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * @return Resident memory of the process in bytes, from /proc; -1 where that is not available
+     */
+    public static long getResidentMemoryBytes() {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    // For example "VmRSS:     45032 kB"
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available
+        }
+        return -1;
+    }
+
+    /**
+     * @return Time from the JVM start to the first content, in milliseconds; -1 if not shown yet
+     */
+    public static synchronized long getFirstContentMillis() {
+        return firstContentMillis;
+    }
+
+    /**
+     * @return The recorded phases and their durations in nanoseconds, in the order they were recorded
+     */
+    public static synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+}
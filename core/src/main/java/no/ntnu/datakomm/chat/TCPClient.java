@@ -0,0 +1,1471 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.*;
+import java.lang.System.Logger.Level;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TCPClient {
+    private static final System.Logger LOGGER = System.getLogger(TCPClient.class.getName());
+
+    private OutputStream toServer;
+    private InputStream fromServer;
+    private Socket connection;
+    // Splits the bytes received in blocking mode into lines
+    private LineFramer framer;
+
+    // Set in NIO transport mode only: the selector loop serving this client, and the socket channel
+    private final NioEventLoop eventLoop;
+    private volatile NioChannel nioChannel;
+
+    // Runs the listening loop in blocking mode
+    private final Executor executor;
+
+    // Collects the outgoing commands into batches, created for every connection
+    private volatile CommandBatcher batcher;
+    private long coalescingWindowMicros = 0;
+    private int coalescingMaxBytes = 0;
+    private volatile boolean tcpNoDelay = true;
+
+    // Requests waiting for a reply from the server, one queue per reply type
+    private final RequestQueue<Boolean> loginRequests = new RequestQueue<>();
+    private final RequestQueue<String[]> userListRequests = new RequestQueue<>();
+    private final RequestQueue<String[]> supportedRequests = new RequestQueue<>();
+    private volatile long requestTimeoutMillis = 10000;
+
+    // Used by the listening thread (or the selector thread in NIO mode) only
+    private final ResponseParser parser = new ResponseParser();
+    private final LineFramer.LineHandler lineHandler = this::handleServerResponse;
+    // When the data being handled was read from the socket, for the dispatch time metrics
+    private long readStartNanos;
+    // The users from the last "users" response, to find out who joined and who left
+    private final UserIndex userIndex = new UserIndex();
+    // Chat messages found in the current read, delivered together when the read is handled
+    private final List<TextMessage> receivedMessages = new ArrayList<>();
+
+    // Hint: if you want to store a message for the last error, store it here
+    private String lastError = null;
+
+    // While true, nothing more is read from the socket: the server is slowed down by TCP flow control.
+    // The blocking listening thread waits on readGate.
+    private volatile boolean readingPaused = false;
+    private volatile boolean listening = false;
+    private final Object readGate = new Object();
+
+    // Timing and traffic statistics, see getMetrics(). Shared by the sessions of a ChatSessionManager.
+    private final ClientMetrics metrics;
+    // Initial size of the receive buffer in NIO transport mode, it grows for longer lines
+    private final int readBufferSize;
+    // The server of the current connection, for the flight recorder events
+    private volatile String remoteHost;
+    private volatile int remotePort;
+
+    // Read by the receiving thread without locks, modified from any thread
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    // When set, every message sent and received is appended to it
+    private volatile HistoryJournal journal = null;
+    // Moves the listeners which are too slow for the receiving thread to their own thread
+    private final SlowListenerGuard slowListeners;
+    // When set, the events go to the listeners through this ring buffer instead of directly
+    private volatile AsyncDispatcher asyncDispatcher = null;
+
+    // When set, the client connects again by itself after the connection was lost
+    private volatile ReconnectPolicy reconnectPolicy = null;
+    // True from losing the connection until connected and logged in again
+    private volatile boolean reconnecting = false;
+    // Bumped by connect() and disconnect(), which cancel the reconnect attempts scheduled before
+    private final AtomicInteger connectGeneration = new AtomicInteger();
+    private final AtomicInteger reconnectAttempts = new AtomicInteger();
+    // Logins rejected by the server since the connection was lost
+    private final AtomicInteger loginRejections = new AtomicInteger();
+    // The username of the last successful login, to log in with again after reconnecting
+    private volatile String loggedInAs = null;
+    // Usernames of the login requests waiting for a reply, in the same order. Guarded by loginRequests.
+    private final Deque<String> pendingLogins = new ArrayDeque<>();
+    // Chat messages sent while reconnecting, sent when the client is logged in again. Guarded by itself.
+    private final Deque<HeldMessage> outbox = new ArrayDeque<>();
+
+    /**
+     * Create a client which uses blocking socket streams and a dedicated listening thread.
+     */
+    public TCPClient() {
+        this(ChatExecutor.getDefault());
+    }
+
+    /**
+     * Create a client which uses blocking socket streams. The listening loop is run by the given
+     * executor, for example one from {@link ChatExecutor}.
+     *
+     * @param executor The executor which will run the listening loop
+     */
+    public TCPClient(Executor executor) {
+        this.eventLoop = null;
+        this.executor = executor;
+        this.metrics = new ClientMetrics();
+        this.readBufferSize = LineFramer.INITIAL_SIZE;
+        this.slowListeners = new SlowListenerGuard(listeners, executor);
+    }
+
+    /**
+     * Create a client in NIO transport mode. The socket is served by the given selector loop, which
+     * can be shared by many clients, instead of a dedicated listening thread.
+     *
+     * @param eventLoop The selector loop to use, for example {@link NioEventLoop#shared()}
+     */
+    public TCPClient(NioEventLoop eventLoop) {
+        this(eventLoop, new ClientMetrics(), LineFramer.INITIAL_SIZE);
+    }
+
+    /**
+     * Create a client in NIO transport mode which records into the given metrics, for the sessions
+     * of a {@link ChatSessionManager}.
+     *
+     * @param eventLoop      The selector loop to use
+     * @param metrics        The metrics to record into, can be shared by many clients
+     * @param readBufferSize Initial size of the receive buffer, in bytes
+     */
+    TCPClient(NioEventLoop eventLoop, ClientMetrics metrics, int readBufferSize) {
+        this.eventLoop = eventLoop;
+        this.executor = ChatExecutor.getDefault();
+        this.metrics = metrics;
+        this.readBufferSize = readBufferSize;
+        this.slowListeners = new SlowListenerGuard(listeners, executor);
+    }
+
+    /**
+     * Connect to a chat server.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    public boolean connect(String host, int port) {
+        if (isConnectionActive()) {
+            lastError = "Already connected";
+            return false;
+        }
+        stopReconnecting();
+        loggedInAs = null;
+        return open(host, port);
+    }
+
+    /**
+     * Open the connection, for {@link #connect(String, int)} and for reconnecting.
+     *
+     * @return True on success, false otherwise
+     */
+    private boolean open(String host, int port) {
+        if (isConnectionActive()) {
+            lastError = "Already connected";
+            return false;
+        }
+        // Nobody reads from the server now: the first user list of the new connection is all new
+        userIndex.clear();
+        FlightEvents.Connect event = FlightEvents.beginConnect();
+        long connectStart = System.nanoTime();
+        boolean connected = false;
+        try {
+            CommandBatcher newBatcher;
+            if (eventLoop != null) {
+                NioChannel channel = NioChannel.open(this, eventLoop, host, port, tcpNoDelay, readBufferSize);
+                newBatcher = new CommandBatcher(channel, metrics);
+                nioChannel = channel;
+            } else {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(tcpNoDelay);
+                toServer = new BufferedOutputStream(socket.getOutputStream());
+                fromServer = socket.getInputStream();
+                framer = new LineFramer(false);
+                newBatcher = new CommandBatcher(this::writeToStream, metrics);
+                connection = socket;
+            }
+            synchronized (this) {
+                newBatcher.configure(coalescingWindowMicros, coalescingMaxBytes);
+            }
+            batcher = newBatcher;
+            lastError = null;
+            remoteHost = host;
+            remotePort = port;
+            metrics.recordConnect(System.nanoTime() - connectStart);
+            connected = true;
+            return true;
+        } catch (IOException e) {
+            lastError = "Could not connect to " + host + ":" + port + ": " + e.getMessage();
+            return false;
+        } finally {
+            if (event != null && event.shouldCommit()) {
+                event.host = host;
+                event.port = port;
+                event.nio = eventLoop != null;
+                event.success = connected;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Close the socket, and stop reconnecting if a reconnect is in progress. Several threads may
+     * try to close the connection at the same time. For example: When "Disconnect" button is
+     * pressed in the GUI thread, the connection will get closed. Meanwhile, the background thread
+     * trying to read server's response will get error in the input stream and may try to close
+     * the socket which is already in the process of being closed. The closing itself is done by
+     * the synchronized {@link #disconnect(boolean)}, so no two threads do it in parallel.
+     */
+    public void disconnect() {
+        stopReconnecting();
+        disconnect(false);
+    }
+
+    /**
+     * Close the socket. Synchronized: the GUI thread, the listening thread and the reconnect task
+     * may all try to close the connection at the same time.
+     *
+     * @param lost True when the connection was closed by the remote end, only for the flight recorder
+     */
+    private synchronized void disconnect(boolean lost) {
+        if (!isConnectionActive()) {
+            return;
+        }
+        FlightEvents.Disconnect event = FlightEvents.beginDisconnect();
+        CommandBatcher oldBatcher = batcher;
+        batcher = null;
+        if (oldBatcher != null) {
+            try {
+                // Send whatever is still waiting in the batch before closing
+                oldBatcher.flush();
+            } catch (IOException e) {
+                oldBatcher.discard();
+            }
+        }
+        if (nioChannel != null) {
+            nioChannel.close();
+            nioChannel = null;
+        } else {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                lastError = "Error while closing the socket: " + e.getMessage();
+            }
+            connection = null;
+            toServer = null;
+            fromServer = null;
+        }
+        IOException closed = new IOException("Connection closed");
+        synchronized (loginRequests) {
+            pendingLogins.clear();
+        }
+        loginRequests.failAll(closed);
+        userListRequests.failAll(closed);
+        supportedRequests.failAll(closed);
+        listening = false;
+        synchronized (readGate) {
+            // Wake up the listening thread if it waits for resumeReading()
+            readGate.notifyAll();
+        }
+        if (event != null && event.shouldCommit()) {
+            event.host = remoteHost;
+            event.port = remotePort;
+            event.lost = lost;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return true if the connection is active (opened), false if not.
+     */
+    public boolean isConnectionActive() {
+        return connection != null || nioChannel != null;
+    }
+
+    /**
+     * @return true if this client uses the NIO transport mode, false if it uses blocking streams
+     */
+    public boolean isNioMode() {
+        return eventLoop != null;
+    }
+
+    /**
+     * Send a command to server. Chat messages may wait in the current batch when write coalescing
+     * is enabled, see {@link #setWriteCoalescing(long, int)}.
+     *
+     * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
+     * @return true on success, false otherwise
+     */
+    private boolean sendCommand(String cmd) {
+        return sendCommand(cmd, false);
+    }
+
+    /**
+     * Send a command to server.
+     *
+     * @param cmd       A command. It should include the command word and optional attributes.
+     * @param immediate When true, the command bypasses the batching window and is written at once,
+     *                  together with everything queued before it
+     * @return true on success, false otherwise
+     */
+    private boolean sendCommand(String cmd, boolean immediate) {
+        FlightEvents.CommandSent event = FlightEvents.beginCommandSent();
+        CommandBatcher commandBatcher = batcher;
+        if (commandBatcher == null) {
+            lastError = "Not connected to the server";
+            endCommandSent(event, cmd, 0, false);
+            return false;
+        }
+        try {
+            int bytes = commandBatcher.send(cmd, immediate);
+            metrics.countCommand(cmd);
+            endCommandSent(event, cmd, bytes, true);
+            return true;
+        } catch (IOException e) {
+            lastError = "Could not send the command: " + e.getMessage();
+            endCommandSent(event, cmd, 0, false);
+            return false;
+        }
+    }
+
+    private static void endCommandSent(FlightEvents.CommandSent event, String cmd, int bytes, boolean success) {
+        if (event != null && event.shouldCommit()) {
+            event.command = FlightEvents.commandWord(cmd);
+            event.bytes = bytes;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    /**
+     * Write a batch of commands to the socket output stream in blocking mode: all the commands go
+     * into the stream buffer and are flushed together.
+     */
+    private void writeToStream(ByteBuffer[] batch, int count) throws IOException {
+        OutputStream out = toServer;
+        if (out == null) {
+            throw new IOException("Socket closed");
+        }
+        for (int i = 0; i < count; i++) {
+            ByteBuffer b = batch[i];
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            b.position(b.limit());
+        }
+        out.flush();
+    }
+
+    /**
+     * Enable or disable batching of the outgoing chat messages. When enabled, the messages sent
+     * within the time window are collected and written to the socket with a single write. Login,
+     * user list and help requests are latency-sensitive and always bypass the batching; call
+     * {@link #flush()} to push out the pending messages at once.
+     *
+     * @param windowMicros  How long a message may wait for more messages, in microseconds. 0 turns
+     *                      batching off (the default).
+     * @param maxBatchBytes When this many bytes are waiting, they are written without waiting for
+     *                      the end of the window. 0 means no limit.
+     */
+    public synchronized void setWriteCoalescing(long windowMicros, int maxBatchBytes) {
+        coalescingWindowMicros = windowMicros;
+        coalescingMaxBytes = maxBatchBytes;
+        CommandBatcher commandBatcher = batcher;
+        if (commandBatcher != null) {
+            commandBatcher.configure(windowMicros, maxBatchBytes);
+        }
+    }
+
+    /**
+     * Write all the batched commands to the socket now.
+     *
+     * @return true on success, false otherwise
+     */
+    public boolean flush() {
+        CommandBatcher commandBatcher = batcher;
+        if (commandBatcher == null) {
+            lastError = "Not connected to the server";
+            return false;
+        }
+        try {
+            commandBatcher.flush();
+            return true;
+        } catch (IOException e) {
+            lastError = "Could not send the commands: " + e.getMessage();
+            return false;
+        }
+    }
+
+    /**
+     * Turn Nagle's algorithm off (true, the default) or on (false) for the socket. Applies to the
+     * current connection and to the next ones.
+     *
+     * @param on The value of the TCP_NODELAY socket option
+     */
+    public void setTcpNoDelay(boolean on) {
+        tcpNoDelay = on;
+        try {
+            NioChannel channel = nioChannel;
+            Socket socket = connection;
+            if (channel != null) {
+                channel.setTcpNoDelay(on);
+            } else if (socket != null) {
+                socket.setTcpNoDelay(on);
+            }
+        } catch (IOException e) {
+            lastError = "Could not change TCP_NODELAY: " + e.getMessage();
+        }
+    }
+
+    /**
+     * @return The value of the TCP_NODELAY socket option used by this client
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Send a public message to all the recipients. A message with line breaks is not sent, the
+     * protocol has one command per line.
+     *
+     * @param message Message to send
+     * @return true if message sent, false on error
+     */
+    public boolean sendPublicMessage(String message) {
+        return sendMessage(null, message);
+    }
+
+    /**
+     * Send a login request to the chat server.
+     *
+     * @param username Username to use
+     */
+    public void tryLogin(String username) {
+        sendLogin(username, false);
+    }
+
+    /**
+     * Send a login request to the chat server and get the result as a future. The future is
+     * completed as soon as the reply arrives: with true on success, with false when the server
+     * rejected the username (the reason is stored as the last error). It fails when the request
+     * can't be sent (also when the username contains line breaks), the connection is closed or no
+     * reply arrives within the request timeout.
+     *
+     * Note: replies are delivered on the listening thread. Use the async variants of the
+     * CompletableFuture methods for slow follow-up work.
+     *
+     * @param username Username to use
+     * @return The future login result
+     */
+    public CompletableFuture<Boolean> login(String username) {
+        return sendLogin(username, true);
+    }
+
+    /**
+     * Send a login request, and remember the username until the reply arrives: after a successful
+     * login it is the username to log in with again when reconnecting.
+     */
+    private CompletableFuture<Boolean> sendLogin(String username, boolean tracked) {
+        if (hasLineBreak(username)) {
+            lastError = "The username must not contain line breaks";
+            return tracked ? CompletableFuture.failedFuture(new IOException(lastError)) : null;
+        }
+        synchronized (loginRequests) {
+            // sendRequest() takes the same lock, so the size changes only if the request is sent
+            int pending = loginRequests.size();
+            CompletableFuture<Boolean> future = sendRequest("login " + username, loginRequests, tracked);
+            if (loginRequests.size() > pending) {
+                pendingLogins.addLast(username);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * @return The username of the login request answered now, null if it is not known
+     */
+    private String nextLoginUsername() {
+        synchronized (loginRequests) {
+            return pendingLogins.pollFirst();
+        }
+    }
+    /**
+     * Send a request for latest user list to the server. To get the new users,
+     * clear your current user list and use events in the listener.
+     */
+    public void refreshUserList() {
+        sendRequest("users", userListRequests, false);
+    }
+
+    /**
+     * Send a request for the latest user list and get the list as a future. The listeners are
+     * notified about the list as well. See {@link #login(String)} about how the future completes.
+     *
+     * @return The future list of usernames
+     */
+    public CompletableFuture<String[]> fetchUsers() {
+        return sendRequest("users", userListRequests, true);
+    }
+
+    /**
+     * Send a private message to a single recipient. A message with line breaks is not sent, the
+     * protocol has one command per line.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return true if message sent, false on error
+     */
+    public boolean sendPrivateMessage(String recipient, String message) {
+        return sendMessage(recipient, message);
+    }
+
+    /**
+     * Send a chat message, or keep it for later while the client is reconnecting.
+     *
+     * @param recipient Username of the recipient, null for a public message
+     * @param message   Message to send
+     * @return true if message sent or kept, false on error
+     */
+    private boolean sendMessage(String recipient, String message) {
+        if (hasLineBreak(message) || (recipient != null && hasLineBreak(recipient))) {
+            // The rest of the text would be sent as another command
+            lastError = "A message must not contain line breaks";
+            return false;
+        }
+        if (!reconnecting) {
+            return sendMessageNow(recipient, message);
+        }
+        synchronized (outbox) {
+            // Checked again under the lock: the reconnect may have finished meanwhile
+            if (reconnecting) {
+                ReconnectPolicy policy = reconnectPolicy;
+                if (policy == null || outbox.size() >= policy.getOutboxCapacity()) {
+                    lastError = "Not connected to the server, too many messages waiting for the reconnect";
+                    return false;
+                }
+                outbox.addLast(new HeldMessage(recipient, message));
+                return true;
+            }
+        }
+        return sendMessageNow(recipient, message);
+    }
+
+    /**
+     * @return true if the text contains '\r' or '\n', which would end the command early
+     */
+    private static boolean hasLineBreak(String text) {
+        return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    private boolean sendMessageNow(String recipient, String message) {
+        boolean sent = sendCommand(recipient == null ? "msg " + message
+                : "privmsg " + recipient + " " + message);
+        HistoryJournal historyJournal = journal;
+        if (sent && historyJournal != null) {
+            historyJournal.appendSent(System.currentTimeMillis(), recipient, message);
+        }
+        return sent;
+    }
+
+
+    /**
+     * Send a request for the list of commands that server supports.
+     */
+    public void askSupportedCommands() {
+        sendRequest("help", supportedRequests, false);
+    }
+
+    /**
+     * Send a request for the list of commands that server supports and get the list as a future.
+     * The listeners are notified about the list as well. See {@link #login(String)} about how the
+     * future completes.
+     *
+     * @return The future list of supported commands
+     */
+    public CompletableFuture<String[]> fetchSupported() {
+        return sendRequest("help", supportedRequests, true);
+    }
+
+    /**
+     * Set how long the futures returned by login(), fetchUsers() and fetchSupported() wait for the
+     * reply before they fail with a TimeoutException.
+     *
+     * @param timeout Timeout value, 0 for no timeout
+     * @param unit    Unit of the timeout value
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        requestTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Send a request and put it in the queue of requests waiting for a reply. The queue order must
+     * be the same as the order of the requests on the wire, therefore both are done under the lock
+     * of the queue.
+     *
+     * @param cmd     The command to send
+     * @param queue   The queue for this type of request
+     * @param tracked When true, a future is created and returned, otherwise null is returned
+     */
+    private <T> CompletableFuture<T> sendRequest(String cmd, RequestQueue<T> queue, boolean tracked) {
+        CompletableFuture<T> future = tracked ? new CompletableFuture<>() : null;
+        synchronized (queue) {
+            queue.add(future);
+            if (!sendCommand(cmd, true)) {
+                queue.removeLast();
+                if (future != null) {
+                    future.completeExceptionally(new IOException(getLastError()));
+                }
+                return future;
+            }
+        }
+        long timeout = requestTimeoutMillis;
+        if (future != null && timeout > 0) {
+            future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+
+    /**
+     * Wait for chat server's response. Blocks until some bytes arrive and stores them in the receive
+     * buffer of the framer. The bytes may contain zero, one or several complete lines (commands).
+     *
+     * @param lineFramer The framer of the current connection
+     * @return true when data was received, false when the connection is broken or closed
+     */
+    private boolean waitServerResponse(LineFramer lineFramer) {
+        InputStream in = fromServer;
+        if (in == null) {
+            return false;
+        }
+        FlightEvents.SocketRead event = FlightEvents.beginSocketRead();
+        int bytesRead;
+        try {
+            bytesRead = lineFramer.readFrom(in);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        endSocketRead(event, false, bytesRead);
+        if (bytesRead < 0) {
+            // The stream is broken. If we did not close the socket ourselves, the remote end did it.
+            onConnectionLost();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Commit the flight recorder event of a socket read, if it is recorded.
+     *
+     * @param bytesRead Number of bytes read, negative at the end of the stream
+     */
+    static void endSocketRead(FlightEvents.SocketRead event, boolean nio, int bytesRead) {
+        if (event != null && event.shouldCommit()) {
+            event.nio = nio;
+            event.bytes = Math.max(bytesRead, 0);
+            event.endOfStream = bytesRead < 0;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record every message sent and received from now on in a history journal. The journal is not
+     * closed by the client.
+     *
+     * @param journal The journal, or null to stop recording
+     */
+    public void setHistoryJournal(HistoryJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return The history journal, null if the messages are not recorded
+     */
+    public HistoryJournal getHistoryJournal() {
+        return journal;
+    }
+
+    /**
+     * Get the timing and traffic statistics of this client. To see them in JMX, call
+     * {@link ClientMetrics#registerMBean(String)}.
+     *
+     * @return The metrics
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the last error message
+     *
+     * @return Error message or "" if there has been no error
+     */
+    public String getLastError() {
+        if (lastError != null) {
+            return lastError;
+        } else {
+            return "";
+        }
+    }
+
+    /**
+     * Start listening for incoming commands from the server in a new thread of the executor (a
+     * virtual thread by default, when the JDK supports it). In NIO transport mode no thread is
+     * started, the channel is handed over to the selector loop instead.
+     */
+    public void startListenThread() {
+        listening = true;
+        NioChannel channel = nioChannel;
+        if (channel != null) {
+            if (!readingPaused) {
+                channel.setReading(true);
+            }
+            return;
+        }
+        // Call parseIncomingCommands() in the new thread.
+        executor.execute(this::parseIncomingCommands);
+    }
+
+    /**
+     * Read incoming messages one by one, generate events for the listeners. A loop that runs until
+     * the connection is closed.
+     */
+    private void parseIncomingCommands() {
+        LineFramer lineFramer = framer;
+        while (isConnectionActive()) {
+            if (readingPaused && !awaitReadingResumed()) {
+                return;
+            }
+            boolean ok;
+            try {
+                ok = !waitServerResponse(lineFramer) || handleReceivedData(lineFramer);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING,
+                        "Error while handling the data from the server, closing the connection", e);
+                lastError = "Error while handling the data from the server: " + e;
+                onConnectionLost();
+                return;
+            }
+            if (!ok) {
+                lastError = "Too long line received from the server";
+                onConnectionLost();
+            }
+        }
+    }
+
+    /**
+     * Wait until reading is resumed or the connection is closed.
+     *
+     * @return true when reading is resumed, false when the connection is closed
+     */
+    private boolean awaitReadingResumed() {
+        synchronized (readGate) {
+            try {
+                while (readingPaused && isConnectionActive()) {
+                    readGate.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return isConnectionActive();
+    }
+
+    /**
+     * Stop reading from the server, for example because the listeners can't keep up with the
+     * incoming messages. The data stays in the socket buffers, and when they are full, TCP flow
+     * control stops the server from sending more. The lines already read are still delivered.
+     */
+    public void pauseReading() {
+        readingPaused = true;
+        NioChannel channel = nioChannel;
+        if (channel != null) {
+            channel.setReading(false);
+        }
+    }
+
+    /**
+     * Continue reading from the server after {@link #pauseReading()}.
+     */
+    public void resumeReading() {
+        readingPaused = false;
+        NioChannel channel = nioChannel;
+        if (channel != null && listening) {
+            channel.setReading(true);
+        }
+        synchronized (readGate) {
+            readGate.notifyAll();
+        }
+    }
+
+    /**
+     * @return true while reading from the server is paused
+     */
+    public boolean isReadingPaused() {
+        return readingPaused;
+    }
+
+    /**
+     * Handle all the complete lines received so far. The chat messages among them are delivered to
+     * the listeners in batches: all the consecutive messages of one read go in one
+     * onMessagesReceived() call. Called by the listening thread in blocking mode and by the
+     * selector loop in NIO mode, after every read from the socket.
+     *
+     * @param lineFramer The framer holding the received bytes
+     * @return false when the buffer is full of one too long line, true otherwise
+     * @throws RuntimeException When a listener throws. The caller must close the connection: the
+     *                          events of this read are lost.
+     */
+    boolean handleReceivedData(LineFramer lineFramer) {
+        readStartNanos = System.nanoTime();
+        try {
+            boolean ok = lineFramer.drainLines(lineHandler);
+            deliverReceivedMessages();
+            return ok;
+        } catch (RuntimeException e) {
+            // Not for the next connection
+            receivedMessages.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Deliver the batch of collected chat messages to the listeners.
+     */
+    private void deliverReceivedMessages() {
+        int count = receivedMessages.size();
+        if (count == 0) {
+            return;
+        }
+        // The listeners may keep the list (for example, pass it to the GUI thread), give them a copy
+        List<TextMessage> batch = count == 1
+                ? Collections.singletonList(receivedMessages.get(0))
+                : new ArrayList<>(receivedMessages);
+        receivedMessages.clear();
+        onMsgsReceived(batch);
+        metrics.recordDispatch(System.nanoTime() - readStartNanos, count);
+    }
+
+    /**
+     * Check what type of response is received from the server and notify the listeners. Called for
+     * every line found in the receive buffer. The line is parsed in place; Strings for the listeners are
+     * created only when there are listeners to receive them.
+     *
+     * @param buffer The receive buffer
+     * @param start  Index of the first byte of the line
+     * @param end    Index after the last byte of the line
+     * @return true if the connection is still active and the next line should be handled
+     */
+    boolean handleServerResponse(ByteBuffer buffer, int start, int end) {
+        ResponseParser.Type type = parser.parse(buffer, start, end);
+        // The line terminator is not in the line, count it too
+        metrics.countResponse(type, end - start + 1);
+        boolean message = type == ResponseParser.Type.MSG || type == ResponseParser.Type.PRIVMSG;
+        if (!message) {
+            // Keep the order of events: the messages received before this response go first
+            deliverReceivedMessages();
+        }
+        switch (type) {
+            case LOGIN_OK:
+                String username = nextLoginUsername();
+                if (username != null) {
+                    loggedInAs = username;
+                }
+                onLoginResult(true, null);
+                loginRequests.completeNext(true);
+                break;
+            case LOGIN_ERR:
+                String loginError = parser.getArguments().toString();
+                nextLoginUsername();
+                if (!reconnecting) {
+                    // The rejected logins of a reconnect are reported at the end, see tryReconnect()
+                    onLoginResult(false, loginError);
+                }
+                lastError = loginError;
+                loginRequests.completeNext(false);
+                break;
+            case MSG:
+            case PRIVMSG:
+                HistoryJournal historyJournal = journal;
+                if (historyJournal != null) {
+                    // Straight from the receive buffer, without creating strings
+                    historyJournal.appendReceived(System.currentTimeMillis(), type == ResponseParser.Type.PRIVMSG,
+                            parser.getSender(), parser.getText());
+                }
+                if (!listeners.isEmpty()) {
+                    receivedMessages.add(new TextMessage(parser.getSender().toString(),
+                            type == ResponseParser.Type.PRIVMSG, parser.getText().toString()));
+                }
+                break;
+            case MSG_ERR:
+                onMsgError(parser.getArguments().toString());
+                break;
+            case CMD_ERR:
+                onCmdError(parser.getArguments().toString());
+                break;
+            case USERS:
+                // Parsed even without listeners: the index must follow every list, otherwise a
+                // listener added later would get the changes since an old list
+                String[] users = parser.splitArguments();
+                UserIndex.Diff diff = userIndex.update(users);
+                if (!listeners.isEmpty()) {
+                    onUsersList(users);
+                    if (!diff.isEmpty()) {
+                        onUsersChanged(diff.getJoined(), diff.getLeft());
+                    }
+                }
+                userListRequests.completeNext(users);
+                break;
+            case SUPPORTED:
+                String[] commands = null;
+                if (!listeners.isEmpty() || supportedRequests.isNextTracked()) {
+                    commands = parser.splitArguments();
+                    onSupported(commands);
+                }
+                supportedRequests.completeNext(commands);
+                break;
+            default:
+                // Other responses (for example "msgok") are not interesting for the listeners
+                break;
+        }
+        if (!message) {
+            // The messages are timed when their batch is delivered
+            metrics.recordDispatch(System.nanoTime() - readStartNanos, 1);
+        }
+        return isConnectionActive();
+    }
+
+    /**
+     * Called when reading from the socket fails. If the connection was still active, it was closed
+     * by the remote end (or the network), so close our side and notify the listeners.
+     */
+    void onConnectionLost() {
+        boolean wasActive;
+        synchronized (this) {
+            wasActive = isConnectionActive();
+            disconnect(true);
+        }
+        if (!wasActive) {
+            return;
+        }
+        if (reconnectPolicy == null) {
+            onDisconnect();
+            return;
+        }
+        int generation = connectGeneration.get();
+        if (!reconnecting) {
+            // Set before the listeners hear about it, so that they can keep sending messages
+            reconnectAttempts.set(0);
+            loginRejections.set(0);
+            reconnecting = true;
+            onDisconnect();
+        }
+        // Otherwise the connection was lost again during a reconnect, try again later
+        scheduleReconnect(generation);
+    }
+
+    /**
+     * Connect again by itself after the connection is lost. The delay before each attempt is random,
+     * up to a limit which starts at initialDelay and doubles after every failed attempt, until it
+     * reaches maxDelay. The randomness spreads out the clients of a restarted server, so that they
+     * don't all connect at the same moment.
+     *
+     * After reconnecting, the client starts listening again and logs in with the username of the
+     * last successful login. Then the chat messages sent during the outage are sent, and the
+     * listeners get {@link ChatListener#onReconnected()}. The listeners get
+     * {@link ChatListener#onDisconnect()} when the connection is lost, as before; the client keeps
+     * trying until {@link #connect(String, int)} or {@link #disconnect()} is called. If the server
+     * rejects the login again and again (the username was taken by someone else meanwhile), the
+     * client gives up after a few rejections and the listeners get
+     * {@link ChatListener#onReconnectFailed(String)} instead of an onLoginResult() for each of them.
+     *
+     * @param initialDelay   The longest wait before the first attempt
+     * @param maxDelay       The longest wait before any attempt
+     * @param unit           Unit of the delays
+     * @param outboxCapacity How many chat messages can be sent during the outage. When there are
+     *                       more, sending fails.
+     */
+    public void setAutoReconnect(long initialDelay, long maxDelay, TimeUnit unit, int outboxCapacity) {
+        if (initialDelay <= 0 || maxDelay < initialDelay || outboxCapacity < 0) {
+            throw new IllegalArgumentException("Invalid reconnect delays or outbox capacity");
+        }
+        reconnectPolicy = new ReconnectPolicy(unit.toMillis(initialDelay), unit.toMillis(maxDelay), outboxCapacity);
+    }
+
+    /**
+     * Stop reconnecting by itself after the connection is lost (the default). A reconnect in
+     * progress is cancelled, the messages waiting for it are dropped.
+     */
+    public void disableAutoReconnect() {
+        reconnectPolicy = null;
+        stopReconnecting();
+    }
+
+    /**
+     * @return true from losing the connection until the client has reconnected by itself and logged
+     *         in again. Chat messages sent meanwhile are sent after the reconnect.
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * Cancel the reconnect in progress, if any, and drop the messages waiting for it.
+     */
+    private void stopReconnecting() {
+        connectGeneration.incrementAndGet();
+        int dropped;
+        synchronized (outbox) {
+            reconnecting = false;
+            dropped = outbox.size();
+            outbox.clear();
+        }
+        if (dropped > 0) {
+            LOGGER.log(Level.WARNING, "Reconnect cancelled, " + dropped + " messages were not sent");
+        }
+    }
+
+    private void scheduleReconnect(int generation) {
+        ReconnectPolicy policy = reconnectPolicy;
+        if (policy == null || connectGeneration.get() != generation) {
+            return;
+        }
+        long delay = policy.delayMillis(reconnectAttempts.getAndIncrement());
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor)
+                .execute(() -> tryReconnect(generation));
+    }
+
+    /**
+     * Connect again, start listening and log in with the last username. Runs on the executor.
+     *
+     * @param generation The value of connectGeneration when the attempt was scheduled
+     */
+    private void tryReconnect(int generation) {
+        if (connectGeneration.get() != generation) {
+            return;
+        }
+        if (!open(remoteHost, remotePort)) {
+            scheduleReconnect(generation);
+            return;
+        }
+        metrics.countReconnect();
+        startListenThread();
+        String username = loggedInAs;
+        if (username == null) {
+            finishReconnect(generation);
+            return;
+        }
+        login(username).whenComplete((success, error) -> {
+            if (error == null && success) {
+                finishReconnect(generation);
+            } else {
+                // The server may still hold the old login (it has not noticed the old connection is
+                // gone), or did not answer: close and try again later
+                String loginError = lastError;
+                synchronized (this) {
+                    if (!isConnectionActive()) {
+                        // Lost, onConnectionLost() has scheduled the next attempt
+                        return;
+                    }
+                    disconnect(false);
+                }
+                if (error == null && loginRejections.incrementAndGet() >= ReconnectPolicy.MAX_LOGIN_REJECTIONS) {
+                    failReconnect(generation, loginError);
+                } else {
+                    scheduleReconnect(generation);
+                }
+            }
+        });
+    }
+
+    /**
+     * Give up reconnecting: the server keeps rejecting the login.
+     *
+     * @param generation The value of connectGeneration when the attempt was scheduled
+     * @param errMsg     The error message of the last rejected login
+     */
+    private void failReconnect(int generation, String errMsg) {
+        if (connectGeneration.get() != generation) {
+            return;
+        }
+        LOGGER.log(Level.WARNING, "Giving up reconnecting to " + remoteHost + ":" + remotePort
+                + ", the login was rejected " + loginRejections.get() + " times: " + errMsg);
+        stopReconnecting();
+        lastError = errMsg;
+        onReconnectFailed(errMsg);
+    }
+
+    /**
+     * Send the messages kept during the outage, in order, and end the reconnect. New messages wait
+     * for the lock of the outbox, so they go after the kept ones.
+     */
+    private void finishReconnect(int generation) {
+        synchronized (outbox) {
+            if (connectGeneration.get() != generation || !reconnecting) {
+                return;
+            }
+            HeldMessage held;
+            while ((held = outbox.peekFirst()) != null) {
+                if (!sendMessageNow(held.recipient, held.text)) {
+                    // Lost again, the rest is sent after the next attempt
+                    return;
+                }
+                outbox.pollFirst();
+            }
+            reconnecting = false;
+        }
+        LOGGER.log(Level.INFO, "Reconnected to " + remoteHost + ":" + remotePort + " after "
+                + reconnectAttempts.get() + " attempts");
+        onReconnected();
+    }
+
+    /**
+     * A chat message sent while reconnecting.
+     */
+    private static final class HeldMessage {
+        // Null for a public message
+        final String recipient;
+        final String text;
+
+        HeldMessage(String recipient, String text) {
+            this.recipient = recipient;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Register a new listener for events (login result, incoming message, etc)
+     *
+     * @param listener
+     */
+    public void addListener(ChatListener listener) {
+        // The lock only keeps the registry and the async dispatcher consistent, dispatching events
+        // does not use it
+        synchronized (listeners) {
+            if (slowListeners.isIsolated(listener)) {
+                // Registered already, in its isolated form
+                return;
+            }
+            AsyncDispatcher dispatcher = asyncDispatcher;
+            if (listeners.add(listener) && dispatcher != null) {
+                dispatcher.addConsumer(listener);
+            }
+        }
+    }
+
+    /**
+     * Unregister an event listener
+     *
+     * @param listener
+     */
+    public void removeListener(ChatListener listener) {
+        synchronized (listeners) {
+            ChatListener registered = slowListeners.release(listener);
+            AsyncDispatcher dispatcher = asyncDispatcher;
+            if (listeners.remove(registered) && dispatcher != null) {
+                dispatcher.removeConsumer(registered);
+            }
+        }
+    }
+
+    /**
+     * Set a time budget for the listener calls made on the receiving thread. Every call over the
+     * budget is a strike against the listener, every call within it takes a strike away. A listener
+     * which collects maxStrikes strikes is moved to its own thread with a bounded queue of events,
+     * so that it does not delay the other listeners and the reading of the socket. A warning is
+     * logged when it happens. Listeners which are {@link ChatListener#isCritical() critical} are
+     * never moved.
+     *
+     * The budget is not used when the events are dispatched asynchronously, there every listener
+     * has its own thread anyway.
+     *
+     * @param budget        Time budget of one call, 0 to turn the checks off (the default)
+     * @param unit          Unit of the budget
+     * @param maxStrikes    How many strikes make a listener slow
+     * @param queueCapacity How many events an isolated listener may lag behind. When its queue is
+     *                      full, new events are dropped for it.
+     */
+    public void setListenerBudget(long budget, TimeUnit unit, int maxStrikes, int queueCapacity) {
+        slowListeners.configure(unit.toNanos(budget), maxStrikes, queueCapacity);
+    }
+
+    /**
+     * @return The listeners which were moved to their own thread because they were too slow
+     */
+    public List<ChatListener> getIsolatedListeners() {
+        return slowListeners.getIsolated();
+    }
+
+    /**
+     * @param listener A listener of this client
+     * @return Number of events the listener did not get because it was isolated and its queue was
+     *         full
+     */
+    public long getDroppedEventCount(ChatListener listener) {
+        return slowListeners.getDroppedCount(listener);
+    }
+
+    /**
+     * Deliver the events to the listeners asynchronously. The receiving thread puts every event
+     * into a bounded ring buffer and returns to reading the socket; each listener gets the events on
+     * its own thread. Use this when some listeners are slow (for example GUI updates, logging).
+     *
+     * @param capacity       Size of the ring buffer (in events), rounded up to a power of two
+     * @param waitStrategy   How the listener threads wait for new events
+     * @param overflowPolicy What happens when the slowest listener is a whole ring behind
+     * @return The dispatcher, which also provides per-listener lag statistics
+     */
+    public AsyncDispatcher enableAsyncDispatch(int capacity, AsyncDispatcher.WaitStrategy waitStrategy,
+                                               AsyncDispatcher.OverflowPolicy overflowPolicy) {
+        AsyncDispatcher dispatcher = new AsyncDispatcher(capacity, waitStrategy, overflowPolicy);
+        synchronized (listeners) {
+            AsyncDispatcher old = asyncDispatcher;
+            if (old != null) {
+                old.shutdown();
+            }
+            for (ChatListener l : listeners.snapshot()) {
+                dispatcher.addConsumer(l);
+            }
+            asyncDispatcher = dispatcher;
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Go back to calling the listeners directly on the receiving thread. Events still waiting in
+     * the ring buffer are discarded.
+     */
+    public void disableAsyncDispatch() {
+        synchronized (listeners) {
+            AsyncDispatcher old = asyncDispatcher;
+            asyncDispatcher = null;
+            if (old != null) {
+                old.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return The async dispatcher, or null when the listeners are called directly
+     */
+    public AsyncDispatcher getAsyncDispatcher() {
+        return asyncDispatcher;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The following methods are all event-notificators - notify all the listeners about a specific event.
+    // By "event" here we mean "information received from the chat server".
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Check the time of a listener call against the budget, and commit its flight recorder event
+     * if it is recorded.
+     *
+     * @param start When the call started, System.nanoTime()
+     */
+    private void endListenerCall(FlightEvents.ListenerCall event, ChatListener listener, String callback,
+                                 long start) {
+        slowListeners.check(listener, callback, System.nanoTime() - start);
+        if (event != null && event.shouldCommit()) {
+            event.listenerClass = listener.getClass();
+            event.callback = callback;
+            event.commit();
+        }
+    }
+
+    /**
+     * Notify listeners that login operation is complete (either with success or
+     * failure)
+     *
+     * @param success When true, login successful. When false, it failed
+     * @param errMsg  Error message if any
+     */
+    private void onLoginResult(boolean success, String errMsg) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.loginResult(success, errMsg));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onLoginResult(success, errMsg);
+            endListenerCall(event, l, "onLoginResult", start);
+        }
+    }
+
+    /**
+     * Notify listeners that socket was closed by the remote end (server or
+     * Internet error)
+     */
+    private void onDisconnect() {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.disconnect());
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onDisconnect();
+            endListenerCall(event, l, "onDisconnect", start);
+        }
+    }
+
+    /**
+     * Notify listeners that the client has connected and logged in again after the connection was
+     * lost
+     */
+    private void onReconnected() {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.reconnected());
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onReconnected();
+            endListenerCall(event, l, "onReconnected", start);
+        }
+    }
+
+    /**
+     * Notify listeners that the client has given up reconnecting
+     *
+     * @param errMsg Error message of the last rejected login
+     */
+    private void onReconnectFailed(String errMsg) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.reconnectFailed(errMsg));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onReconnectFailed(errMsg);
+            endListenerCall(event, l, "onReconnectFailed", start);
+        }
+    }
+
+    /**
+     * Notify listeners that server sent us a list of currently connected users
+     *
+     * @param users List with usernames
+     */
+    private void onUsersList(String[] users) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.userList(users));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onUserList(users);
+            endListenerCall(event, l, "onUserList", start);
+        }
+    }
+
+    /**
+     * Notify listeners that users joined or left the chat
+     *
+     * @param joined Users who are new in the list
+     * @param left   Users who are no longer in the list
+     */
+    private void onUsersChanged(String[] joined, String[] left) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.usersChanged(joined, left));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onUsersChanged(joined, left);
+            endListenerCall(event, l, "onUsersChanged", start);
+        }
+    }
+
+    /**
+     * Notify listeners that messages are received from the server
+     *
+     * @param messages The messages which arrived together, in one read from the socket
+     */
+    private void onMsgsReceived(List<TextMessage> messages) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.messages(messages));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onMessagesReceived(messages);
+            endListenerCall(event, l, "onMessagesReceived", start);
+        }
+    }
+
+    /**
+     * Notify listeners that our message was not delivered
+     *
+     * @param errMsg Error description returned by the server
+     */
+    private void onMsgError(String errMsg) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.messageError(errMsg));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onMessageError(errMsg);
+            endListenerCall(event, l, "onMessageError", start);
+        }
+    }
+
+    /**
+     * Notify listeners that command was not understood by the server.
+     *
+     * @param errMsg Error message
+     */
+    private void onCmdError(String errMsg) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.commandError(errMsg));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onCommandError(errMsg);
+            endListenerCall(event, l, "onCommandError", start);
+        }
+    }
+
+    /**
+     * Notify listeners that a help response (supported commands) was received
+     * from the server
+     *
+     * @param commands Commands supported by the server
+     */
+    private void onSupported(String[] commands) {
+        AsyncDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(ChatEvent.supported(commands));
+            return;
+        }
+        for (ChatListener l : listeners.snapshot()) {
+            FlightEvents.ListenerCall event = FlightEvents.beginListenerCall();
+            long start = System.nanoTime();
+            l.onSupportedCommands(commands);
+            endListenerCall(event, l, "onSupportedCommands", start);
+        }
+    }
+}
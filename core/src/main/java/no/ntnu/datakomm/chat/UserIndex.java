@@ -0,0 +1,139 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The users currently logged in to the chat server, as reported by the last "users" response. Each
+ * new response is compared with the previous one, so that only the users who joined and the users
+ * who left have to be handled, instead of the whole list.
+ *
+ * The users are kept sorted by {@link #ORDER}: case-insensitive, and case-sensitive between names
+ * which differ only in case, so that the order does not depend on the order in the response.
+ * Not thread-safe.
+ */
+public class UserIndex {
+    /**
+     * The order of the users in the index and in the GUI
+     */
+    public static final Comparator<String> ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    /**
+     * The difference between two user lists
+     */
+    public static class Diff {
+        private final String[] joined;
+        private final String[] left;
+
+        Diff(String[] joined, String[] left) {
+            this.joined = joined;
+            this.left = left;
+        }
+
+        /**
+         * @return The users who are new in the list, sorted
+         */
+        public String[] getJoined() {
+            return joined;
+        }
+
+        /**
+         * @return The users who are no longer in the list, sorted
+         */
+        public String[] getLeft() {
+            return left;
+        }
+
+        /**
+         * @return true if the lists are the same
+         */
+        public boolean isEmpty() {
+            return joined.length == 0 && left.length == 0;
+        }
+    }
+
+    private static final String[] NONE = new String[0];
+
+    // Sorted by ORDER, without duplicates
+    private String[] users = NONE;
+
+    /**
+     * Replace the list of users with a new one.
+     *
+     * @param newUsers The users, in any order. Duplicates are ignored.
+     * @return The users who joined and the users who left, compared with the previous list
+     */
+    public Diff update(String[] newUsers) {
+        String[] sorted = sortUnique(newUsers);
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        // Walk both sorted lists together
+        int i = 0;
+        int j = 0;
+        while (i < users.length || j < sorted.length) {
+            int cmp;
+            if (i == users.length) {
+                cmp = 1;
+            } else if (j == sorted.length) {
+                cmp = -1;
+            } else {
+                cmp = ORDER.compare(users[i], sorted[j]);
+            }
+            if (cmp < 0) {
+                left.add(users[i++]);
+            } else if (cmp > 0) {
+                joined.add(sorted[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+        users = sorted;
+        return new Diff(joined.toArray(NONE), left.toArray(NONE));
+    }
+
+    /**
+     * Forget all the users, for example when the connection is closed.
+     */
+    public void clear() {
+        users = NONE;
+    }
+
+    /**
+     * @param username The name of a user
+     * @return true if the user is in the list
+     */
+    public boolean contains(String username) {
+        return Arrays.binarySearch(users, username, ORDER) >= 0;
+    }
+
+    /**
+     * @return Number of users in the list
+     */
+    public int size() {
+        return users.length;
+    }
+
+    /**
+     * @return The users in the list, sorted
+     */
+    public List<String> getUsers() {
+        return Collections.unmodifiableList(Arrays.asList(users));
+    }
+
+    private static String[] sortUnique(String[] names) {
+        String[] sorted = names.clone();
+        Arrays.sort(sorted, ORDER);
+        int count = 0;
+        for (String name : sorted) {
+            if (count == 0 || !sorted[count - 1].equals(name)) {
+                sorted[count++] = name;
+            }
+        }
+        return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+    }
+}
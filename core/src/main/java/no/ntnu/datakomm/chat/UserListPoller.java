@@ -0,0 +1,241 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * Asks the server for the user list (sends "users") at an interval which adapts to the activity in
+ * the chat. After activity (a message from a sender who is not in the list, a message error, a
+ * login) the list is refreshed soon, at the minimum interval. Every response equal to the previous
+ * one doubles the interval, up to the maximum. While paused (for example, when the window is
+ * minimized) nothing is sent; resuming refreshes the list right away.
+ *
+ * The poller listens to the client itself. It stops when the connection is closed.
+ */
+public class UserListPoller implements ChatListener {
+    private final TCPClient client;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    // Current time in milliseconds
+    private final LongSupplier clock;
+
+    // Used only by the thread which delivers the events of the client
+    private final UserIndex users = new UserIndex();
+
+    // Guarded by this
+    private boolean running = false;
+    private boolean paused = false;
+    private long intervalMillis;
+    private long lastPollMillis = 0;
+    private long nextPollMillis = 0;
+
+    private volatile long pollCount = 0;
+
+    /**
+     * Create a poller with intervals from 1 second to 1 minute.
+     *
+     * @param client The client to poll with
+     */
+    public UserListPoller(TCPClient client) {
+        this(client, 1000, 60000);
+    }
+
+    /**
+     * @param client            The client to poll with
+     * @param minIntervalMillis The interval after activity, in milliseconds
+     * @param maxIntervalMillis The longest interval when nothing changes, in milliseconds
+     */
+    public UserListPoller(TCPClient client, long minIntervalMillis, long maxIntervalMillis) {
+        this(client, minIntervalMillis, maxIntervalMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param client            The client to poll with
+     * @param minIntervalMillis The interval after activity, in milliseconds
+     * @param maxIntervalMillis The longest interval when nothing changes, in milliseconds
+     * @param clock             Gives the current time in milliseconds (a fake clock in the tests)
+     */
+    UserListPoller(TCPClient client, long minIntervalMillis, long maxIntervalMillis, LongSupplier clock) {
+        if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("Invalid polling intervals");
+        }
+        this.client = client;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.clock = clock;
+        this.intervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Start polling. The first request is sent right away (unless paused).
+     *
+     * @param executor Runs the polling loop
+     */
+    public void start(Executor executor) {
+        synchronized (this) {
+            if (running) {
+                return;
+            }
+            running = true;
+            intervalMillis = minIntervalMillis;
+            nextPollMillis = clock.getAsLong();
+        }
+        client.addListener(this);
+        executor.execute(this::pollLoop);
+    }
+
+    /**
+     * Stop polling.
+     */
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        client.removeListener(this);
+    }
+
+    /**
+     * Stop sending requests (true) or continue (false). When continuing, the list is refreshed
+     * right away, because it may have changed a lot meanwhile.
+     *
+     * @param paused When true, no requests are sent
+     */
+    public synchronized void setPaused(boolean paused) {
+        if (this.paused && !paused) {
+            intervalMillis = minIntervalMillis;
+            nextPollMillis = clock.getAsLong();
+        }
+        this.paused = paused;
+        notifyAll();
+    }
+
+    /**
+     * Something happened which may have changed the user list: refresh it soon, but not sooner than
+     * the minimum interval after the last request.
+     */
+    public synchronized void onActivity() {
+        intervalMillis = minIntervalMillis;
+        nextPollMillis = Math.min(nextPollMillis, lastPollMillis + minIntervalMillis);
+        notifyAll();
+    }
+
+    /**
+     * Send a request whenever it is due, until stopped or disconnected.
+     */
+    private void pollLoop() {
+        try {
+            while (waitForNextPoll()) {
+                client.refreshUserList();
+                pollCount++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stop();
+    }
+
+    /**
+     * @return true when the next request must be sent, false when the polling is over
+     */
+    private synchronized boolean waitForNextPoll() throws InterruptedException {
+        while (running && client.isConnectionActive()) {
+            long wait = takeDuePoll();
+            if (wait == 0) {
+                return true;
+            }
+            wait(wait);
+        }
+        return false;
+    }
+
+    /**
+     * If a request is due now, schedule the one after it.
+     *
+     * @return 0 if a request must be sent now, otherwise how long to wait before checking again, in
+     * milliseconds
+     */
+    synchronized long takeDuePoll() {
+        long now = clock.getAsLong();
+        if (!paused && now >= nextPollMillis) {
+            lastPollMillis = now;
+            nextPollMillis = now + intervalMillis;
+            return 0;
+        }
+        // Check the connection at least once a second, a closed connection does not wake us up
+        return paused ? 1000 : Math.min(nextPollMillis - now, 1000);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        boolean changed = !users.update(usernames).isEmpty();
+        synchronized (this) {
+            if (changed) {
+                intervalMillis = minIntervalMillis;
+            } else {
+                intervalMillis = Math.min(intervalMillis * 2, maxIntervalMillis);
+            }
+            nextPollMillis = lastPollMillis + intervalMillis;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        if (!users.contains(message.getSender())) {
+            onActivity();
+        }
+    }
+
+    @Override
+    public void onMessagesReceived(List<TextMessage> messages) {
+        for (TextMessage message : messages) {
+            if (!users.contains(message.getSender())) {
+                // A new sender, the others in the batch don't change anything
+                onActivity();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        // Probably a private message to a user who is gone
+        onActivity();
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        if (success) {
+            onActivity();
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+        stop();
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    /**
+     * @return Number of requests sent
+     */
+    public long getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * @return The current polling interval, in milliseconds
+     */
+    public synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+}
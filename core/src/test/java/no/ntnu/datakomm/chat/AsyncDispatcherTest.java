@@ -0,0 +1,81 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class AsyncDispatcherTest {
+
+    /**
+     * With the BLOCK policy every listener gets every event, even when the ring buffer is much smaller
+     * than the number of events.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testBlockDeliversEverything() throws InterruptedException {
+        final int EVENTS = 100000;
+        AsyncDispatcher dispatcher = new AsyncDispatcher(64, AsyncDispatcher.WaitStrategy.YIELDING,
+                AsyncDispatcher.OverflowPolicy.BLOCK);
+        DummyResponseCounter c1 = new DummyResponseCounter();
+        DummyResponseCounter c2 = new DummyResponseCounter();
+        dispatcher.addConsumer(c1);
+        dispatcher.addConsumer(c2);
+        for (int i = 0; i < EVENTS; i++) {
+            dispatcher.publish(ChatEvent.messageError("err"));
+        }
+        waitUntilDelivered(dispatcher, c1, EVENTS);
+        waitUntilDelivered(dispatcher, c2, EVENTS);
+        assertEquals(EVENTS, c1.msgErr);
+        assertEquals(EVENTS, c2.msgErr);
+        assertEquals(0, dispatcher.getLag(c1));
+        dispatcher.shutdown();
+    }
+
+    /**
+     * With the DROP_NEWEST policy a stuck listener must not block the producer, and the other
+     * listeners still get the events the ring buffer could hold.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testDropNewestDoesNotBlockProducer() throws InterruptedException {
+        AsyncDispatcher dispatcher = new AsyncDispatcher(16, AsyncDispatcher.WaitStrategy.BLOCKING,
+                AsyncDispatcher.OverflowPolicy.DROP_NEWEST);
+        CountDownLatch release = new CountDownLatch(1);
+        ChatListener stuck = new EmptyChatListener() {
+            @Override
+            public void onMessageError(String errMsg) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        dispatcher.addConsumer(stuck);
+        for (int i = 0; i < 1000; i++) {
+            dispatcher.publish(ChatEvent.messageError("err"));
+        }
+        // The producer got here without waiting: the ring holds 16 events, the rest were dropped
+        assertEquals(16, dispatcher.getPublishedCount());
+        assertEquals(1000 - 16, dispatcher.getDroppedNewestCount());
+        assertTrue(dispatcher.getLag(stuck) > 0);
+        release.countDown();
+        waitUntilDelivered(dispatcher, stuck, 16);
+        dispatcher.shutdown();
+    }
+
+    private static void waitUntilDelivered(AsyncDispatcher dispatcher, ChatListener listener, long count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dispatcher.getDeliveredCount(listener) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, dispatcher.getDeliveredCount(listener));
+    }
+}
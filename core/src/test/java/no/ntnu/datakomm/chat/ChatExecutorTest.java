@@ -0,0 +1,101 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ChatExecutorTest {
+
+    /**
+     * The virtual thread executor must use virtual threads exactly when the running JDK has them
+     * (Java 21 and newer), and fall back to platform threads otherwise.
+     *
+     * @throws Exception When the test is interrupted
+     */
+    @Test
+    public void testVirtualThreadLookup() throws Exception {
+        boolean supported = Runtime.version().feature() >= 21;
+        assertEquals(supported, ChatExecutor.isVirtualThreadSupported());
+
+        ChatExecutor executor = ChatExecutor.virtualThreads();
+        assertEquals(supported, executor.isVirtual());
+        assertEquals(supported ? "virtual" : "platform", executor.getName());
+
+        // The tasks really run on that kind of thread
+        AtomicBoolean ranOnVirtual = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(() -> {
+            ranOnVirtual.set(isVirtualThread(Thread.currentThread()));
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(supported, ranOnVirtual.get());
+
+        assertFalse(ChatExecutor.platformThreads().isVirtual());
+    }
+
+    /**
+     * The counters must follow the tasks: started, running now, the peak and the start latency.
+     *
+     * @throws Exception When the test is interrupted
+     */
+    @Test
+    public void testCounters() throws Exception {
+        final int TASKS = 5;
+        ExecutorService pool = Executors.newFixedThreadPool(TASKS);
+        try {
+            ChatExecutor executor = ChatExecutor.wrap("pool", pool);
+            assertEquals("pool", executor.getName());
+            assertEquals(0, executor.getTasksStarted());
+
+            CountDownLatch running = new CountDownLatch(TASKS);
+            CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < TASKS; i++) {
+                executor.execute(() -> {
+                    running.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+            assertEquals(TASKS, executor.getTasksStarted());
+            assertEquals(TASKS, executor.getActiveCount());
+            assertEquals(TASKS, executor.getPeakActiveCount());
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, executor.getActiveCount());
+            // The peak stays
+            assertEquals(TASKS, executor.getPeakActiveCount());
+            assertTrue(executor.getMaxStartLatencyNanos() > 0);
+            assertTrue(executor.getAverageStartLatencyNanos() <= executor.getMaxStartLatencyNanos());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Thread.isVirtual() exists only on Java 21 and newer.
+     */
+    private static boolean isVirtualThread(Thread thread) {
+        try {
+            Method isVirtual = Thread.class.getMethod("isVirtual");
+            return (Boolean) isVirtual.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.ReferenceChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ChatSessionManagerTest {
+    private ReferenceChatServer server;
+    private ChatSessionManager manager;
+
+    @Before
+    public void start() throws IOException {
+        server = ReferenceChatServer.start();
+        manager = new ChatSessionManager(server.getHost(), server.getPort());
+    }
+
+    @After
+    public void stop() {
+        manager.close();
+        server.close();
+    }
+
+    /**
+     * Many sessions must log in through one selector thread, within the connect rate, and their
+     * events must reach the shared listeners tagged with the right session.
+     *
+     * @throws Exception When the test is interrupted or times out
+     */
+    @Test
+    public void testManySessions() throws Exception {
+        final int SESSIONS = 40;
+        Map<String, List<String>> received = new ConcurrentHashMap<>();
+        AtomicInteger online = new AtomicInteger();
+        manager.addListener(new SessionListener() {
+            @Override
+            public void onStateChanged(ChatSession session, ChatSession.State previous, ChatSession.State state) {
+                if (state == ChatSession.State.ONLINE) {
+                    online.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onMessageReceived(ChatSession session, TextMessage message) {
+                received.computeIfAbsent(session.getUsername(), u -> new ArrayList<>()).add(message.getText());
+            }
+        });
+        manager.setConnectRate(200, 8);
+        List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            usernames.add("bot" + i);
+        }
+        int threadsBefore = Thread.activeCount();
+        long start = System.nanoTime();
+        List<ChatSession> sessions = manager.addSessions(usernames);
+        // Same username twice, and a username which the server does not accept
+        try {
+            manager.addSession("bot0");
+            fail("Duplicate session accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        ChatSession invalid = manager.addSession("not valid");
+        manager.whenAllStarted().get(10, TimeUnit.SECONDS);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // 41 sessions at 200 per second take at least 150 ms
+        assertTrue("Too fast: " + elapsedMillis + " ms", elapsedMillis >= 150);
+        assertEquals(SESSIONS, manager.getOnlineCount());
+        assertEquals(SESSIONS, online.get());
+        assertEquals(ChatSession.State.FAILED, invalid.getState());
+        assertFalse(invalid.getLoginResult().get());
+        assertEquals(Integer.valueOf(1), manager.getStateCounts().get(ChatSession.State.FAILED));
+        assertEquals(SESSIONS + 1, manager.getMetrics().getConnectCount());
+        // No thread per session
+        assertTrue(Thread.activeCount() - threadsBefore < SESSIONS / 2);
+
+        // Private messages arrive at the right session, public ones at all the others
+        sessions.get(0).sendPrivateMessage("bot1", "hello one");
+        sessions.get(2).sendPublicMessage("hello all");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < SESSIONS - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(SESSIONS - 1, received.size());
+        assertFalse(received.containsKey("bot2"));
+        assertTrue(received.get("bot1").contains("hello one"));
+        assertFalse(received.get("bot3").contains("hello one"));
+        assertTrue(received.get("bot3").contains("hello all"));
+
+        // Closing a session removes it
+        sessions.get(5).close();
+        assertEquals(ChatSession.State.CLOSED, sessions.get(5).getState());
+        assertNull(manager.getSession("bot5"));
+        assertEquals(SESSIONS - 1, manager.getOnlineCount());
+
+        // When the server drops the connections, the sessions are lost
+        server.disconnectAll();
+        deadline = System.currentTimeMillis() + 5000;
+        while (manager.getOnlineCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(Integer.valueOf(SESSIONS - 1), manager.getStateCounts().get(ChatSession.State.LOST));
+    }
+
+    /**
+     * A session whose start fails with an exception (here a listener throws when the session starts
+     * connecting) must give back its place among the connecting sessions. With more failures than
+     * places, the sessions after them must still connect.
+     *
+     * @throws Exception When the test is interrupted or times out
+     */
+    @Test
+    public void testFailingStartFreesSlot() throws Exception {
+        manager.addListener(new SessionListener() {
+            @Override
+            public void onStateChanged(ChatSession session, ChatSession.State previous, ChatSession.State state) {
+                if (state == ChatSession.State.CONNECTING && session.getUsername().startsWith("broken")) {
+                    throw new IllegalStateException("Broken listener");
+                }
+            }
+        });
+        manager.setConnectRate(200, 2);
+        List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            usernames.add("broken" + i);
+        }
+        usernames.add("bot0");
+        usernames.add("bot1");
+        List<ChatSession> sessions = manager.addSessions(usernames);
+        manager.whenAllStarted().get(10, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 5; i++) {
+            assertFalse(sessions.get(i).getLoginResult().get());
+        }
+        assertTrue(manager.getSession("bot0").getLoginResult().get());
+        assertTrue(manager.getSession("bot1").getLoginResult().get());
+        assertEquals(2, manager.getOnlineCount());
+    }
+}
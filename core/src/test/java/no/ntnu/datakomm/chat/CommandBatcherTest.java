@@ -0,0 +1,126 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandBatcherTest {
+
+    /**
+     * A sink which remembers every batch written to it, as the lines of the batch.
+     */
+    private static class RecordingSink implements CommandBatcher.Sink {
+        private final List<List<String>> batches = new ArrayList<>();
+
+        @Override
+        public synchronized void writeBatch(ByteBuffer[] batch, int count) {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                lines.add(StandardCharsets.UTF_8.decode(batch[i]).toString());
+            }
+            batches.add(lines);
+        }
+
+        synchronized List<List<String>> getBatches() {
+            return new ArrayList<>(batches);
+        }
+    }
+
+    private final RecordingSink sink = new RecordingSink();
+    private final CommandBatcher batcher = new CommandBatcher(sink);
+
+    /**
+     * Without a window every command is written at once, one write per command.
+     */
+    @Test
+    public void testNoBatching() throws Exception {
+        batcher.send("msg one", false);
+        batcher.send("msg two", false);
+        assertEquals(Arrays.asList(Arrays.asList("msg one\n"), Arrays.asList("msg two\n")), sink.getBatches());
+        assertEquals(0, batcher.getPendingBytes());
+    }
+
+    /**
+     * The commands sent within the window are written together with one write when it ends.
+     */
+    @Test
+    public void testWindowCoalescing() throws Exception {
+        batcher.configure(200000, 0);
+        int bytes = 0;
+        for (int i = 0; i < 5; i++) {
+            bytes += batcher.send("msg " + i, false);
+        }
+        assertEquals(5 * "msg 0\n".length(), bytes);
+        assertTrue(sink.getBatches().isEmpty());
+        assertEquals(bytes, batcher.getPendingBytes());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.getBatches().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sink.getBatches().size());
+        assertEquals(Arrays.asList("msg 0\n", "msg 1\n", "msg 2\n", "msg 3\n", "msg 4\n"), sink.getBatches().get(0));
+        assertEquals(0, batcher.getPendingBytes());
+    }
+
+    /**
+     * When the byte budget is reached, the batch is written without waiting for the window.
+     */
+    @Test
+    public void testByteBudget() throws Exception {
+        int commandBytes = "msg x\n".length();
+        batcher.configure(10000000, 3 * commandBytes);
+        batcher.send("msg x", false);
+        batcher.send("msg x", false);
+        assertTrue(sink.getBatches().isEmpty());
+        assertEquals(2 * commandBytes, batcher.getPendingBytes());
+        batcher.send("msg x", false);
+        assertEquals(1, sink.getBatches().size());
+        assertEquals(3, sink.getBatches().get(0).size());
+        assertEquals(0, batcher.getPendingBytes());
+    }
+
+    /**
+     * An immediate command (login, users, help) bypasses the window, and takes the commands waiting
+     * before it along, in order.
+     */
+    @Test
+    public void testImmediate() throws Exception {
+        batcher.configure(10000000, 0);
+        batcher.send("msg one", false);
+        batcher.send("msg two", false);
+        assertTrue(sink.getBatches().isEmpty());
+        batcher.send("users", true);
+        assertEquals(Arrays.asList(Arrays.asList("msg one\n", "msg two\n", "users\n")), sink.getBatches());
+        assertEquals(0, batcher.getPendingBytes());
+    }
+
+    /**
+     * flush() writes the waiting commands at once, and does nothing when nothing is waiting.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        batcher.configure(10000000, 0);
+        batcher.send("msg one", false);
+        batcher.send("privmsg bob two", false);
+        batcher.flush();
+        assertEquals(Arrays.asList(Arrays.asList("msg one\n", "privmsg bob two\n")), sink.getBatches());
+        batcher.flush();
+        assertEquals(1, sink.getBatches().size());
+
+        // The window timer of the flushed batch does not write anything later
+        Thread.sleep(50);
+        batcher.configure(20000, 0);
+        batcher.send("msg three", false);
+        batcher.discard();
+        Thread.sleep(100);
+        assertEquals(1, sink.getBatches().size());
+        assertEquals(0, batcher.getPendingBytes());
+    }
+}
@@ -0,0 +1,143 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class HistoryIndexTest {
+    private static final String[] SENDERS = {"alice", "Bob", "carol"};
+    private static final String[] WORDS = {"hello", "world", "pizza", "tonight", "meeting"};
+
+    private Path dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("chat-index");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    private static String textOf(int i) {
+        return "Message " + i + ": " + WORDS[i % WORDS.length] + ", " + WORDS[(i / 5) % WORDS.length].toUpperCase();
+    }
+
+    private static void append(HistoryJournal journal, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (i % 7 == 0) {
+                journal.appendSent(i, i % 2 == 0 ? "bob" : null, textOf(i));
+            } else {
+                journal.appendReceived(i, i % 2 == 0, SENDERS[i % SENDERS.length], textOf(i));
+            }
+        }
+    }
+
+    /**
+     * The same messages as a search by brute force, newest first.
+     */
+    private static List<String> expected(List<HistoryEntry> all, String sender, String word, boolean priv) {
+        List<String> texts = new ArrayList<>();
+        for (int i = all.size() - 1; i >= 0; i--) {
+            HistoryEntry e = all.get(i);
+            if ((sender == null || (!e.isOutgoing() && e.getPeer().equalsIgnoreCase(sender)))
+                    && (word == null || e.getText().toLowerCase().matches(".*\\b" + word + "\\b.*"))
+                    && (!priv || e.isPrivate())) {
+                texts.add(e.getText());
+            }
+        }
+        return texts;
+    }
+
+    private static List<String> texts(List<HistoryEntry> entries) {
+        List<String> texts = new ArrayList<>();
+        entries.forEach(e -> texts.add(e.getText()));
+        return texts;
+    }
+
+    /**
+     * Searches must find the same messages as going through all of them, from the memory, from the
+     * segment files and after merging the segments.
+     *
+     * @throws IOException When the journal or the index can't be used
+     */
+    @Test
+    public void testSearch() throws IOException {
+        HistoryJournal journal = new HistoryJournal(dir.resolve("journal"), 64 * 1024, 0, 0);
+        append(journal, 0, 5000);
+        HistoryIndex index = new HistoryIndex(journal, dir.resolve("index"), Runnable::run, 400);
+        List<HistoryEntry> all = new ArrayList<>();
+        journal.scan(0, all::add);
+
+        assertEquals(expected(all, "bob", "pizza", false), texts(index.search("sender:bob AND pizza", 10000)));
+        assertEquals(expected(all, "Bob", "pizza", false), texts(index.search("Sender:BOB Pizza", 10000)));
+        assertEquals(expected(all, null, "hello", true), texts(index.search("hello is:private", 10000)));
+        assertEquals(expected(all, "alice", "42", false), texts(index.search("sender:alice 42", 10000)));
+        assertEquals(expected(all, null, "tonight", false).subList(0, 5), texts(index.search("tonight", 5)));
+        assertTrue(index.search("sender:nobody", 10).isEmpty());
+        assertTrue(index.search("", 10).isEmpty());
+        // Merged, there were more than 12 flushes
+        assertTrue(index.getSegmentCount() <= 8);
+
+        // New messages are found after the next catch-up, they are indexed in memory
+        journal.appendReceived(6000, false, "dave", "A brand new topic");
+        index.onMessageReceived(new TextMessage("dave", false, "A brand new topic"));
+        assertEquals(1, index.search("sender:dave brand", 10).size());
+        assertEquals(1, index.find("topic").length);
+        // The sent messages do not reach the listener methods, the sender asks for the catch-up
+        journal.appendSent(6001, null, "My own topic");
+        index.scheduleCatchUp();
+        assertEquals(journal.getEndPosition(), index.getIndexedEnd());
+        journal.appendSent(6002, "dave", "Kept while reconnecting");
+        index.onReconnected();
+        assertEquals(journal.getEndPosition(), index.getIndexedEnd());
+        assertEquals(2, index.find("topic").length);
+        index.close();
+        journal.close();
+    }
+
+    /**
+     * After reopening, only the messages after the last segment must be indexed, and the results
+     * must be the same.
+     *
+     * @throws IOException When the journal or the index can't be used
+     */
+    @Test
+    public void testReopen() throws IOException {
+        HistoryJournal journal = new HistoryJournal(dir.resolve("journal"), 64 * 1024, 0, 0);
+        append(journal, 0, 2000);
+        HistoryIndex index = new HistoryIndex(journal, dir.resolve("index"), Runnable::run, 50000);
+        index.catchUp();
+        long[] before = index.find("sender:carol meeting");
+        assertTrue(before.length > 0);
+        index.close();
+        long end = index.getIndexedEnd();
+        assertEquals(journal.getEndPosition(), end);
+
+        append(journal, 2000, 3000);
+        index = new HistoryIndex(journal, dir.resolve("index"), Runnable::run, 50000);
+        assertEquals(1, index.getSegmentCount());
+        assertEquals(end, index.getIndexedEnd());
+        long[] after = index.find("sender:carol meeting");
+        List<HistoryEntry> all = new ArrayList<>();
+        journal.scan(0, all::add);
+        assertEquals(expected(all, "carol", "meeting", false).size(), after.length);
+        assertArrayEquals(before, Arrays.copyOf(after, before.length));
+        index.close();
+        journal.close();
+    }
+}
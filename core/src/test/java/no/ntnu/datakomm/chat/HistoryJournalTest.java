@@ -0,0 +1,177 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class HistoryJournalTest {
+    private Path dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("chat-history");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    /**
+     * The messages must be read back unchanged, in order, across segments and after reopening.
+     *
+     * @throws IOException When the journal can't be used
+     */
+    @Test
+    public void testAppendAndRead() throws IOException {
+        final int MESSAGES = 1000;
+        HistoryJournal journal = new HistoryJournal(dir, 4096, 0, 0);
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i % 3 == 0) {
+                assertTrue(journal.appendSent(1000 + i, i % 2 == 0 ? "bob" : null, "Sent æøå 😀 " + i));
+            } else {
+                assertTrue(journal.appendReceived(1000 + i, i % 2 == 0, new StringBuilder("user" + i),
+                        "Received " + i));
+            }
+        }
+        assertTrue(journal.getSegmentCount() > 1);
+        journal.close();
+
+        journal = new HistoryJournal(dir, 4096, 0, 0);
+        List<HistoryEntry> all = new ArrayList<>();
+        journal.scan(0, all::add);
+        assertEquals(MESSAGES, all.size());
+        for (int i = 0; i < MESSAGES; i++) {
+            HistoryEntry entry = all.get(i);
+            assertEquals(1000 + i, entry.getTimestamp());
+            assertEquals(i % 2 == 0, entry.isPrivate());
+            assertEquals(i % 3 == 0, entry.isOutgoing());
+            if (i % 3 == 0) {
+                assertEquals(i % 2 == 0 ? "bob" : "", entry.getPeer());
+                assertEquals("Sent æøå 😀 " + i, entry.getText());
+            } else {
+                assertEquals("user" + i, entry.getPeer());
+                assertEquals("Received " + i, entry.getText());
+            }
+            assertEquals(entry.getText(), journal.read(entry.getPosition()).getText());
+        }
+
+        // Backwards, in pages, the same as forwards
+        List<HistoryEntry> last = journal.readLast(10);
+        assertEquals(all.subList(MESSAGES - 10, MESSAGES).toString(), last.toString());
+        List<HistoryEntry> backwards = new ArrayList<>(last);
+        while (true) {
+            List<HistoryEntry> older = journal.readBefore(backwards.get(0).getPosition(), 37);
+            if (older.isEmpty()) {
+                break;
+            }
+            backwards.addAll(0, older);
+        }
+        assertEquals(all.toString(), backwards.toString());
+
+        // New messages go after the old ones
+        assertTrue(journal.appendReceived(5000, false, "late", "After reopening"));
+        assertEquals("After reopening", journal.readLast(1).get(0).getText());
+        journal.close();
+        assertFalse(journal.appendReceived(5001, false, "late", "Closed"));
+    }
+
+    /**
+     * A record which was being written during a crash must be erased, the complete ones kept.
+     *
+     * @throws IOException When the journal can't be used
+     */
+    @Test
+    public void testCrashRecovery() throws IOException {
+        HistoryJournal journal = new HistoryJournal(dir, 4096, 0, 0);
+        journal.appendReceived(1, false, "alice", "first");
+        journal.appendReceived(2, false, "alice", "second");
+        long end = journal.getEndPosition();
+        journal.close();
+
+        // A half-written record: the length is there, the checksum does not match
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer garbage = ByteBuffer.allocate(40);
+            garbage.putInt(0, 20).putInt(4, 12345).putInt(28, 20);
+            channel.write(garbage, end);
+        }
+
+        journal = new HistoryJournal(dir, 4096, 0, 0);
+        assertEquals(end, journal.getEndPosition());
+        journal.appendReceived(3, false, "alice", "third");
+        List<HistoryEntry> entries = journal.readLast(10);
+        assertEquals(3, entries.size());
+        assertEquals("third", entries.get(2).getText());
+        journal.close();
+    }
+
+    /**
+     * The oldest segments must be deleted when the journal is too big or too old.
+     *
+     * @throws IOException When the journal can't be used
+     */
+    @Test
+    public void testExpiry() throws IOException {
+        HistoryJournal journal = new HistoryJournal(dir, 4096, 0, 4 * 4096);
+        for (int i = 0; i < 2000; i++) {
+            journal.appendReceived(i, false, "user", "Message " + i);
+        }
+        assertTrue(journal.getTotalBytes() <= 4 * 4096);
+        List<HistoryEntry> all = new ArrayList<>();
+        journal.scan(0, all::add);
+        assertEquals("Message 1999", all.get(all.size() - 1).getText());
+        assertTrue(all.size() < 2000);
+        journal.close();
+
+        // Everything is very old now: only the active segment stays
+        journal = new HistoryJournal(dir, 4096, 1000, 0);
+        assertEquals(1, journal.getSegmentCount());
+        journal.close();
+    }
+
+    /**
+     * Appending must not allocate, so that it can be done on the receiving thread.
+     *
+     * @throws IOException When the journal can't be used
+     */
+    @Test
+    public void testAppendDoesNotAllocate() throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        HistoryJournal journal = new HistoryJournal(dir, 4 << 20, 0, 0);
+        StringBuilder sender = new StringBuilder("alice");
+        StringBuilder text = new StringBuilder("A message with some text in it, æøå");
+        // Warm up
+        for (int i = 0; i < 20000; i++) {
+            journal.appendReceived(i, false, sender, text);
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; i++) {
+            journal.appendReceived(i, false, sender, text);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        journal.close();
+        // Some slack for the measurement itself
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
@@ -0,0 +1,44 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    /**
+     * The percentiles must be within the precision of the buckets (about 3%), and never above the
+     * highest recorded value.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50000500, histogram.getMean(), 1);
+        assertWithin(50000000, histogram.getValueAtPercentile(50));
+        assertWithin(99000000, histogram.getValueAtPercentile(99));
+        assertWithin(99900000, histogram.getValueAtPercentile(99.9));
+        assertEquals(100000000, histogram.getValueAtPercentile(100));
+
+        histogram.record(-5, 3);
+        assertEquals(100003, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + ", got " + actual,
+                Math.abs(actual - expected) <= expected * 0.04);
+    }
+}
@@ -0,0 +1,102 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LineFramerTest {
+    private final List<String> lines = new ArrayList<>();
+    private final LineFramer framer = new LineFramer(false, 16);
+
+    private final LineFramer.LineHandler collector = (buffer, start, end) -> {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = buffer.get(i);
+        }
+        lines.add(new String(bytes, StandardCharsets.UTF_8));
+        return true;
+    };
+
+    private void receive(String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        while (in.available() > 0) {
+            if (framer.readFrom(in) == 0) {
+                // The buffer is full
+                assertTrue(framer.drainLines(collector));
+            }
+        }
+    }
+
+    /**
+     * Lines split across reads must be put together, "\r\n" and "\n" both end a line, and the buffer
+     * must grow for a line longer than it.
+     */
+    @Test
+    public void testLines() throws IOException {
+        receive("msg a hi\nms");
+        assertTrue(framer.drainLines(collector));
+        assertEquals(Arrays.asList("msg a hi"), lines);
+        assertEquals(2, framer.bufferedBytes());
+
+        receive("g b there\r\n");
+        receive("a much longer line than the buffer\n");
+        assertTrue(framer.drainLines(collector));
+        assertEquals(0, framer.bufferedBytes());
+        assertEquals(Arrays.asList("msg a hi", "msg b there", "a much longer line than the buffer"),
+                lines);
+    }
+
+    /**
+     * A handler which throws must leave the framer consistent: the line it got is consumed, the
+     * lines after it are delivered by the next call, and new data is appended after them instead of
+     * overwriting them.
+     */
+    @Test
+    public void testThrowingHandler() throws IOException {
+        LineFramer.LineHandler failing = (buffer, start, end) -> {
+            collector.onLine(buffer, start, end);
+            if (lines.size() == 1) {
+                throw new IllegalStateException("Broken listener");
+            }
+            return true;
+        };
+        receive("one\ntwo\nth");
+        try {
+            framer.drainLines(failing);
+            fail("The exception of the handler must be passed on");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(Arrays.asList("one"), lines);
+        assertEquals("two\nth".length(), framer.bufferedBytes());
+
+        receive("ree\nfour\n");
+        assertTrue(framer.drainLines(failing));
+        assertEquals(Arrays.asList("one", "two", "three", "four"), lines);
+        assertEquals(0, framer.bufferedBytes());
+    }
+
+    /**
+     * A handler which stops leaves the rest of the lines in the buffer for the next call.
+     */
+    @Test
+    public void testStoppingHandler() throws IOException {
+        receive("one\ntwo\n");
+        assertTrue(framer.drainLines((buffer, start, end) -> {
+            collector.onLine(buffer, start, end);
+            return false;
+        }));
+        assertEquals(Arrays.asList("one"), lines);
+        receive("three\n");
+        assertTrue(framer.drainLines(collector));
+        assertEquals(Arrays.asList("one", "two", "three"), lines);
+    }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ListenerRegistryTest {
+
+    /**
+     * Test that a listener is registered only once and can be removed
+     */
+    @Test
+    public void testAddRemove() {
+        ListenerRegistry registry = new ListenerRegistry();
+        ChatListener l1 = new EmptyChatListener();
+        ChatListener l2 = new EmptyChatListener();
+        assertTrue(registry.isEmpty());
+        assertTrue(registry.add(l1));
+        assertFalse(registry.add(l1));
+        assertTrue(registry.add(l2));
+        assertEquals(2, registry.size());
+        assertTrue(registry.remove(l1));
+        assertFalse(registry.remove(l1));
+        assertSame(l2, registry.snapshot()[0]);
+        assertTrue(registry.remove(l2));
+        assertTrue(registry.isEmpty());
+    }
+
+    /**
+     * Stress test: one thread dispatches events at a high rate while several threads keep registering
+     * and unregistering listeners. The dispatch must never fail, and a listener which stays registered
+     * the whole time must receive every event.
+     *
+     * @throws InterruptedException When test is interrupted while waiting for the threads
+     */
+    @Test
+    public void testConcurrentRegistrationDuringDispatch() throws InterruptedException {
+        final int EVENTS = 2000000;
+        final int REGISTERING_THREADS = 4;
+        ListenerRegistry registry = new ListenerRegistry();
+        DummyResponseCounter permanent = new DummyResponseCounter();
+        registry.add(permanent);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread dispatcher = new Thread(() -> {
+            try {
+                start.await();
+                for (int i = 0; i < EVENTS; i++) {
+                    for (ChatListener l : registry.snapshot()) {
+                        l.onMessageError("err");
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        Thread[] registering = new Thread[REGISTERING_THREADS];
+        for (int t = 0; t < REGISTERING_THREADS; t++) {
+            registering[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    while (dispatcher.isAlive()) {
+                        DummyResponseCounter temporary = new DummyResponseCounter();
+                        assertTrue(registry.add(temporary));
+                        assertTrue(registry.remove(temporary));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+        }
+
+        dispatcher.start();
+        for (Thread t : registering) {
+            t.start();
+        }
+        start.countDown();
+        dispatcher.join();
+        for (Thread t : registering) {
+            t.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(EVENTS, permanent.msgErr);
+        assertEquals(1, registry.size());
+        assertSame(permanent, registry.snapshot()[0]);
+    }
+}
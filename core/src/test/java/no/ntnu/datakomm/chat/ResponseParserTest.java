@@ -0,0 +1,158 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ResponseParserTest {
+    private final ResponseParser parser = new ResponseParser();
+
+    /**
+     * Put the lines one after another into one buffer, like the receive buffer, and parse the line
+     * with the given index.
+     */
+    private ResponseParser.Type parseLine(ByteBuffer buffer, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            while (buffer.get(start) != '\n') {
+                start++;
+            }
+            start++;
+        }
+        int end = start;
+        while (buffer.get(end) != '\n') {
+            end++;
+        }
+        return parser.parse(buffer, start, end);
+    }
+
+    private static ByteBuffer lines(String... lines) {
+        return ByteBuffer.wrap((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ResponseParser.Type parse(String line) {
+        return parseLine(lines(line), 0);
+    }
+
+    /**
+     * Every command word is recognized, with and without arguments.
+     */
+    @Test
+    public void testCommandWords() {
+        assertEquals(ResponseParser.Type.LOGIN_OK, parse("loginok"));
+        assertEquals(ResponseParser.Type.LOGIN_ERR, parse("loginerr username already in use"));
+        assertEquals(ResponseParser.Type.MSG, parse("msg alice hello"));
+        assertEquals(ResponseParser.Type.PRIVMSG, parse("privmsg alice hello"));
+        assertEquals(ResponseParser.Type.MSG_ERR, parse("msgerr incorrect recipient bob"));
+        assertEquals(ResponseParser.Type.CMD_ERR, parse("cmderr command not supported"));
+        assertEquals(ResponseParser.Type.USERS, parse("users alice bob"));
+        assertEquals(ResponseParser.Type.SUPPORTED, parse("supported login msg"));
+        assertEquals(ResponseParser.Type.USERS, parse("users"));
+        assertEquals(ResponseParser.Type.USERS, parser.getType());
+    }
+
+    /**
+     * Words which share the first byte or a prefix with a command, short lines and empty lines are
+     * unknown.
+     */
+    @Test
+    public void testUnknownAndShortLines() {
+        String[] unknown = {"", " msg alice hi", "m", "ms", "msgx alice hi", "msgok 1", "login", "loginokk",
+                "loginer", "privmsgs a b", "privms a b", "cmderror x", "user a b", "usersx", "support",
+                "Msg alice hi", "hello", "x"};
+        for (String line : unknown) {
+            assertEquals("\"" + line + "\"", ResponseParser.Type.UNKNOWN, parse(line));
+            // The arguments of an unknown line can still be read
+            assertNotNull(parser.getArguments());
+        }
+        parse("m");
+        assertEquals("", parser.getArguments().toString());
+        assertEquals("", parser.getSender().toString());
+        assertEquals("", parser.getText().toString());
+    }
+
+    /**
+     * The sender and text views are read from the right line of a buffer with several lines, and are
+     * reused: the same objects are returned for every line. The buffer position and limit are not
+     * changed.
+     */
+    @Test
+    public void testViewsOverReusedBuffer() {
+        ByteBuffer buffer = lines("msg alice hello there", "privmsg bjørn hei på deg", "msg carol", "loginok");
+        buffer.position(3);
+        buffer.limit(buffer.capacity() - 1);
+
+        assertEquals(ResponseParser.Type.MSG, parseLine(buffer, 0));
+        CharSequence sender = parser.getSender();
+        CharSequence text = parser.getText();
+        assertEquals("alice", sender.toString());
+        assertEquals("hello there", text.toString());
+        assertEquals("alice hello there", parser.getArguments().toString());
+        assertEquals('h', text.charAt(0));
+        assertEquals("there", text.subSequence(6, 11).toString());
+
+        assertEquals(ResponseParser.Type.PRIVMSG, parseLine(buffer, 1));
+        assertSame(sender, parser.getSender());
+        assertSame(text, parser.getText());
+        assertSame(parser.getArguments(), parser.getArguments());
+        // Multi-byte UTF-8 characters
+        assertEquals("bjørn", sender.toString());
+        assertEquals("hei på deg", text.toString());
+
+        // No text. The views are filled when a getter is called after parse().
+        assertEquals(ResponseParser.Type.MSG, parseLine(buffer, 2));
+        assertEquals("carol", parser.getSender().toString());
+        assertEquals(0, text.length());
+
+        assertEquals(3, buffer.position());
+        assertEquals(buffer.capacity() - 1, buffer.limit());
+        try {
+            text.charAt(0);
+            fail("Index out of the view accepted");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * The arguments are decoded only when they are asked for, and arrays are created only by
+     * splitArguments(), a new one on every call.
+     */
+    @Test
+    public void testDecodingOnDemand() {
+        ByteBuffer buffer = lines("users alice bob");
+        assertEquals(ResponseParser.Type.USERS, parseLine(buffer, 0));
+        // Not decoded yet: a change in the buffer after parse() is still seen
+        buffer.put(6, (byte) 'A');
+        assertEquals("Alice bob", parser.getArguments().toString());
+        // Decoded once per line: later changes are not seen
+        buffer.put(6, (byte) 'a');
+        assertEquals("Alice bob", parser.getArguments().toString());
+
+        String[] users = parser.splitArguments();
+        assertArrayEquals(new String[]{"Alice", "bob"}, users);
+        assertNotSame(users, parser.splitArguments());
+
+        // Empty parts are skipped
+        parse("users  alice   bob ");
+        assertArrayEquals(new String[]{"alice", "bob"}, parser.splitArguments());
+        parse("users");
+        assertEquals(0, parser.splitArguments().length);
+    }
+
+    /**
+     * A line longer than the initial char buffer is decoded completely.
+     */
+    @Test
+    public void testLongLine() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        assertEquals(ResponseParser.Type.MSG, parse("msg alice " + text));
+        assertEquals(text.toString(), parser.getText().toString());
+    }
+}
@@ -0,0 +1,984 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.DummySlowListener;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.ReferenceChatServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TcpClientTest {
+    // The tests use a chat server running in the test process, on a free port
+    private static ReferenceChatServer server;
+    // Host and port to be used for all connection in the tests
+    private static String SERVER_HOST;
+    private static int SERVER_PORT;
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = ReferenceChatServer.start();
+        SERVER_HOST = server.getHost();
+        SERVER_PORT = server.getPort();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Test if opening and closing connection works
+     */
+    @Test
+    public void testConnection() {
+        // Note - this test is not very accurate. It does not actually check whether we have made
+        // connection to the right server. That would be a bit difficult to do, although it is doable.
+        TCPClient client = new TCPClient();
+        assertFalse(client.isConnectionActive());
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(client.isConnectionActive());
+        client.disconnect();
+        assertFalse(client.isConnectionActive());
+    }
+
+    /**
+     * Test if login works correctly. Note: this test can fail if several students run the same test at the same
+     * time: several clients will try to use the same username.
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testLogin() throws InterruptedException {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        // The incoming messages will be received on another thread
+        client.startListenThread();
+        // Listen to how many messages of each type the client receives
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        assertEquals(0, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+
+        // Try bad username
+        client.tryLogin("Bad username");
+        // allow the login response (loginerr) to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(0, counter.loginSuccess);
+        assertEquals(1, counter.loginError);
+
+        // Reset the counters
+        counter.loginSuccess = 0;
+        counter.loginError = 0;
+
+        // Try ok username with letters only
+        client.tryLogin("unittestnormal");
+        // allow the login response to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+
+        // Reset the counters
+        counter.loginSuccess = 0;
+        counter.loginError = 0;
+
+        // Try ok username with big and small letters
+        client.tryLogin("UnitTestCamel");
+        // allow the login response to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+
+        // Reset the counters
+        counter.loginSuccess = 0;
+        counter.loginError = 0;
+
+        // Alphanumerics
+        client.tryLogin("UnitTest35Alpha");
+        // allow the login response to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+        counter.loginSuccess = 0;
+        counter.loginError = 0;
+
+        client.disconnect();
+    }
+
+    /**
+     * Test if sending public messages works
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testPublicMessages() throws InterruptedException {
+        // Create three clients. When one sends a message others should receive
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        TCPClient c3 = new TCPClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+
+        // Client 1 logs in with a specific username
+        String C1_USERNAME = "UnitTestCC";
+        c1.tryLogin(C1_USERNAME);
+
+        // Clients 2 and 3 will listen for incoming messages, each on a different CPU thread
+        c2.startListenThread();
+        c3.startListenThread();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyMsgReceiver rec3 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        c3.addListener(rec3);
+
+        final String MSG_TEXT = "[Unittest] This is a specific text message, please, don't repeat it!";
+        c1.sendPublicMessage(MSG_TEXT);
+
+        // Allow the messages to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        TextMessage expectedMsg = new TextMessage(C1_USERNAME, false, MSG_TEXT);
+        assertTrue(rec2.hasReceived(expectedMsg));
+        assertTrue(rec3.hasReceived(expectedMsg));
+
+        // Disconnect all clients
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * Test if sending private messages works.
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testPrivateMessages() throws InterruptedException {
+        // Create three clients. One sends message to another. Third one should not receive.
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        TCPClient c3 = new TCPClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+
+        // Clients log in with specific usernames
+        String C1_USERNAME = "UnitTestC1";
+        String C2_USERNAME = "UnitTestC2";
+        String C3_USERNAME = "UnitTestC3";
+        c1.tryLogin(C1_USERNAME);
+        c2.tryLogin(C2_USERNAME);
+        c3.tryLogin(C3_USERNAME);
+
+        // Clients will listen for incoming messages, each on a different CPU thread
+        c1.startListenThread();
+        c2.startListenThread();
+        c3.startListenThread();
+        DummyMsgReceiver rec1 = new DummyMsgReceiver();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyMsgReceiver rec3 = new DummyMsgReceiver();
+        c1.addListener(rec1);
+        c2.addListener(rec2);
+        c3.addListener(rec3);
+
+        String MSG_TEXT = "[Unittest2] This is a specific text message, please, don't repeat it!";
+        // Send to Client #2 only
+        c1.sendPrivateMessage(C2_USERNAME, MSG_TEXT);
+
+        // Allow the message to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        TextMessage expectedMsg = new TextMessage(C1_USERNAME, true, MSG_TEXT);
+        assertFalse(rec1.hasReceived(expectedMsg));
+        assertTrue(rec2.hasReceived(expectedMsg));
+        assertFalse(rec3.hasReceived(expectedMsg));
+
+        rec1.clearMessages();
+        rec2.clearMessages();
+        rec3.clearMessages();
+
+        // Now send from C2 to C3
+        MSG_TEXT = "[Unittest3] This is a specific text message, please, don't repeat it!";
+        c2.sendPrivateMessage(C3_USERNAME, MSG_TEXT);
+
+        // Allow the message to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        expectedMsg = new TextMessage(C2_USERNAME, true, MSG_TEXT);
+        assertFalse(rec1.hasReceived(expectedMsg));
+        assertFalse(rec2.hasReceived(expectedMsg));
+        assertTrue(rec3.hasReceived(expectedMsg));
+
+        // Disconnect all clients
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * Text with line breaks must not be sent: the rest of it would reach the server as another
+     * command, and the replies would no longer match the requests.
+     *
+     * @throws Exception When a request fails or times out
+     */
+    @Test
+    public void testLineBreaksRejected() throws Exception {
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(receiver.connect(SERVER_HOST, SERVER_PORT));
+        sender.startListenThread();
+        receiver.startListenThread();
+        DummyMsgReceiver msgReceiver = new DummyMsgReceiver();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        receiver.addListener(msgReceiver);
+        receiver.addListener(counter);
+        assertTrue(receiver.login("UnitTestLineRecv").get(5, TimeUnit.SECONDS));
+
+        try {
+            sender.login("UnitTestLine\nlogin UnitTestInjected").get(5, TimeUnit.SECONDS);
+            fail("A username with a line break must not be sent");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(sender.login("UnitTestLineSend").get(5, TimeUnit.SECONDS));
+
+        assertFalse(sender.sendPublicMessage("hi\nlogin UnitTestInjected"));
+        assertNotNull(sender.getLastError());
+        assertFalse(sender.sendPublicMessage("hi\r"));
+        assertFalse(sender.sendPrivateMessage("UnitTestLineRecv", "one\ntwo"));
+        assertFalse(sender.sendPrivateMessage("UnitTestLineRecv\nusers", "hi"));
+        assertTrue(sender.sendPublicMessage("Only this one"));
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(1, counter.msg);
+        assertTrue(msgReceiver.hasReceived(new TextMessage("UnitTestLineSend", false, "Only this one")));
+        // The requests still get their own replies
+        assertFalse(Arrays.asList(sender.fetchUsers().get(5, TimeUnit.SECONDS)).contains("UnitTestInjected"));
+
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * The messages which arrive in one read from the socket are delivered in one
+     * onMessagesReceived() call, in order. Listeners which implement only onMessageReceived() get
+     * them one by one.
+     *
+     * @throws Exception When a request fails or times out
+     */
+    @Test
+    public void testMessageBatches() throws Exception {
+        final int BURST = 20;
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(receiver.connect(SERVER_HOST, SERVER_PORT));
+        sender.startListenThread();
+        receiver.startListenThread();
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        List<String> batched = new CopyOnWriteArrayList<>();
+        receiver.addListener(new EmptyChatListener() {
+            @Override
+            public void onMessagesReceived(List<TextMessage> messages) {
+                batchSizes.add(messages.size());
+                for (TextMessage m : messages) {
+                    batched.add(m.getText());
+                }
+            }
+        });
+        DummyMsgReceiver oneByOne = new DummyMsgReceiver();
+        receiver.addListener(oneByOne);
+        assertTrue(sender.login("UnitTestBatchSend").get(5, TimeUnit.SECONDS));
+        assertTrue(receiver.login("UnitTestBatchRecv").get(5, TimeUnit.SECONDS));
+
+        // While the receiver does not read, the whole burst collects in its socket buffer. If a read
+        // is in progress when reading is paused, it still completes, with the first message alone.
+        // Otherwise the first message waits together with the burst.
+        receiver.pauseReading();
+        assertTrue(sender.sendPrivateMessage("UnitTestBatchRecv", "first"));
+        Thread.sleep(THREAD_SLEEP_TIME);
+        int firstAlone = batchSizes.size();
+        assertTrue(firstAlone <= 1);
+        List<String> sent = new ArrayList<>();
+        sent.add("first");
+        for (int i = 0; i < BURST; i++) {
+            sent.add("burst " + i);
+            assertTrue(sender.sendPrivateMessage("UnitTestBatchRecv", "burst " + i));
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(firstAlone, batchSizes.size());
+        receiver.resumeReading();
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        assertEquals(firstAlone == 1 ? Arrays.asList(1, BURST) : Collections.singletonList(BURST + 1),
+                batchSizes);
+        assertEquals(sent, batched);
+        for (String text : sent) {
+            assertTrue(oneByOne.hasReceived(new TextMessage("UnitTestBatchSend", true, text)));
+        }
+
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * With write coalescing, chat messages wait for the end of the window or for flush(), while login
+     * and users requests are sent at once. TCP_NODELAY can be changed on an open connection.
+     *
+     * @throws Exception When a request fails or times out
+     */
+    @Test
+    public void testWriteCoalescing() throws Exception {
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(receiver.connect(SERVER_HOST, SERVER_PORT));
+        sender.startListenThread();
+        receiver.startListenThread();
+        DummyMsgReceiver messages = new DummyMsgReceiver();
+        receiver.addListener(messages);
+        assertTrue(receiver.login("UnitTestCoalRecv").get(5, TimeUnit.SECONDS));
+
+        assertTrue(sender.isTcpNoDelay());
+        sender.setTcpNoDelay(false);
+        assertFalse(sender.isTcpNoDelay());
+        assertEquals("", sender.getLastError());
+
+        // A window much longer than the test: only flush() or an immediate request sends the messages
+        sender.setWriteCoalescing(60000000, 0);
+        long start = System.nanoTime();
+        assertTrue(sender.login("UnitTestCoalSend").get(5, TimeUnit.SECONDS));
+        assertTrue(sender.fetchUsers().get(5, TimeUnit.SECONDS).length >= 2);
+        assertTrue("Requests waited for the window", System.nanoTime() - start < 5000000000L);
+
+        assertTrue(sender.sendPublicMessage("coalesced one"));
+        assertTrue(sender.sendPrivateMessage("UnitTestCoalRecv", "coalesced two"));
+        Thread.sleep(THREAD_SLEEP_TIME);
+        TextMessage one = new TextMessage("UnitTestCoalSend", false, "coalesced one");
+        TextMessage two = new TextMessage("UnitTestCoalSend", true, "coalesced two");
+        assertFalse(messages.hasReceived(one));
+        assertTrue(sender.flush());
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(messages.hasReceived(one));
+        assertTrue(messages.hasReceived(two));
+
+        sender.disconnect();
+        receiver.disconnect();
+        assertFalse(sender.flush());
+    }
+
+    /**
+     * Test the future-based requests: several requests are in flight at the same time and each of them
+     * gets the matching reply, without sleeping.
+     *
+     * @throws Exception When a request fails or times out
+     */
+    @Test
+    public void testRequestFutures() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        client.startListenThread();
+
+        CompletableFuture<Boolean> badLogin = client.login("Bad username");
+        CompletableFuture<Boolean> goodLogin = client.login("UnitTestFuture");
+        CompletableFuture<String[]> users = client.fetchUsers();
+        CompletableFuture<String[]> supported = client.fetchSupported();
+
+        assertFalse(badLogin.get(THREAD_SLEEP_TIME, TimeUnit.MILLISECONDS));
+        assertTrue(goodLogin.get(THREAD_SLEEP_TIME, TimeUnit.MILLISECONDS));
+        assertTrue(Arrays.asList(users.get(THREAD_SLEEP_TIME, TimeUnit.MILLISECONDS))
+                .contains("UnitTestFuture"));
+        assertTrue(Arrays.asList(supported.get(THREAD_SLEEP_TIME, TimeUnit.MILLISECONDS))
+                .contains("login"));
+
+        client.disconnect();
+    }
+
+    /**
+     * Test if the NIO transport mode works: several clients share one selector thread, and each of them
+     * gets its own login responses.
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testNioTransport() throws InterruptedException {
+        NioEventLoop loop = NioEventLoop.shared();
+        TCPClient c1 = new TCPClient(loop);
+        TCPClient c2 = new TCPClient(loop);
+        assertTrue(c1.isNioMode());
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        c1.startListenThread();
+        c2.startListenThread();
+        DummyResponseCounter counter1 = new DummyResponseCounter();
+        DummyResponseCounter counter2 = new DummyResponseCounter();
+        c1.addListener(counter1);
+        c2.addListener(counter2);
+
+        c1.tryLogin("UnitTestNio1");
+        c2.tryLogin("Bad username");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(1, counter1.loginSuccess);
+        assertEquals(0, counter1.loginError);
+        assertEquals(0, counter2.loginSuccess);
+        assertEquals(1, counter2.loginError);
+
+        c1.disconnect();
+        c2.disconnect();
+        assertFalse(c1.isConnectionActive());
+        assertFalse(c2.isConnectionActive());
+    }
+
+    /**
+     * A write error on the selector thread, at the same time as sends and a disconnect on other
+     * threads, must not deadlock. The server never reads, so the outgoing data piles up in the write
+     * queue of the channel, and then it resets the connection while the client keeps sending.
+     *
+     * @throws Exception When the test is interrupted
+     */
+    @Test
+    public void testNioWriteErrorWhileSending() throws Exception {
+        String big = new String(new char[65536]).replace('\0', 'x');
+        try (NioEventLoop loop = new NioEventLoop();
+             ServerSocket silentServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < 10; i++) {
+                TCPClient client = new TCPClient(loop);
+                assertTrue(client.connect(SERVER_HOST, silentServer.getLocalPort()));
+                Socket accepted = silentServer.accept();
+                Thread sender = new Thread(() -> {
+                    while (client.sendPublicMessage(big)) {
+                        // Until the connection is gone
+                    }
+                });
+                sender.setDaemon(true);
+                sender.start();
+                // Long enough to fill the socket buffers
+                Thread.sleep(50);
+                accepted.setSoLinger(true, 0);
+                accepted.close();
+                Thread disconnecter = new Thread(client::disconnect);
+                disconnecter.setDaemon(true);
+                disconnecter.start();
+                sender.join(5000);
+                disconnecter.join(5000);
+                assertFalse("Sending thread is stuck", sender.isAlive());
+                assertFalse("Disconnecting thread is stuck", disconnecter.isAlive());
+                assertFalse(client.isConnectionActive());
+            }
+            // The selector thread is still alive and serves the other clients
+            TCPClient other = new TCPClient(loop);
+            assertTrue(other.connect(SERVER_HOST, SERVER_PORT));
+            other.startListenThread();
+            assertTrue(other.login("UnitTestNioAlive").get(5, TimeUnit.SECONDS));
+            other.disconnect();
+        }
+    }
+
+    /**
+     * A listener which throws while the data of a read is handled must close only its own connection,
+     * in both transport modes. The traffic after it must not reach the broken connection, and the
+     * selector thread must keep serving the other clients on the same loop.
+     *
+     * @throws Exception When a request fails or times out
+     */
+    @Test
+    public void testThrowingListener() throws Exception {
+        TCPClient sender = new TCPClient();
+        assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+        sender.tryLogin("UnitTestThrowSender");
+        try (NioEventLoop loop = new NioEventLoop()) {
+            TCPClient blocking = new TCPClient();
+            TCPClient nio = new TCPClient(loop);
+            TCPClient other = new TCPClient(loop);
+            DummyMsgReceiver otherReceiver = new DummyMsgReceiver();
+            other.addListener(otherReceiver);
+            for (TCPClient client : new TCPClient[]{blocking, nio, other}) {
+                assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+                client.startListenThread();
+            }
+            DummyResponseCounter counter = new DummyResponseCounter();
+            for (TCPClient client : new TCPClient[]{blocking, nio}) {
+                client.addListener(new EmptyChatListener() {
+                    @Override
+                    public void onMessageReceived(TextMessage message) {
+                        throw new IllegalStateException("Broken listener");
+                    }
+                });
+                client.addListener(counter);
+            }
+            assertTrue(blocking.login("UnitTestThrowBlocking").get(5, TimeUnit.SECONDS));
+            assertTrue(nio.login("UnitTestThrowNio").get(5, TimeUnit.SECONDS));
+            assertTrue(other.login("UnitTestThrowOther").get(5, TimeUnit.SECONDS));
+
+            sender.sendPublicMessage("Boom");
+            Thread.sleep(THREAD_SLEEP_TIME);
+            assertFalse(blocking.isConnectionActive());
+            assertFalse(nio.isConnectionActive());
+            assertEquals(2, counter.disconn);
+            assertNotNull(blocking.getLastError());
+
+            sender.sendPublicMessage("After the failure");
+            Thread.sleep(THREAD_SLEEP_TIME);
+            assertEquals(0, counter.msg);
+            assertTrue(otherReceiver.hasReceived(new TextMessage("UnitTestThrowSender", false, "Boom")));
+            assertTrue(otherReceiver.hasReceived(
+                    new TextMessage("UnitTestThrowSender", false, "After the failure")));
+            other.disconnect();
+        } finally {
+            sender.disconnect();
+        }
+    }
+
+    /**
+     * Test that responses split into many small fragments, arriving in separate reads, are put
+     * together correctly, in both transport modes.
+     *
+     * @throws Exception When a request fails or times out
+     */
+    @Test
+    public void testFragmentedResponses() throws Exception {
+        server.setFragmentation(3, 1);
+        try {
+            TCPClient blocking = new TCPClient();
+            TCPClient nio = new TCPClient(NioEventLoop.shared());
+            for (TCPClient client : new TCPClient[]{blocking, nio}) {
+                assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+                client.startListenThread();
+                String username = client.isNioMode() ? "UnitTestFragNio" : "UnitTestFrag";
+                assertTrue(client.login(username).get(5, TimeUnit.SECONDS));
+                assertTrue(Arrays.asList(client.fetchUsers().get(5, TimeUnit.SECONDS)).contains(username));
+                assertTrue(Arrays.asList(client.fetchSupported().get(5, TimeUnit.SECONDS)).contains("privmsg"));
+                client.disconnect();
+            }
+        } finally {
+            server.setFragmentation(0, 0);
+        }
+    }
+
+    /**
+     * The metrics must count the commands and responses, and time the connection, the flushes and
+     * the dispatching of the responses.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        client.startListenThread();
+        assertTrue(client.login("UnitTestMetrics").get(5, TimeUnit.SECONDS));
+        assertNotNull(client.fetchUsers().get(5, TimeUnit.SECONDS));
+        // The reply is timed after the request is completed
+        Thread.sleep(THREAD_SLEEP_TIME);
+        client.disconnect();
+
+        ClientMetrics metrics = client.getMetrics();
+        assertEquals(1, metrics.getConnectCount());
+        assertEquals(Long.valueOf(1), metrics.getCommandsSent().get("login"));
+        assertEquals(Long.valueOf(1), metrics.getCommandsSent().get("users"));
+        assertEquals(Long.valueOf(1), metrics.getResponsesReceived().get("loginok"));
+        assertEquals(Long.valueOf(1), metrics.getResponsesReceived().get("users"));
+        assertEquals(2, metrics.getSendToFlushCount());
+        assertEquals(2, metrics.getDispatchCount());
+        assertTrue(metrics.getBytesOut() > 0);
+        assertTrue(metrics.getBytesIn() > 0);
+
+        assertTrue(metrics.registerMBean("test"));
+        metrics.unregisterMBean();
+    }
+
+    /**
+     * The flight recorder events must be recorded when enabled in a recording.
+     */
+    @Test
+    public void testFlightEvents() throws Exception {
+        Path file = Files.createTempFile("chat", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"CommandSent", "SocketRead", "ListenerCall", "Connect", "Disconnect"}) {
+                recording.enable("no.ntnu.datakomm.chat." + name).withoutThreshold();
+            }
+            recording.start();
+            TCPClient client = new TCPClient();
+            client.addListener(new DummyResponseCounter());
+            assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+            client.startListenThread();
+            assertTrue(client.login("UnitTestJfr").get(5, TimeUnit.SECONDS));
+            client.disconnect();
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Set<String> recorded = new HashSet<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            String name = event.getEventType().getName();
+            recorded.add(name.substring(name.lastIndexOf('.') + 1));
+            if (name.endsWith("CommandSent")) {
+                assertEquals("login", event.getString("command"));
+                assertEquals("login UnitTestJfr\n".length(), event.getInt("bytes"));
+            } else if (name.endsWith("ListenerCall")) {
+                assertEquals("onLoginResult", event.getString("callback"));
+            }
+        }
+        Files.delete(file);
+        assertEquals(new HashSet<>(Arrays.asList("CommandSent", "SocketRead", "ListenerCall", "Connect",
+                "Disconnect")), recorded);
+    }
+
+    /**
+     * A listener which keeps going over the budget must be moved to its own thread, unless it is
+     * critical. The other listeners must still get every message.
+     */
+    @Test
+    public void testSlowListenerIsolation() throws Exception {
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(receiver.connect(SERVER_HOST, SERVER_PORT));
+        sender.tryLogin("UnitTestSlowSender");
+        receiver.setListenerBudget(10, TimeUnit.MILLISECONDS, 3, 100);
+        DummySlowListener slow = new DummySlowListener(50, false);
+        DummySlowListener critical = new DummySlowListener(20, true);
+        DummyMsgReceiver fast = new DummyMsgReceiver();
+        receiver.addListener(slow);
+        receiver.addListener(critical);
+        receiver.addListener(fast);
+        receiver.startListenThread();
+
+        final int MESSAGES = 10;
+        for (int i = 0; i < MESSAGES; i++) {
+            sender.sendPublicMessage("Slow " + i);
+            // One message per read, so that every message is a separate listener call
+            Thread.sleep(100);
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        assertEquals(Arrays.asList(slow), receiver.getIsolatedListeners());
+        assertEquals(MESSAGES, slow.getMessageCount());
+        assertEquals(2, slow.getThreadCount());
+        assertEquals(MESSAGES, critical.getMessageCount());
+        assertEquals(1, critical.getThreadCount());
+        for (int i = 0; i < MESSAGES; i++) {
+            assertTrue(fast.hasReceived(new TextMessage("UnitTestSlowSender", false, "Slow " + i)));
+        }
+        assertEquals(0, receiver.getDroppedEventCount(slow));
+
+        // Adding it again must not register it twice, removing must remove the isolated form
+        receiver.addListener(slow);
+        receiver.removeListener(slow);
+        assertTrue(receiver.getIsolatedListeners().isEmpty());
+        sender.sendPublicMessage("After removal");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(MESSAGES, slow.getMessageCount());
+
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * Test that the listeners are notified when the server closes the connection, and that the
+     * requests waiting for a reply fail instead of hanging.
+     *
+     * @throws Exception When the test is interrupted
+     */
+    @Test
+    public void testServerDisconnect() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        client.startListenThread();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        assertTrue(client.login("UnitTestDisc").get(5, TimeUnit.SECONDS));
+
+        server.setLatency(THREAD_SLEEP_TIME * 4);
+        CompletableFuture<String[]> users = client.fetchUsers();
+        server.disconnect("UnitTestDisc");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        server.setLatency(0);
+
+        assertEquals(1, counter.disconn);
+        assertFalse(client.isConnectionActive());
+        assertTrue(users.isCompletedExceptionally());
+    }
+
+    /**
+     * After a server restart the client must connect and log in again by itself, then send the
+     * messages sent during the outage, in order.
+     *
+     * @throws Exception When the test is interrupted or times out
+     */
+    @Test
+    public void testAutoReconnect() throws Exception {
+        ReferenceChatServer restarting = ReferenceChatServer.start();
+        int port = restarting.getPort();
+        TCPClient client = new TCPClient();
+        client.setAutoReconnect(50, 400, TimeUnit.MILLISECONDS, 2);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        CompletableFuture<Void> reconnected = new CompletableFuture<>();
+        client.addListener(counter);
+        client.addListener(receiver);
+        client.addListener(new EmptyChatListener() {
+            @Override
+            public void onReconnected() {
+                reconnected.complete(null);
+            }
+        });
+        assertTrue(client.connect(restarting.getHost(), port));
+        client.startListenThread();
+        assertTrue(client.login("UnitTestReconn").get(5, TimeUnit.SECONDS));
+
+        restarting.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.disconn == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, counter.disconn);
+        assertTrue(client.isReconnecting());
+        // Kept until the reconnect, as many as the outbox holds
+        assertTrue(client.sendPrivateMessage("UnitTestReconn", "held one"));
+        assertTrue(client.sendPrivateMessage("UnitTestReconn", "held two"));
+        assertFalse(client.sendPublicMessage("one too many"));
+        // Some attempts fail while the server is down
+        Thread.sleep(THREAD_SLEEP_TIME);
+        restarting = ReferenceChatServer.start(port);
+        try {
+            reconnected.get(5, TimeUnit.SECONDS);
+            assertFalse(client.isReconnecting());
+            assertTrue(client.isConnectionActive());
+            assertEquals(1, client.getMetrics().getReconnectCount());
+            // Logged in again: the server delivers private messages to logged in users only
+            assertEquals(2, counter.loginSuccess);
+            Thread.sleep(THREAD_SLEEP_TIME);
+            assertTrue(receiver.hasReceived(new TextMessage("UnitTestReconn", true, "held one")));
+            assertTrue(receiver.hasReceived(new TextMessage("UnitTestReconn", true, "held two")));
+            assertTrue(client.sendPrivateMessage("UnitTestReconn", "after"));
+
+            // disconnect() stops the reconnecting
+            client.disconnect();
+            assertFalse(client.isReconnecting());
+            Thread.sleep(THREAD_SLEEP_TIME);
+            assertFalse(client.isConnectionActive());
+        } finally {
+            client.disconnect();
+            restarting.close();
+        }
+    }
+
+    /**
+     * When the username is taken by someone else during the outage, the client must give up after a
+     * few rejected logins and report it once, instead of a failed login result for every attempt.
+     *
+     * @throws Exception When the test is interrupted or times out
+     */
+    @Test
+    public void testReconnectLoginRejected() throws Exception {
+        ReferenceChatServer server = ReferenceChatServer.start();
+        TCPClient client = new TCPClient();
+        TCPClient other = new TCPClient();
+        client.setAutoReconnect(100, 200, TimeUnit.MILLISECONDS, 5);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        client.addListener(counter);
+        client.addListener(new EmptyChatListener() {
+            @Override
+            public void onReconnectFailed(String errMsg) {
+                failed.complete(errMsg);
+            }
+        });
+        try {
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertTrue(client.login("UnitTestTaken").get(5, TimeUnit.SECONDS));
+            assertTrue(other.connect(server.getHost(), server.getPort()));
+            other.startListenThread();
+
+            // Drop the client and take its username before it logs in again. If the client is
+            // quicker, drop it again.
+            boolean taken = false;
+            for (int i = 0; i < 10 && !taken; i++) {
+                server.disconnect("UnitTestTaken");
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!client.isReconnecting() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                taken = other.login("UnitTestTaken").get(5, TimeUnit.SECONDS);
+            }
+            assertTrue(taken);
+            assertTrue(client.sendPublicMessage("held"));
+
+            assertNotNull(failed.get(10, TimeUnit.SECONDS));
+            assertFalse(client.isReconnecting());
+            assertFalse(client.isConnectionActive());
+            assertEquals(0, counter.loginError);
+            assertTrue(client.getMetrics().getReconnectCount() >= 5);
+            // The held message is dropped, new ones are not kept any more
+            assertFalse(client.sendPublicMessage("after"));
+            Thread.sleep(THREAD_SLEEP_TIME);
+            assertFalse(client.isReconnecting());
+        } finally {
+            client.disconnect();
+            other.disconnect();
+            server.close();
+        }
+    }
+
+    /**
+     * Try to close a connection that was never opened. There should be no exception.
+     */
+    @Test
+    public void testDisconnectFail() {
+        TCPClient client = new TCPClient();
+        client.disconnect();
+    }
+
+    /**
+     * Test if user listing works correctly.
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testUserListing() throws InterruptedException {
+        // Create three clients. One sends message to another. Third one should not receive.
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        TCPClient c3 = new TCPClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+
+
+        // The incoming messages will be received on another thread
+        c1.startListenThread();
+
+        // Listen to user listing.
+        DummyUserListingReceiver userListing = new DummyUserListingReceiver();
+        c1.addListener(userListing);
+
+        // Clients log in with specific usernames
+        // Get some randomness added to the usernames
+        int rand = (int) (Math.random() * 10000);
+        String C1_USERNAME = "UnitTestC1" + rand;
+        String C2_USERNAME = "UnitTestC2" + rand;
+        String C3_USERNAME = "UnitTestC3" + rand;
+        c1.tryLogin(C1_USERNAME);
+        c2.tryLogin(C2_USERNAME);
+        c3.tryLogin(C3_USERNAME);
+
+        // Allow the login to happen
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        // Try to get user listing
+        c1.refreshUserList();
+
+        // Allow the user listing response to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        // We should get all the users listed in a single message and it should contain all the three client names
+        assertTrue(userListing.getCount() >= 3);
+        assertTrue(userListing.contains(C1_USERNAME));
+        assertTrue(userListing.contains(C2_USERNAME));
+        assertTrue(userListing.contains(C3_USERNAME));
+
+        // Disconnect all clients
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * The user lists which arrive while nobody listens must still be remembered: a listener added
+     * later must get only the users who joined after the last list, not everybody.
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testUsersChangedAfterAddingListener() throws InterruptedException {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        c1.startListenThread();
+        c1.tryLogin("UnitTestIdx1");
+        c1.refreshUserList();
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        c2.tryLogin("UnitTestIdx2");
+        List<String> joined = new CopyOnWriteArrayList<>();
+        c1.addListener(new EmptyChatListener() {
+            @Override
+            public void onUsersChanged(String[] joinedUsers, String[] leftUsers) {
+                joined.addAll(Arrays.asList(joinedUsers));
+            }
+        });
+        Thread.sleep(THREAD_SLEEP_TIME);
+        c1.refreshUserList();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(Collections.singletonList("UnitTestIdx2"), joined);
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * Test if supported command listing works correctly.
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testSupportedCommands() throws InterruptedException {
+        // Create a TCP chat client.
+        TCPClient c1 = new TCPClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+
+        // The incoming messages will be received on another thread
+        c1.startListenThread();
+
+        // Listen to user listing.
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        c1.addListener(supported);
+
+        // Try to get supported command listing
+        c1.askSupportedCommands();
+
+        // Allow the listing response to arrive
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        // We should get all the users listed in a single message and it should contain all the three client names
+        assertTrue(supported.contains("msg"));
+        assertTrue(supported.contains("privmsg"));
+        assertTrue(supported.contains("login"));
+        assertTrue(supported.contains("users"));
+        assertTrue(supported.contains("help"));
+
+        // Disconnect all clients
+        c1.disconnect();
+    }
+}
@@ -0,0 +1,38 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class UserIndexTest {
+
+    /**
+     * Only the users who joined and left must be reported, sorted, no matter in what order the
+     * server lists them.
+     */
+    @Test
+    public void testDiff() {
+        UserIndex index = new UserIndex();
+        UserIndex.Diff diff = index.update(new String[]{"bob", "Alice", "carl"});
+        assertArrayEquals(new String[]{"Alice", "bob", "carl"}, diff.getJoined());
+        assertEquals(0, diff.getLeft().length);
+
+        // Same users, different order
+        diff = index.update(new String[]{"carl", "bob", "Alice"});
+        assertTrue(diff.isEmpty());
+
+        diff = index.update(new String[]{"dave", "carl", "alice", "Alice"});
+        assertArrayEquals(new String[]{"alice", "dave"}, diff.getJoined());
+        assertArrayEquals(new String[]{"bob"}, diff.getLeft());
+        assertEquals(Arrays.asList("Alice", "alice", "carl", "dave"), index.getUsers());
+        assertTrue(index.contains("dave"));
+        assertFalse(index.contains("bob"));
+
+        index.clear();
+        diff = index.update(new String[]{"dave", "dave"});
+        assertArrayEquals(new String[]{"dave"}, diff.getJoined());
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,144 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the polling schedule. The time comes from a fake clock, and the polling loop itself is
+ * never started: the tests ask the poller directly whether a request is due.
+ */
+public class UserListPollerTest {
+    private static final long MIN_INTERVAL = 1000;
+    private static final long MAX_INTERVAL = 10000;
+    private static final String[] USERS = {"alice", "bob"};
+
+    private final AtomicLong clock = new AtomicLong(0);
+    private UserListPoller poller;
+
+    @Before
+    public void setup() {
+        poller = new UserListPoller(new TCPClient(), MIN_INTERVAL, MAX_INTERVAL, clock::get);
+        // The loop is not run
+        poller.start(task -> {
+        });
+    }
+
+    @After
+    public void tearDown() {
+        poller.stop();
+    }
+
+    /**
+     * Move the clock to the given time and check that a request is due then, and not a millisecond
+     * before.
+     */
+    private void assertDueAt(long time) {
+        clock.set(time - 1);
+        assertEquals(1, poller.takeDuePoll());
+        clock.set(time);
+        assertEquals(0, poller.takeDuePoll());
+    }
+
+    /**
+     * The first request is sent right away, and every unchanged list doubles the interval up to the
+     * maximum. A changed list brings it back to the minimum.
+     */
+    @Test
+    public void testBackoffOnUnchangedList() {
+        assertEquals(0, poller.takeDuePoll());
+        poller.onUserList(USERS);
+        assertEquals(MIN_INTERVAL, poller.getIntervalMillis());
+
+        long time = MIN_INTERVAL;
+        assertDueAt(time);
+        for (long expected : Arrays.asList(2000L, 4000L, 8000L, 10000L, 10000L)) {
+            poller.onUserList(USERS);
+            assertEquals(expected, poller.getIntervalMillis());
+            time += expected;
+            assertDueAt(time);
+        }
+
+        poller.onUserList(new String[]{"alice", "bob", "carol"});
+        assertEquals(MIN_INTERVAL, poller.getIntervalMillis());
+        assertDueAt(time + MIN_INTERVAL);
+    }
+
+    /**
+     * A message from a sender who is not in the list, or a message error (a private message to a
+     * user who is gone), brings the polling back to the minimum interval after the last request. A
+     * message from a known sender does not.
+     */
+    @Test
+    public void testActivityResetsInterval() {
+        assertEquals(0, poller.takeDuePoll());
+        poller.onUserList(USERS);
+        long time = 0;
+        for (int i = 0; i < 5; i++) {
+            time += poller.getIntervalMillis();
+            assertDueAt(time);
+            poller.onUserList(USERS);
+        }
+        assertEquals(MAX_INTERVAL, poller.getIntervalMillis());
+
+        clock.set(time + 500);
+        poller.onMessageReceived(new TextMessage("alice", false, "hello"));
+        poller.onMessagesReceived(Arrays.asList(new TextMessage("bob", true, "hi"),
+                new TextMessage("alice", false, "again")));
+        assertEquals(MAX_INTERVAL, poller.getIntervalMillis());
+        clock.set(time + MIN_INTERVAL);
+        assertTrue(poller.takeDuePoll() > 0);
+
+        poller.onMessageReceived(new TextMessage("carol", false, "I'm new"));
+        assertEquals(MIN_INTERVAL, poller.getIntervalMillis());
+        assertEquals(0, poller.takeDuePoll());
+        time += MIN_INTERVAL;
+
+        // Back off once, then a message error
+        poller.onUserList(USERS);
+        assertEquals(2000, poller.getIntervalMillis());
+        poller.onMessageError("incorrect recipient dave");
+        assertEquals(MIN_INTERVAL, poller.getIntervalMillis());
+        assertDueAt(time + MIN_INTERVAL);
+        time += MIN_INTERVAL;
+
+        // One new sender in a batch is enough
+        poller.onUserList(USERS);
+        poller.onMessagesReceived(Arrays.asList(new TextMessage("alice", false, "hi"),
+                new TextMessage("dave", false, "hello")));
+        assertEquals(MIN_INTERVAL, poller.getIntervalMillis());
+        assertDueAt(time + MIN_INTERVAL);
+    }
+
+    /**
+     * While paused (the window is minimized) no request is due, however long it takes. Resuming
+     * makes a request due right away, at the minimum interval.
+     */
+    @Test
+    public void testPaused() {
+        assertEquals(0, poller.takeDuePoll());
+        poller.onUserList(USERS);
+        poller.onUserList(USERS);
+        assertEquals(2000, poller.getIntervalMillis());
+
+        poller.setPaused(true);
+        for (long time = 0; time <= 60000; time += 5000) {
+            clock.set(time);
+            assertEquals(1000, poller.takeDuePoll());
+        }
+        // Activity while paused does not send anything either
+        poller.onMessageError("incorrect recipient dave");
+        assertEquals(1000, poller.takeDuePoll());
+
+        clock.set(70000);
+        poller.setPaused(false);
+        assertEquals(MIN_INTERVAL, poller.getIntervalMillis());
+        assertEquals(0, poller.takeDuePoll());
+        assertDueAt(70000 + MIN_INTERVAL);
+    }
+}
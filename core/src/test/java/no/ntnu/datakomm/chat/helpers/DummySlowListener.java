@@ -0,0 +1,53 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import no.ntnu.datakomm.chat.TextMessage;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes its time with every incoming message. Remembers which threads called it.
+ */
+public class DummySlowListener extends EmptyChatListener {
+    private final long delayMillis;
+    private final boolean critical;
+    private final AtomicInteger messageCount = new AtomicInteger();
+    private final Set<Long> threads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param delayMillis How long each message takes, in milliseconds
+     * @param critical    Whether the listener must stay on the receiving thread
+     */
+    public DummySlowListener(long delayMillis, boolean critical) {
+        this.delayMillis = delayMillis;
+        this.critical = critical;
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        threads.add(Thread.currentThread().getId());
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        messageCount.incrementAndGet();
+    }
+
+    @Override
+    public boolean isCritical() {
+        return critical;
+    }
+
+    public int getMessageCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * @return Number of different threads which delivered the messages
+     */
+    public int getThreadCount() {
+        return threads.size();
+    }
+}
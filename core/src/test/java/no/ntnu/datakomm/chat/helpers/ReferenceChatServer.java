@@ -0,0 +1,510 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A chat server running inside the test process, so that the client can be tested without the
+ * network and without other people using the same server. It implements the same protocol as the
+ * course server: login, msg, privmsg, users and help. It runs one selector thread and starts on a
+ * free (ephemeral) port.
+ *
+ * Hooks make the network worse in a repeatable way: every response can be delayed (latency), split
+ * into small fragments written separately (fragmentation), and the connections can be closed by the
+ * server (disconnects).
+ */
+public class ReferenceChatServer implements Closeable {
+    private static final String HOST = "localhost";
+    private static final String SUPPORTED = "supported login msg privmsg users help";
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    /**
+     * One connected client. Used by the server thread only.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        String username = null;
+        int commandCount = 0;
+        // Data to send, in order, each with the time when it may be written
+        final Queue<Outgoing> out = new ArrayDeque<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Outgoing {
+        final long dueMillis;
+        final ByteBuffer data;
+
+        Outgoing(long dueMillis, ByteBuffer data) {
+            this.dueMillis = dueMillis;
+            this.data = data;
+        }
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Used by the server thread only
+    private final Set<Connection> connections = new HashSet<>();
+    private final Map<String, Connection> users = new LinkedHashMap<>();
+    private final Set<Connection> pendingOutput = new LinkedHashSet<>();
+
+    // Tasks from other threads, run by the server thread
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Hooks
+    private volatile long latencyMillis = 0;
+    private volatile int fragmentSize = 0;
+    private volatile long fragmentDelayMillis = 0;
+    private volatile int disconnectAfterCommands = 0;
+
+    // Statistics
+    private volatile int connectionCount = 0;
+    private final AtomicLong commandCount = new AtomicLong();
+
+    private ReferenceChatServer(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        // A restarted server takes the port back at once
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(HOST, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, "reference-chat-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start a server on a free port of the loopback interface.
+     *
+     * @return The running server
+     * @throws IOException When the server socket can't be opened
+     */
+    public static ReferenceChatServer start() throws IOException {
+        return new ReferenceChatServer(0);
+    }
+
+    /**
+     * Start a server on the given port of the loopback interface, for example the port of a closed
+     * server, to test a restart.
+     *
+     * @param port The TCP port
+     * @return The running server
+     * @throws IOException When the server socket can't be opened
+     */
+    public static ReferenceChatServer start(int port) throws IOException {
+        return new ReferenceChatServer(port);
+    }
+
+    /**
+     * @return The host name to connect to
+     */
+    public String getHost() {
+        return HOST;
+    }
+
+    /**
+     * @return The TCP port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Delay every response by the given time. Responses to one client stay in order.
+     *
+     * @param millis Delay in milliseconds, 0 for none
+     */
+    public void setLatency(long millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * Split every response into fragments of the given size. Each fragment is written to the socket
+     * separately, the given delay apart, so that the client gets them in separate reads.
+     *
+     * @param bytes       Maximum fragment size, 0 to send whole responses
+     * @param delayMillis Delay between the fragments, in milliseconds
+     */
+    public void setFragmentation(int bytes, long delayMillis) {
+        fragmentSize = bytes;
+        fragmentDelayMillis = delayMillis;
+    }
+
+    /**
+     * Close every connection after the given number of commands received on it. The connection is
+     * closed before the command is handled.
+     *
+     * @param commands Number of commands to accept on a connection, 0 for no limit
+     */
+    public void setDisconnectAfterCommands(int commands) {
+        disconnectAfterCommands = commands;
+    }
+
+    /**
+     * Close all the client connections, as if the server had a problem.
+     */
+    public void disconnectAll() {
+        runOnServerThread(() -> {
+            for (Connection c : new ArrayList<>(connections)) {
+                closeConnection(c);
+            }
+        });
+    }
+
+    /**
+     * Close the connection of one user.
+     *
+     * @param username The user to disconnect
+     */
+    public void disconnect(String username) {
+        runOnServerThread(() -> {
+            Connection c = users.get(username);
+            if (c != null) {
+                closeConnection(c);
+            }
+        });
+    }
+
+    /**
+     * @return Number of clients connected now
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * @return Number of commands received from all the clients
+     */
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    /**
+     * Stop the server and close all the connections.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runOnServerThread(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * The server loop: accept, read and handle commands, write the responses which are due.
+     */
+    private void run() {
+        try {
+            while (running) {
+                long wait = writeDueOutput();
+                if (wait == 0) {
+                    selector.select();
+                } else {
+                    selector.select(wait);
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection c = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Reference chat server failed: " + e.getMessage());
+        } finally {
+            for (Connection c : new ArrayList<>(connections)) {
+                closeConnection(c);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Error while closing the reference chat server: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        connections.add(c);
+        connectionCount = connections.size();
+    }
+
+    private void read(Connection c) {
+        int bytesRead;
+        try {
+            bytesRead = c.channel.read(c.in);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        if (bytesRead < 0) {
+            closeConnection(c);
+            return;
+        }
+        ByteBuffer in = c.in;
+        in.flip();
+        int lineStart = 0;
+        for (int i = 0; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                int lineEnd = i;
+                if (lineEnd > lineStart && in.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                byte[] line = new byte[lineEnd - lineStart];
+                in.position(lineStart);
+                in.get(line);
+                lineStart = i + 1;
+                handleCommand(c, new String(line, StandardCharsets.UTF_8));
+                if (!c.channel.isOpen()) {
+                    return;
+                }
+            }
+        }
+        in.position(lineStart);
+        in.compact();
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_LINE_LENGTH) {
+                closeConnection(c);
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            c.in = bigger;
+        }
+    }
+
+    /**
+     * Handle one command from a client, the same way as the course server does.
+     */
+    private void handleCommand(Connection c, String line) {
+        commandCount.incrementAndGet();
+        c.commandCount++;
+        int limit = disconnectAfterCommands;
+        if (limit > 0 && c.commandCount > limit) {
+            closeConnection(c);
+            return;
+        }
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String args = space < 0 ? "" : line.substring(space + 1);
+        switch (command) {
+            case "login":
+                login(c, args);
+                break;
+            case "msg":
+                if (c.username == null) {
+                    send(c, "msgerr unauthorized");
+                } else {
+                    int recipients = 0;
+                    for (Connection other : connections) {
+                        if (other != c) {
+                            send(other, "msg " + c.username + " " + args);
+                            recipients++;
+                        }
+                    }
+                    send(c, "msgok " + recipients);
+                }
+                break;
+            case "privmsg":
+                privateMessage(c, args);
+                break;
+            case "users":
+                StringBuilder response = new StringBuilder("users");
+                for (String username : users.keySet()) {
+                    response.append(' ').append(username);
+                }
+                send(c, response.toString());
+                break;
+            case "help":
+                send(c, SUPPORTED);
+                break;
+            default:
+                send(c, "cmderr command not supported");
+                break;
+        }
+    }
+
+    private void login(Connection c, String username) {
+        if (!isValidUsername(username)) {
+            send(c, "loginerr incorrect username format");
+            return;
+        }
+        Connection owner = users.get(username);
+        if (owner != null && owner != c) {
+            send(c, "loginerr username already in use");
+            return;
+        }
+        if (c.username != null) {
+            users.remove(c.username);
+        }
+        c.username = username;
+        users.put(username, c);
+        send(c, "loginok");
+    }
+
+    private void privateMessage(Connection c, String args) {
+        if (c.username == null) {
+            send(c, "msgerr unauthorized");
+            return;
+        }
+        int space = args.indexOf(' ');
+        String recipient = space < 0 ? args : args.substring(0, space);
+        String text = space < 0 ? "" : args.substring(space + 1);
+        Connection target = users.get(recipient);
+        if (target == null) {
+            send(c, "msgerr incorrect recipient " + recipient);
+            return;
+        }
+        send(target, "privmsg " + c.username + " " + text);
+        send(c, "msgok 1");
+    }
+
+    private static boolean isValidUsername(String username) {
+        if (username.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            char ch = username.charAt(i);
+            if (!(ch >= 'a' && ch <= 'z') && !(ch >= 'A' && ch <= 'Z') && !(ch >= '0' && ch <= '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue a response line for a client, applying the latency and fragmentation hooks.
+     */
+    private void send(Connection c, String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        long due = System.currentTimeMillis() + latencyMillis;
+        int fragment = fragmentSize;
+        if (fragment <= 0) {
+            c.out.add(new Outgoing(due, ByteBuffer.wrap(bytes)));
+        } else {
+            for (int offset = 0; offset < bytes.length; offset += fragment) {
+                int length = Math.min(fragment, bytes.length - offset);
+                c.out.add(new Outgoing(due, ByteBuffer.wrap(bytes, offset, length)));
+                due += fragmentDelayMillis;
+            }
+        }
+        pendingOutput.add(c);
+    }
+
+    /**
+     * Write all the output which is due.
+     *
+     * @return Milliseconds until the next output is due, 0 if there is none
+     */
+    private long writeDueOutput() {
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        Iterator<Connection> it = pendingOutput.iterator();
+        while (it.hasNext()) {
+            Connection c = it.next();
+            Outgoing head;
+            try {
+                while ((head = c.out.peek()) != null && head.dueMillis <= now) {
+                    c.channel.write(head.data);
+                    if (head.data.hasRemaining()) {
+                        // The socket buffer is full, continue when it is writable
+                        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        break;
+                    }
+                    c.out.poll();
+                }
+            } catch (IOException e) {
+                c.out.clear();
+                closeConnectionLater(c);
+            }
+            if (c.out.isEmpty()) {
+                it.remove();
+            } else if (c.out.peek().dueMillis > now) {
+                nextDue = Math.min(nextDue, c.out.peek().dueMillis);
+            } else {
+                // Waiting for OP_WRITE, poll again soon
+                nextDue = Math.min(nextDue, now + 1);
+            }
+        }
+        return nextDue == Long.MAX_VALUE ? 0 : Math.max(1, nextDue - now);
+    }
+
+    private void closeConnectionLater(Connection c) {
+        runOnServerThread(() -> closeConnection(c));
+    }
+
+    private void closeConnection(Connection c) {
+        if (c.username != null && users.get(c.username) == c) {
+            users.remove(c.username);
+        }
+        connections.remove(c);
+        pendingOutput.remove(c);
+        c.out.clear();
+        connectionCount = connections.size();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.URL;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -14,6 +15,8 @@ import javafx.stage.Stage;
  * Class representing the main Graphical User Interface (GUI). JavaFX interface.
  */
 public class App extends Application {
+    // Null until the layout is loaded
+    private GUIController controller;
 
     public static void main(String[] args) {
         launch(args);
@@ -27,15 +30,30 @@ public class App extends Application {
      */
     @Override
     public void start(Stage primaryStage) {
+        StartupTimer.phase("launch", StartupTimer.getMillisSinceJvmStart() * 1000000);
+        long start = System.nanoTime();
         URL r = getClass().getClassLoader().getResource("layout.fxml");
+        FXMLLoader loader = new FXMLLoader(r);
         Parent root = null;
         try {
-            root = FXMLLoader.load(r);
+            // Includes the initialization of the controller, and with it the history
+            root = loader.load();
+            controller = loader.getController();
         } catch (IOException e) {
             System.out.println("Error while loading FXML");
             return;
         }
+        StartupTimer.phase("fxml", System.nanoTime() - start);
         Scene scene = new Scene(root, 600, 400);
+        // The first layout pulse after show() puts the transcript on the screen
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                StartupTimer.firstContent();
+                // Not while the listeners are being called
+                Platform.runLater(() -> scene.removePostLayoutPulseListener(this));
+            }
+        });
         scene.getStylesheets().add("styles/style.css");
         primaryStage.setTitle("NTNU Ålesund - ID203012 - ChatClient");
         primaryStage.setScene(scene);
@@ -43,4 +61,15 @@ public class App extends Application {
         primaryStage.getIcons().add(anotherIcon);
         primaryStage.show();
     }
+
+    /**
+     * This method is called automatically by JavaFX when the application exits, for example when
+     * the last window is closed
+     */
+    @Override
+    public void stop() {
+        if (controller != null) {
+            controller.shutdown();
+        }
+    }
 }
\ No newline at end of file
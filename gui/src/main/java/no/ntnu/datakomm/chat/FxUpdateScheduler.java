@@ -0,0 +1,158 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Applies GUI updates posted from background threads on the JavaFX thread, once per pulse (frame),
+ * instead of one Platform.runLater() per update. Updates which replace each other (for example, a
+ * new user list makes the previous one useless) are posted with a key, and only the latest one per
+ * key is applied. Every pulse spends at most a time budget on updates, the rest waits for the next
+ * pulse, so that the GUI stays responsive to the user during a flood of messages.
+ *
+ * When the queue grows over a high watermark, the backpressure handler is called with true (for
+ * example, to stop reading from the server), and with false when the queue is drained below the
+ * low watermark.
+ *
+ * The queue itself is in {@link UpdateQueue}; this class runs it on the JavaFX pulses.
+ */
+public class FxUpdateScheduler {
+    private final UpdateQueue queue;
+
+    // True while the timer runs or is about to be started
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            applyUpdates();
+        }
+    };
+
+    /**
+     * Create a scheduler with a budget of 8 ms per frame, which leaves half of a 60 Hz frame to the
+     * layout and rendering.
+     */
+    public FxUpdateScheduler() {
+        this(8000000, 2000, 500);
+    }
+
+    /**
+     * @param frameBudgetNanos Maximum time spent on updates in one pulse, in nanoseconds
+     * @param highWatermark    Queue depth at which the backpressure is turned on
+     * @param lowWatermark     Queue depth at which the backpressure is turned off
+     */
+    public FxUpdateScheduler(long frameBudgetNanos, int highWatermark, int lowWatermark) {
+        queue = new UpdateQueue(frameBudgetNanos, highWatermark, lowWatermark);
+    }
+
+    /**
+     * Set the handler which is called with true when the updates pile up and with false when they
+     * are caught up. The handler is called on the posting thread or on the JavaFX thread.
+     *
+     * @param handler The backpressure handler, or null
+     */
+    public void setBackpressureHandler(Consumer<Boolean> handler) {
+        queue.setBackpressureHandler(handler);
+    }
+
+    /**
+     * Apply the update on the JavaFX thread, after the updates posted before it. Can be called from
+     * any thread.
+     *
+     * @param update The update
+     */
+    public void post(Runnable update) {
+        queue.post(update);
+        schedule();
+    }
+
+    /**
+     * Apply the update on the JavaFX thread, after the updates posted before it, unless another
+     * update with the same key is posted before it is applied: then only the newer one is applied.
+     * Can be called from any thread.
+     *
+     * @param key    Identifies the updates which replace each other
+     * @param update The update
+     */
+    public void postLatest(Object key, Runnable update) {
+        queue.postLatest(key, update);
+        schedule();
+    }
+
+    /**
+     * Make sure the timer runs. Starting it is done on the JavaFX thread, once when the scheduler
+     * goes from idle to busy.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            Platform.runLater(timer::start);
+        }
+    }
+
+    /**
+     * Called on every pulse while there are updates: apply the queued updates in order until the
+     * frame budget is used up.
+     */
+    private void applyUpdates() {
+        if (queue.applyUpdates()) {
+            // Idle: don't ask JavaFX for more pulses. Check again in case something was posted meanwhile.
+            timer.stop();
+            scheduled.set(false);
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                timer.start();
+            }
+        }
+    }
+
+    /**
+     * @return Number of queued updates which are not applied yet
+     */
+    public int getQueueDepth() {
+        return queue.getQueueDepth();
+    }
+
+    /**
+     * @return The largest queue depth seen
+     */
+    public int getMaxQueueDepth() {
+        return queue.getMaxQueueDepth();
+    }
+
+    /**
+     * @return Time spent on updates in the last pulse, in nanoseconds
+     */
+    public long getLastFrameNanos() {
+        return queue.getLastFrameNanos();
+    }
+
+    /**
+     * @return The longest time spent on updates in one pulse, in nanoseconds
+     */
+    public long getMaxFrameNanos() {
+        return queue.getMaxFrameNanos();
+    }
+
+    /**
+     * @return Number of updates applied
+     */
+    public long getAppliedCount() {
+        return queue.getAppliedCount();
+    }
+
+    /**
+     * @return Number of keyed updates skipped because a newer one replaced them
+     */
+    public long getMergedCount() {
+        return queue.getMergedCount();
+    }
+
+    /**
+     * @return true while the backpressure is on
+     */
+    public boolean isBackpressureOn() {
+        return queue.isBackpressureOn();
+    }
+}
@@ -0,0 +1,784 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.collections.ObservableList;
+import javafx.fxml.FXML;
+import javafx.scene.control.*;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.input.KeyCode;
+import javafx.stage.Stage;
+
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The graphical interface containing all the user interface controls: buttons, inputs, etc.
+ * It implements the "interface logic" and sends commands to a TcpClient. To get server
+ * response back from the TcpClient, this class implements ChatListener interface - it can
+ * react on every incoming event.
+ */
+public class GUIController implements ChatListener {
+    private static final System.Logger LOGGER = System.getLogger(GUIController.class.getName());
+
+    // The following variables are bound to GUI controls. For example, submitBtn is bound to the
+    // "Submit" button in the GUI. The binding is done by JavaFX, by using correct attributes in the FXML layout file.
+
+    @FXML
+    private Button submitBtn;
+
+    @FXML
+    private Button connectBtn;
+
+    @FXML
+    private Button loginBtn;
+
+    @FXML
+    private Button helpBtn;
+
+    // The users logged in, sorted by UserIndex.ORDER. Only the visible rows have GUI nodes.
+    @FXML
+    private ListView<String> userList;
+
+    // The users shown in userList, to update it with the joins and leaves only
+    private final UserIndex shownUsers = new UserIndex();
+
+    // The chat transcript. Only the visible rows have GUI nodes, see TranscriptCell
+    @FXML
+    private ListView<TranscriptEntry> textOutput;
+
+    @FXML
+    private TextArea textInput;
+
+    @FXML
+    private TextField hostInput;
+
+    @FXML
+    private TextField portInput;
+
+    @FXML
+    private TextField loginInput;
+
+    @FXML
+    private TitledPane serverStatus;
+
+    // Query for the history index, and the messages found
+    @FXML
+    private TextField searchInput;
+
+    @FXML
+    private ListView<TranscriptEntry> searchResults;
+
+    // How many transcript entries are kept in memory, and their maximum estimated size. The older
+    // entries are spilled to disk. Can be changed with system properties.
+    private static final int SCROLLBACK_MAX_MESSAGES = Integer.getInteger("chat.scrollback.maxMessages", 5000);
+    private static final long SCROLLBACK_MAX_BYTES = Long.getLong("chat.scrollback.maxBytes", 8 * 1024 * 1024);
+    // How many older entries are loaded from disk when the user scrolls to the top
+    private static final int SCROLLBACK_PAGE = 200;
+    // Where the history of the messages is kept between the runs. Can be changed with a system property.
+    private static final Path HISTORY_DIR = Paths.get(System.getProperty("chat.history.dir",
+            Paths.get(System.getProperty("user.home"), ".chatclient", "history").toString()));
+    // How many of the newest messages are shown from the history at startup, before anything else
+    private static final int HISTORY_SCREENFUL = 50;
+    // How many messages a history search shows, newest first
+    private static final int SEARCH_MAX_RESULTS = 200;
+
+    // Keeps the transcript (the items of textOutput) within the limits above
+    private ScrollbackStore scrollback;
+    // Messages of the earlier runs; null if the history can't be used
+    private HistoryJournal history;
+    // Position of the oldest message loaded from the history, -1 when there are no older ones
+    private long oldestHistoryPosition = -1;
+    private boolean loadingHistory = false;
+    // Word index of the history, for the search box; null if it can't be used
+    private HistoryIndex historyIndex;
+
+    // True while the transcript is scrolled to the bottom: new messages scroll it further down.
+    // When the user scrolls up to read older messages, the position is kept.
+    private boolean followTail = true;
+
+    // The TCP client that can connect, send commands, etc.
+    private TCPClient tcpClient;
+
+    // Applies the updates coming from the TCP client on the GUI thread, once per frame
+    private final FxUpdateScheduler ui = new FxUpdateScheduler();
+    // Key of the user list updates: only the latest list waiting to be shown matters
+    private static final Object USER_LIST_UPDATE = new Object();
+
+    // Runs the background tasks: connection setup and user polling
+    private final Executor executor = ChatExecutor.getDefault();
+
+    // Active user list will be refreshed by the poller, more often when something happens in the chat.
+    // It runs in a background thread to avoid blocking the GUI.
+    private volatile UserListPoller userPoller;
+    // No need to poll the user list while the window is minimized
+    private boolean minimized = false;
+
+    /**
+     * Called by the FXML loader after the labels declared above are injected:
+     */
+    public void initialize() {
+        tcpClient = new TCPClient(executor);
+        // Timing statistics for jconsole or any other JMX client
+        tcpClient.getMetrics().registerMBean("gui");
+        // Ride out a server restart: connect and log in again, keep the messages typed meanwhile
+        tcpClient.setAutoReconnect(250, 10000, TimeUnit.MILLISECONDS, 100);
+        // When the GUI can't keep up with the server, stop reading until it has caught up
+        ui.setBackpressureHandler(this::onGuiBackpressure);
+        hostInput.setText("datakomm.work");
+        portInput.setText("1300");
+        textOutput.setCellFactory(list -> new TranscriptCell());
+        searchResults.setCellFactory(list -> new TranscriptCell());
+        // Click on a user in the user list - allow to send a private message
+        userList.setCellFactory(list -> new UserCell(user -> {
+            textInput.setText("/privmsg " + user + " ");
+            textInput.requestFocus();
+            textInput.end();
+        }));
+        scrollback = new ScrollbackStore(textOutput.getItems(), SCROLLBACK_MAX_MESSAGES, SCROLLBACK_MAX_BYTES);
+        showRecentHistory();
+        // The scrollbar exists only when the ListView skin is created
+        textOutput.skinProperty().addListener((observable, oldSkin, newSkin) -> watchTranscriptScrolling());
+        setKeyAndClickListeners();
+        watchMinimizing();
+    }
+
+    /**
+     * Pause the user list polling while the window is minimized. The window is known only after the
+     * layout is added to a scene, and the scene to a stage.
+     */
+    private void watchMinimizing() {
+        textOutput.sceneProperty().addListener((observable, oldScene, scene) -> {
+            if (scene == null) {
+                return;
+            }
+            scene.windowProperty().addListener((obs, oldWindow, window) -> {
+                if (window instanceof Stage) {
+                    ((Stage) window).iconifiedProperty().addListener((o, wasIconified, iconified) -> {
+                        minimized = iconified;
+                        UserListPoller poller = userPoller;
+                        if (poller != null) {
+                            poller.setPaused(iconified);
+                        }
+                    });
+                }
+            });
+        });
+    }
+
+    /**
+     * Called when the GUI updates pile up (on = true) and when they are caught up (on = false)
+     *
+     * @param on When true, the GUI is behind and reading from the server must be paused
+     */
+    private void onGuiBackpressure(boolean on) {
+        if (on) {
+            LOGGER.log(Level.INFO, "GUI is behind by " + ui.getQueueDepth() + " updates (last frame "
+                    + ui.getLastFrameNanos() / 1000 + " us), pausing reading from the server");
+            tcpClient.pauseReading();
+        } else {
+            LOGGER.log(Level.INFO, "GUI caught up, resuming reading from the server");
+            tcpClient.resumeReading();
+        }
+    }
+
+    /**
+     * Follow the vertical scrollbar of the transcript: remember whether it is at the bottom, and page
+     * older messages in from disk when it reaches the top. The paged-in messages are kept in memory
+     * until the scrollbar is back at the bottom.
+     */
+    private void watchTranscriptScrolling() {
+        for (Node node : textOutput.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                ScrollBar bar = (ScrollBar) node;
+                bar.valueProperty().addListener((observable, oldValue, newValue) -> {
+                    followTail = newValue.doubleValue() >= bar.getMax();
+                    if (followTail) {
+                        // Back at the newest messages: the older pages may be evicted again
+                        scrollback.releaseOlder();
+                    }
+                    if (newValue.doubleValue() <= bar.getMin()) {
+                        if (scrollback.hasOlder()) {
+                            loadOlderMessages();
+                        } else {
+                            loadOlderHistory();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Put a page of older messages in front of the transcript, keeping the rows that the user was
+     * looking at on the screen.
+     */
+    private void loadOlderMessages() {
+        try {
+            int loaded = scrollback.loadOlder(SCROLLBACK_PAGE);
+            textOutput.scrollTo(loaded);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not load older messages", e);
+        }
+    }
+
+    /**
+     * Initialize handling for all GUI events: clicking on buttons, and key presses
+     */
+    private void setKeyAndClickListeners() {
+        connectBtn.setOnMouseClicked(event -> {
+            // Mouse clicked on "Connect" button. While reconnecting it is still "Disconnect".
+            if (tcpClient.isConnectionActive() || tcpClient.isReconnecting()) {
+                stopUserPolling();
+                tcpClient.disconnect();
+                updateButtons(false);
+            } else {
+                setupConnection(hostInput.getText(), portInput.getText());
+            }
+        });
+        loginBtn.setOnMouseClicked(event -> {
+            // Mouse clicked on "Login" button
+            tcpClient.tryLogin(loginInput.getText());
+            loginInput.setText("");
+        });
+        textInput.setOnKeyPressed(event -> {
+            if (event.getCode().equals(KeyCode.ENTER) && event.isShiftDown()) {
+                // When Shift+"Enter" is pressed in the message input box: start a new line in the message
+                textInput.setText(textInput.getText() + "\n");
+                textInput.requestFocus();
+                textInput.end();
+            } else if (event.getCode().equals(KeyCode.ENTER)) {
+                // When "Enter" is pressed in the message input box: submit the message
+                inputSubmit();
+                event.consume(); // This is needed to disable beeping sound
+            }
+        });
+        // "Enter" in the search box: search the history
+        searchInput.setOnAction(event -> searchHistory());
+        submitBtn.setOnMouseClicked(event -> {
+            // Mouse clicked on "Submit" button
+            inputSubmit();
+            textInput.requestFocus();
+        });
+        // Mouse clicked on "Help" button
+        helpBtn.setOnMouseClicked(event -> tcpClient.askSupportedCommands());
+    }
+
+    /**
+     * Open the history journal and show the newest messages from it, so that the window is not
+     * empty until the connection is up. Only the last segment of the journal is read, so this takes
+     * the same time whatever the size of the history. One page of older messages is loaded in the
+     * background right after. Without the journal, the chat works as before, only the history is
+     * not kept.
+     */
+    private void showRecentHistory() {
+        long start = System.nanoTime();
+        try {
+            history = new HistoryJournal(HISTORY_DIR);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open the message history in " + HISTORY_DIR, e);
+            return;
+        }
+        tcpClient.setHistoryJournal(history);
+        List<HistoryEntry> recent = history.readLast(HISTORY_SCREENFUL);
+        scrollback.appendAll(toTranscriptEntries(recent));
+        oldestHistoryPosition = recent.isEmpty() ? -1 : recent.get(0).getPosition();
+        StartupTimer.phase("history", System.nanoTime() - start);
+        scrollToEnd(true);
+        loadOlderHistory();
+        openHistoryIndex();
+    }
+
+    /**
+     * Open the word index of the history journal and index the messages missing from it in the
+     * background. After that, it follows the new messages as a listener of the TCP client.
+     */
+    private void openHistoryIndex() {
+        try {
+            historyIndex = new HistoryIndex(history, HISTORY_DIR.resolve("index"), executor);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open the history index", e);
+            return;
+        }
+        executor.execute(historyIndex::catchUp);
+        tcpClient.addListener(historyIndex);
+    }
+
+    /**
+     * Called when the application exits. Disconnects from the server, then indexes the last
+     * messages and writes the history index to disk, so that they need not be indexed again at the
+     * next start. The history journal is closed last, after the index has read it.
+     */
+    public void shutdown() {
+        stopUserPolling();
+        tcpClient.disconnect();
+        if (historyIndex != null) {
+            tcpClient.removeListener(historyIndex);
+            try {
+                historyIndex.catchUp();
+                historyIndex.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not write the history index", e);
+            }
+            historyIndex = null;
+        }
+        if (history != null) {
+            tcpClient.setHistoryJournal(null);
+            try {
+                history.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not close the message history", e);
+            }
+            history = null;
+        }
+    }
+
+    /**
+     * Search the history for the query in the search box, in the background, and show the
+     * messages found.
+     */
+    private void searchHistory() {
+        String query = searchInput.getText();
+        // The field is cleared on shutdown
+        HistoryIndex index = historyIndex;
+        if (index == null || query.isBlank()) {
+            searchResults.getItems().clear();
+            return;
+        }
+        executor.execute(() -> {
+            List<TranscriptEntry> found = toTranscriptEntries(index.search(query, SEARCH_MAX_RESULTS));
+            ui.post(() -> searchResults.getItems().setAll(found));
+        });
+    }
+
+    /**
+     * Load one page of older messages from the history journal in the background, and put them
+     * in front of the transcript.
+     */
+    private void loadOlderHistory() {
+        if (history == null || oldestHistoryPosition < 0 || loadingHistory) {
+            return;
+        }
+        loadingHistory = true;
+        long before = oldestHistoryPosition;
+        // The field is cleared on shutdown
+        HistoryJournal journal = history;
+        executor.execute(() -> {
+            List<HistoryEntry> older = journal.readBefore(before, SCROLLBACK_PAGE);
+            List<TranscriptEntry> entries = toTranscriptEntries(older);
+            ui.post(() -> {
+                loadingHistory = false;
+                if (older.isEmpty()) {
+                    oldestHistoryPosition = -1;
+                } else if (!scrollback.hasOlder()) {
+                    // Otherwise the front of the transcript is not in memory, load it again later
+                    scrollback.prependOlder(entries);
+                    oldestHistoryPosition = older.get(0).getPosition();
+                    if (followTail) {
+                        scrollToEnd(false);
+                    } else {
+                        textOutput.scrollTo(entries.size());
+                    }
+                }
+            });
+        });
+    }
+
+    private static List<TranscriptEntry> toTranscriptEntries(List<HistoryEntry> entries) {
+        List<TranscriptEntry> transcript = new ArrayList<>(entries.size());
+        for (HistoryEntry entry : entries) {
+            transcript.add(new TranscriptEntry(entry.toTextMessage(),
+                    entry.isOutgoing() ? TranscriptEntry.Kind.SENT : TranscriptEntry.Kind.RECEIVED));
+        }
+        return transcript;
+    }
+
+    /**
+     * Take the message from the text input box, send it to the server
+     */
+    private void inputSubmit() {
+        String msgToSend = textInput.getText();
+        if (!msgToSend.isEmpty()) {
+            TextMessage msg;
+            // Sent, or kept by the client until it has reconnected
+            boolean sent = false;
+            if (tcpClient.isConnectionActive() || tcpClient.isReconnecting()) {
+                // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
+                // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
+                String[] msgParts = msgToSend.split(" ", 3);
+                if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
+                    String recipient = msgParts[1];
+                    String message = msgParts[2];
+                    sent = tcpClient.sendPrivateMessage(recipient, message);
+                } else {
+                    sent = tcpClient.sendPublicMessage(msgToSend);
+                }
+                msg = new TextMessage("", false, msgToSend);
+            } else {
+                msg = new TextMessage("you", false, msgToSend);
+            }
+            if (sent) {
+                addMsgToGui(true, msg, false);
+                if (historyIndex != null) {
+                    // The client has written it to the journal
+                    historyIndex.scheduleCatchUp();
+                }
+            } else {
+                addFailedMsgToGui(msg);
+            }
+            textInput.setText("");
+        }
+    }
+
+    /**
+     * Add a message to the GUI chat window
+     *
+     * @param local   When true, this message was sent by us. When false -
+     *                received from another user
+     * @param msg     The message to be displayed
+     * @param warning When true, this message is a warning that must be displayed to the user
+     */
+    private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
+        scrollback.append(toTranscriptEntry(local, msg, warning));
+        // Our own messages always scroll down, so that the user sees them
+        scrollToEnd(local);
+    }
+
+    /**
+     * Add a message which the user could not send to the GUI chat window, and tell why
+     *
+     * @param msg The message
+     */
+    private void addFailedMsgToGui(TextMessage msg) {
+        if (tcpClient.isConnectionActive() || tcpClient.isReconnecting()) {
+            // For example, too many messages are waiting for the reconnect
+            serverStatus.setText("Could not send the message: " + tcpClient.getLastError());
+        } else {
+            serverStatus.setText("Please login to send messages to server");
+        }
+        scrollback.append(new TranscriptEntry(msg, TranscriptEntry.Kind.FAILED));
+        scrollToEnd(true);
+    }
+
+    /**
+     * Scroll the transcript to the newest message, unless the user is reading older ones
+     *
+     * @param force When true, scroll down even if the user is reading older messages
+     */
+    private void scrollToEnd(boolean force) {
+        if (followTail || force) {
+            textOutput.scrollTo(textOutput.getItems().size() - 1);
+        }
+    }
+
+    /**
+     * Decide how a message is displayed in the chat window, according to what type of message it is
+     *
+     * @param local   When true, this message was sent by us
+     * @param msg     The message to be displayed
+     * @param warning When true, this message is a warning/info for the user
+     * @return The transcript entry for the message
+     */
+    private TranscriptEntry toTranscriptEntry(boolean local, TextMessage msg, boolean warning) {
+        TranscriptEntry.Kind kind;
+        if (warning) {
+            // This message is a warning/info, add specific style to it
+            if (msg.getSender().equals("err")) {
+                kind = TranscriptEntry.Kind.WARNING;
+            } else {
+                kind = TranscriptEntry.Kind.INFO;
+            }
+        } else if (local) {
+            // Sent, or waiting for the reconnect: the messages which failed are added by
+            // addFailedMsgToGui()
+            kind = TranscriptEntry.Kind.SENT;
+        } else {
+            kind = TranscriptEntry.Kind.RECEIVED;
+        }
+        return new TranscriptEntry(msg, kind);
+    }
+
+    /**
+     * Start a connection to the server: try to connect Socket, log in and start
+     * listening for incoming messages
+     *
+     * @param host The host to connect to (domain name or IP address)
+     * @param port Remote TCP port
+     */
+    private void setupConnection(String host, String port) {
+        // The users of the previous connection
+        userList.getItems().clear();
+        shownUsers.clear();
+        serverStatus.setText("Trying to connect...");
+        connectBtn.setText("Connecting...");
+        connectBtn.setDisable(true);
+
+        stopUserPolling();
+        boolean paused = minimized;
+        // Run the connection in a new background thread to avoid GUI freeze
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            boolean connected = tcpClient.connect(host, Integer.parseInt(port));
+            if (connected) {
+                StartupTimer.phase("connect", System.nanoTime() - start);
+            }
+            if (connected) {
+                // Connection established, start listening processes
+                tcpClient.addListener(this);
+                tcpClient.startListenThread();
+                startUserPolling(paused);
+            }
+            updateButtons(connected);
+        });
+    }
+
+    /**
+     * Update texts and enabled/disabled state of GUI buttons according to
+     * connection success.
+     *
+     * @param connected When true, client has successfully connected to the
+     *                  server. When false, connection failed
+     */
+    private void updateButtons(boolean connected) {
+        String status;
+        String connBtnText;
+        if (connected) {
+            status = "Connection to server established";
+            connBtnText = "Disconnect";
+        } else {
+            status = "Not connected: " + tcpClient.getLastError();
+            connBtnText = "Connect";
+        }
+        // Make sure this will be executed on GUI thread
+        ui.post(() -> {
+            // Update button texts
+            serverStatus.setText(status);
+            connectBtn.setText(connBtnText);
+            // Connection button was disabled while connection was in progress, 
+            // now we enable it
+            connectBtn.setDisable(false);
+
+            // Enable/disable buttons: Login, help, submit
+            loginBtn.setDisable(!connected);
+            submitBtn.setDisable(!connected);
+            helpBtn.setDisable(!connected);
+        });
+
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // The methods below are called by the associated TcpClient (facade 
+    // object) in another background thread when messages are received
+    // from the server.
+    ///////////////////////////////////////////////////////////////////////
+
+    /**
+     * Start polling the server for currently active users
+     *
+     * @param paused When true, the poller waits until the window is restored
+     */
+    private void startUserPolling(boolean paused) {
+        UserListPoller poller = new UserListPoller(tcpClient);
+        poller.setPaused(paused);
+        userPoller = poller;
+        poller.start(executor);
+    }
+
+    /**
+     * Stop polling the user list of the current connection, if any
+     */
+    private void stopUserPolling() {
+        UserListPoller poller = userPoller;
+        if (poller != null) {
+            poller.stop();
+            userPoller = null;
+        }
+    }
+
+    /**
+     * This method is called (by the TcpClient) when a login procedure is done: either it succeeded
+     * or failed.
+     *
+     * @param success when true, the client has logged in, when false, login
+     *                failed
+     * @param errMsg  Error message in case of failure, or null on successful
+     *                login
+     */
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        // Update the GUI. Do it on the GUI thread with ui.post()
+        ui.post(() -> {
+            if (success) {
+                serverStatus.setText("Server - login successful");
+            } else {
+                serverStatus.setText("Server - login failed");
+                addMsgToGui(true, new TextMessage("err", false, errMsg), true);
+            }
+        });
+    }
+
+    /**
+     * This method is called when an incoming text message is received
+     *
+     * @param message Message that from another (chat server has forwarded it)
+     */
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        // Show the message in the GUI. Do it on the GUI thread.
+        ui.post(() -> addMsgToGui(false, message, false));
+    }
+
+    /**
+     * This method is called with all the messages received in one burst. They are added to the GUI
+     * in one go, so that the layout is done once for the whole burst.
+     *
+     * @param messages Messages from other users, in the order they arrived
+     */
+    @Override
+    public void onMessagesReceived(List<TextMessage> messages) {
+        ui.post(() -> {
+            List<TranscriptEntry> entries = new ArrayList<>(messages.size());
+            for (TextMessage message : messages) {
+                entries.add(toTranscriptEntry(false, message, false));
+            }
+            scrollback.appendAll(entries);
+            scrollToEnd(false);
+        });
+    }
+
+    /**
+     * This method is called when an error happened when we tried to send
+     * message to the server (the message was not sent to necessary recipients)
+     *
+     * @param errMsg Error message
+     */
+    @Override
+    public void onMessageError(String errMsg) {
+        // Show error message in the GUI. Do it on the GUI thread.
+        ui.post(() -> addMsgToGui(true, new TextMessage("err", false,
+                "Error: " + errMsg), true));
+    }
+
+    /**
+     * This method is called when a list of currently connected users is
+     * received
+     *
+     * @param usernames Array with usernames of currently connected users
+     */
+    @Override
+    public void onUserList(String[] usernames) {
+        // Update the user list. Do it on the GUI thread. If several lists arrive within one frame,
+        // only the latest one is shown.
+        ui.postLatest(USER_LIST_UPDATE, () -> showUsers(usernames));
+    }
+
+    /**
+     * Update the user list in the GUI with the users who joined and left since the last update
+     *
+     * @param usernames Usernames of currently connected users
+     */
+    private void showUsers(String[] usernames) {
+        UserIndex.Diff diff = shownUsers.update(usernames);
+        ObservableList<String> items = userList.getItems();
+        if (diff.getJoined().length + diff.getLeft().length > items.size() / 2) {
+            // Most of the list changed (for example, the first list): replace it all at once
+            items.setAll(shownUsers.getUsers());
+            return;
+        }
+        for (String user : diff.getLeft()) {
+            int position = Collections.binarySearch(items, user, UserIndex.ORDER);
+            if (position >= 0) {
+                items.remove(position);
+            }
+        }
+        for (String user : diff.getJoined()) {
+            int position = Collections.binarySearch(items, user, UserIndex.ORDER);
+            if (position < 0) {
+                items.add(-position - 1, user);
+            }
+        }
+    }
+
+    /**
+     * This method is called when a list of currently supported commands is
+     * received
+     *
+     * @param commands Array with supported commands
+     */
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        // Show the commands in the GUI. Do it on the GUI thread.
+        ui.post(() -> {
+            StringBuilder listOfCommands = new StringBuilder(
+                    "Commands available: ");
+            for (String c : commands) {
+                listOfCommands.append(c).append(" ");
+            }
+            listOfCommands.append(
+                    "\nNB! These are chat protocol commands and won't work by just typing them");
+            addMsgToGui(true, new TextMessage("info", false, "Info: "
+                    + listOfCommands.toString()), true);
+        });
+    }
+
+    /**
+     * This method is called when the server did not understand the last command
+     *
+     * @param errMsg Error message
+     */
+    @Override
+    public void onCommandError(String errMsg) {
+        // Shoe error message. Do it on the GUI thread.
+        ui.post(() -> {
+            TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
+            addMsgToGui(true, msg, true);
+        });
+    }
+
+    /**
+     * This method is called when connection (socket) is closed by the remote
+     * end (server).
+     */
+    @Override
+    public void onDisconnect() {
+        System.out.println("Socket closed by the remote end");
+        if (tcpClient.isReconnecting()) {
+            ui.post(() -> serverStatus.setText("Connection lost, reconnecting..."));
+        } else {
+            updateButtons(false);
+        }
+    }
+
+    /**
+     * This method is called when the client has connected and logged in again by itself after the
+     * connection was lost. The user list poller stopped with the old connection, start a new one.
+     */
+    @Override
+    public void onReconnected() {
+        System.out.println("Reconnected to the server");
+        ui.post(() -> {
+            stopUserPolling();
+            startUserPolling(minimized);
+        });
+        updateButtons(true);
+    }
+
+    /**
+     * This method is called when the client has given up reconnecting, because the server rejected
+     * the login with our username. The messages written during the outage were not sent.
+     *
+     * @param errMsg Error message of the last rejected login
+     */
+    @Override
+    public void onReconnectFailed(String errMsg) {
+        updateButtons(false);
+        ui.post(() -> addMsgToGui(true, new TextMessage("err", false,
+                "Could not log in again after reconnecting: " + errMsg), true));
+    }
+}
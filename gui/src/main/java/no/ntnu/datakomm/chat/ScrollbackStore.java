@@ -0,0 +1,373 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the chat transcript within a memory budget. Only the newest entries stay in memory (the
+ * resident window), limited both by count and by an estimate of their size in bytes. Older entries
+ * are spilled to an on-disk segment file and can be paged back in, for example when the user scrolls
+ * to the top of the transcript.
+ *
+ * The resident entries are kept directly in the list given to the constructor (for the GUI, the
+ * items of the transcript ListView), so there is no second copy of them. Not thread-safe: the GUI
+ * uses it on the JavaFX thread only.
+ */
+public class ScrollbackStore implements Closeable {
+    private static final System.Logger LOGGER = System.getLogger(ScrollbackStore.class.getName());
+
+    // An index entry is kept for every page of spilled entries, not for every entry
+    private static final int PAGE_SIZE = 128;
+    // Rough memory use of an entry besides its text: object headers, references, String objects
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final List<TranscriptEntry> resident;
+    // Directory of the spill segment, null for the default temporary directory
+    private final Path spillDirectory;
+    private final int maxMessages;
+    private final long maxBytes;
+    private long residentBytes = 0;
+
+    // Sequence number (position in the whole transcript) of resident.get(0)
+    private long firstResidentSequence = 0;
+    private long totalCount = 0;
+    // True while the user reads older entries which were put in front of the resident ones: the
+    // eviction leaves them in memory until releaseOlder()
+    private boolean pinned = false;
+
+    // The spill segment. Entries with spillBase <= sequence < spilledCount are stored in it. The
+    // entries before spillBase are lost: the segment could not be written.
+    private Path spillPath = null;
+    private FileChannel spill = null;
+    private long spillBase = 0;
+    private long spilledCount = 0;
+    private long spilledBytes = 0;
+    private long[] pageOffsets = new long[64];
+
+    /**
+     * @param resident    The list holding the resident entries
+     * @param maxMessages Maximum number of entries kept in memory
+     * @param maxBytes    Maximum estimated size of the entries kept in memory
+     */
+    public ScrollbackStore(List<TranscriptEntry> resident, int maxMessages, long maxBytes) {
+        this(resident, maxMessages, maxBytes, null);
+    }
+
+    /**
+     * @param resident       The list holding the resident entries
+     * @param maxMessages    Maximum number of entries kept in memory
+     * @param maxBytes       Maximum estimated size of the entries kept in memory
+     * @param spillDirectory Where to create the spill segment, null for the temporary directory
+     */
+    ScrollbackStore(List<TranscriptEntry> resident, int maxMessages, long maxBytes, Path spillDirectory) {
+        if (maxMessages < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("The scrollback limits must be positive");
+        }
+        this.resident = resident;
+        this.spillDirectory = spillDirectory;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a new entry to the end of the transcript. The oldest entries are spilled to disk if the
+     * memory limits are exceeded.
+     *
+     * @param entry The entry
+     */
+    public void append(TranscriptEntry entry) {
+        resident.add(entry);
+        residentBytes += estimateSize(entry);
+        totalCount++;
+        evictIfNeeded();
+    }
+
+    /**
+     * Add several new entries to the end of the transcript, with one change of the resident list.
+     *
+     * @param entries The entries, oldest first
+     */
+    public void appendAll(List<TranscriptEntry> entries) {
+        resident.addAll(entries);
+        for (TranscriptEntry e : entries) {
+            residentBytes += estimateSize(e);
+        }
+        totalCount += entries.size();
+        evictIfNeeded();
+    }
+
+    /**
+     * @return true if there are older entries on disk, before the first resident one
+     */
+    public boolean hasOlder() {
+        return firstResidentSequence > spillBase;
+    }
+
+    /**
+     * Load older entries from disk and put them in front of the resident ones. They stay in memory
+     * while new entries arrive, until {@link #releaseOlder()}, and the memory limits may be exceeded
+     * up to twice meanwhile.
+     *
+     * @param count How many entries to load at most
+     * @return How many entries were loaded
+     * @throws IOException When reading the spill segment fails
+     */
+    public int loadOlder(int count) throws IOException {
+        if (!hasOlder() || count <= 0) {
+            return 0;
+        }
+        long from = Math.max(spillBase, firstResidentSequence - count);
+        List<TranscriptEntry> older = readSpilled(from, firstResidentSequence);
+        resident.addAll(0, older);
+        for (TranscriptEntry e : older) {
+            residentBytes += estimateSize(e);
+        }
+        firstResidentSequence = from;
+        pinned = true;
+        return older.size();
+    }
+
+    /**
+     * Let the entries loaded by {@link #loadOlder(int)} or {@link #prependOlder(List)} be evicted
+     * again, when the user does not read them any more (for example when the transcript is scrolled
+     * back to the bottom). The next new entry brings the resident window back within the limits.
+     */
+    public void releaseOlder() {
+        pinned = false;
+    }
+
+    /**
+     * Put entries which are older than the whole transcript in front of it, for example messages
+     * from the history of the earlier runs. Possible only when all the entries are in memory
+     * ({@link #hasOlder()} is false). They stay in memory like the ones loaded by
+     * {@link #loadOlder(int)}.
+     *
+     * @param older The entries, oldest first
+     */
+    public void prependOlder(List<TranscriptEntry> older) {
+        if (hasOlder()) {
+            throw new IllegalStateException("The oldest entries are not in memory");
+        }
+        // Everything spilled so far is in memory too, and all the sequence numbers move: start
+        // the spill segment again
+        firstResidentSequence = 0;
+        spillBase = 0;
+        spilledCount = 0;
+        spilledBytes = 0;
+        resident.addAll(0, older);
+        for (TranscriptEntry e : older) {
+            residentBytes += estimateSize(e);
+        }
+        totalCount += older.size();
+        pinned = true;
+    }
+
+    /**
+     * If the resident window is over the limits, spill the oldest entries. Evicts down to 90% of
+     * the limits, so that the eviction does not run for every new entry. While older entries are
+     * pinned, nothing is evicted until twice the limits: the user is reading the front of the window.
+     */
+    private void evictIfNeeded() {
+        if (resident.size() <= maxMessages && residentBytes <= maxBytes) {
+            return;
+        }
+        if (pinned) {
+            if (resident.size() - maxMessages <= maxMessages && residentBytes - maxBytes <= maxBytes) {
+                return;
+            }
+            // Better lose the place of the user than run out of memory
+            pinned = false;
+        }
+        int targetCount = maxMessages - maxMessages / 10;
+        long targetBytes = maxBytes - maxBytes / 10;
+        int evict = 0;
+        long bytes = residentBytes;
+        // Always keep at least the newest entry
+        while (evict < resident.size() - 1
+                && (resident.size() - evict > targetCount || bytes > targetBytes)) {
+            bytes -= estimateSize(resident.get(evict));
+            evict++;
+        }
+        try {
+            spillUpTo(evict);
+        } catch (IOException e) {
+            // Better lose the oldest history than run out of memory
+            LOGGER.log(Level.WARNING,
+                    "Could not spill the scrollback to disk, the older messages are lost", e);
+            discardSpilled(firstResidentSequence + evict);
+        }
+        resident.subList(0, evict).clear();
+        firstResidentSequence += evict;
+        residentBytes = bytes;
+    }
+
+    /**
+     * Drop the spill segment after a failed write: it may end in an incomplete record. The entries
+     * before the given sequence number are lost, the next spill starts a new segment there.
+     *
+     * @param lostBefore Sequence number of the oldest entry which is kept
+     */
+    private void discardSpilled(long lostBefore) {
+        try {
+            close();
+        } catch (IOException e) {
+            LOGGER.log(Level.DEBUG, "Could not delete the scrollback segment: " + e.getMessage());
+        }
+        spill = null;
+        spillBase = lostBefore;
+        spilledCount = lostBefore;
+        spilledBytes = 0;
+    }
+
+    /**
+     * Write the first n resident entries to the spill segment, except the ones already there (they
+     * were paged in from disk).
+     */
+    private void spillUpTo(int n) throws IOException {
+        int first = (int) (spilledCount - firstResidentSequence);
+        if (first >= n) {
+            return;
+        }
+        if (spill == null) {
+            spillPath = spillDirectory != null
+                    ? Files.createTempFile(spillDirectory, "chat-scrollback", ".seg")
+                    : Files.createTempFile("chat-scrollback", ".seg");
+            spillPath.toFile().deleteOnExit();
+            spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        for (int i = Math.max(first, 0); i < n; i++) {
+            if ((spilledCount - spillBase) % PAGE_SIZE == 0) {
+                int page = (int) ((spilledCount - spillBase) / PAGE_SIZE);
+                if (page == pageOffsets.length) {
+                    long[] bigger = new long[pageOffsets.length * 2];
+                    System.arraycopy(pageOffsets, 0, bigger, 0, pageOffsets.length);
+                    pageOffsets = bigger;
+                }
+                pageOffsets[page] = spilledBytes;
+            }
+            ByteBuffer record = encode(resident.get(i));
+            while (record.hasRemaining()) {
+                spilledBytes += spill.write(record, spilledBytes);
+            }
+            spilledCount++;
+        }
+    }
+
+    /**
+     * Record format: kind (1 byte), private flag (1 byte), sender length (int), sender (UTF-8),
+     * text length (int), text (UTF-8).
+     */
+    private static ByteBuffer encode(TranscriptEntry entry) {
+        TextMessage msg = entry.getMessage();
+        byte[] sender = msg.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] text = msg.getText().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(2 + 4 + sender.length + 4 + text.length);
+        record.put((byte) entry.getKind().ordinal());
+        record.put((byte) (msg.isPrivate() ? 1 : 0));
+        record.putInt(sender.length).put(sender);
+        record.putInt(text.length).put(text);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Read the spilled entries with sequence numbers from..to-1.
+     */
+    private List<TranscriptEntry> readSpilled(long from, long to) throws IOException {
+        List<TranscriptEntry> entries = new ArrayList<>((int) (to - from));
+        int page = (int) ((from - spillBase) / PAGE_SIZE);
+        long sequence = spillBase + (long) page * PAGE_SIZE;
+        // Not closed on purpose: closing the stream would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(spill.position(pageOffsets[page]))));
+        TranscriptEntry.Kind[] kinds = TranscriptEntry.Kind.values();
+        while (sequence < to) {
+            TranscriptEntry.Kind kind = kinds[in.readByte()];
+            boolean priv = in.readByte() != 0;
+            byte[] sender = new byte[in.readInt()];
+            in.readFully(sender);
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            if (sequence >= from) {
+                entries.add(new TranscriptEntry(new TextMessage(
+                        new String(sender, StandardCharsets.UTF_8), priv,
+                        new String(text, StandardCharsets.UTF_8)), kind));
+            }
+            sequence++;
+        }
+        return entries;
+    }
+
+    private static long estimateSize(TranscriptEntry entry) {
+        TextMessage msg = entry.getMessage();
+        return ENTRY_OVERHEAD_BYTES + 2L * (msg.getSender().length() + msg.getText().length());
+    }
+
+    /**
+     * @return Number of entries in memory
+     */
+    public int getResidentCount() {
+        return resident.size();
+    }
+
+    /**
+     * @return Estimated memory used by the entries in memory, in bytes
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return Number of entries written to the spill segment, or lost when it could not be written
+     */
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * @return Number of the oldest entries which are lost because the spill segment could not be
+     *         written
+     */
+    public long getLostCount() {
+        return spillBase;
+    }
+
+    /**
+     * @return Size of the spill segment on disk, in bytes
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return Number of entries in the whole transcript, in memory and on disk, including the lost
+     *         ones
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Close and delete the spill segment.
+     */
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+            Files.deleteIfExists(spillPath);
+            spill = null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+/**
+ * A row of the chat transcript. The ListView creates only as many cells as there are visible rows
+ * and reuses them while scrolling: the nodes (boxes, labels, spacer) are created once per cell, and
+ * only their texts and styles are updated for every entry displayed in the cell.
+ */
+public class TranscriptCell extends ListCell<TranscriptEntry> {
+    // Space reserved for the paddings and the scrollbar, so that long messages wrap
+    private static final double WRAP_MARGIN = 40;
+
+    private final HBox message = new HBox();
+    private final VBox messageContent = new VBox();
+    private final Label messageSender = new Label();
+    private final Label messageText = new Label();
+    private final Pane spacer = new Pane();
+
+    public TranscriptCell() {
+        messageSender.getStyleClass().add("sender");
+        messageText.setWrapText(true);
+        messageText.maxWidthProperty().bind(widthProperty().subtract(WRAP_MARGIN));
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        spacer.setMinSize(10, 1);
+        // Don't let the cell ask for more width than the list has: the text wraps instead
+        setPrefWidth(0);
+        getStyleClass().add("transcriptCell");
+    }
+
+    @Override
+    protected void updateItem(TranscriptEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+
+        TextMessage msg = entry.getMessage();
+        messageText.setText(msg.getText());
+        ObservableList<String> textStyle = messageText.getStyleClass();
+        textStyle.setAll("message", entry.getKind().getStyleClass());
+
+        ObservableList<String> senderStyle = messageSender.getStyleClass();
+        if (msg.isPrivate()) {
+            messageSender.setText("Private from " + msg.getSender() + ":");
+            if (!senderStyle.contains("private")) {
+                senderStyle.add("private");
+            }
+        } else {
+            messageSender.setText(msg.getSender() + ":");
+            senderStyle.remove("private");
+        }
+
+        if (entry.isNotice()) {
+            // Warning/info: just the text
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(messageContent);
+        } else if (entry.isLocal()) {
+            // Add empty space first (left), then the message (right)
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(spacer, messageContent);
+        } else {
+            // Add message first (left), then empty space (right)
+            messageContent.getChildren().setAll(messageSender, messageText);
+            message.getChildren().setAll(messageContent, spacer);
+        }
+        setGraphic(message);
+    }
+}
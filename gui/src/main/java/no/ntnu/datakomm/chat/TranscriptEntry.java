@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * One row of the chat transcript in the GUI: a message and the way it must be displayed. The GUI
+ * keeps only these lightweight entries for the whole transcript; the visual nodes are created for
+ * the visible rows only (see {@link TranscriptCell}).
+ */
+public class TranscriptEntry {
+
+    /**
+     * How the entry is displayed. The names of the CSS style classes match the ones in style.css.
+     */
+    public enum Kind {
+        /** Message sent by us */
+        SENT("sentMessage"),
+        /** Message we tried to send without an active connection */
+        FAILED("failedMessage"),
+        /** Message received from another user */
+        RECEIVED("otherMessage"),
+        /** Error reported to the user */
+        WARNING("warning"),
+        /** Information for the user */
+        INFO("info");
+
+        private final String styleClass;
+
+        Kind(String styleClass) {
+            this.styleClass = styleClass;
+        }
+
+        /**
+         * @return The CSS style class for the message text
+         */
+        public String getStyleClass() {
+            return styleClass;
+        }
+    }
+
+    private final TextMessage message;
+    private final Kind kind;
+
+    /**
+     * @param message The message
+     * @param kind    How to display it
+     */
+    public TranscriptEntry(TextMessage message, Kind kind) {
+        this.message = message;
+        this.kind = kind;
+    }
+
+    public TextMessage getMessage() {
+        return message;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return true if the message is shown on the right side, as written by us
+     */
+    public boolean isLocal() {
+        return kind == Kind.SENT || kind == Kind.FAILED;
+    }
+
+    /**
+     * @return true if the entry is a warning or information, not a chat message
+     */
+    public boolean isNotice() {
+        return kind == Kind.WARNING || kind == Kind.INFO;
+    }
+}
@@ -0,0 +1,216 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.System.Logger.Level;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The queue of updates behind {@link FxUpdateScheduler}, without anything from JavaFX: updates are
+ * posted from any thread and applied by {@link #applyUpdates()} on one thread, in the order they were
+ * posted. A keyed update replaces the one with the same key which is still waiting, and is applied
+ * at its own place in the order.
+ */
+class UpdateQueue {
+    private static final System.Logger LOGGER = System.getLogger(UpdateQueue.class.getName());
+
+    private final Queue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    // The keyed update waiting in the queue for every key
+    private final Map<Object, KeyedUpdate> latestUpdates = new ConcurrentHashMap<>();
+
+    private final long frameBudgetNanos;
+    private final int highWatermark;
+    private final int lowWatermark;
+    // Turning the backpressure on or off and telling the handler is done under this lock, so the
+    // handler gets the changes in the same order as the flag
+    private final Object backpressureLock = new Object();
+    private volatile boolean backpressure = false;
+    private volatile Consumer<Boolean> backpressureHandler = null;
+
+    // Metrics
+    private volatile int maxQueueDepth = 0;
+    private volatile long lastFrameNanos = 0;
+    private volatile long maxFrameNanos = 0;
+    private volatile long appliedCount = 0;
+    private final AtomicInteger mergedCount = new AtomicInteger();
+
+    /**
+     * An update in the queue which is applied only if no newer update with the same key was posted
+     * after it.
+     */
+    private class KeyedUpdate implements Runnable {
+        private final Object key;
+        private final Runnable update;
+
+        KeyedUpdate(Object key, Runnable update) {
+            this.key = key;
+            this.update = update;
+        }
+
+        /**
+         * @return true if this is still the latest update for its key. It is not any more after
+         * that: the next update with the key gets a new place in the queue.
+         */
+        boolean takeLatest() {
+            return latestUpdates.remove(key, this);
+        }
+
+        @Override
+        public void run() {
+            update.run();
+        }
+    }
+
+    /**
+     * @param frameBudgetNanos Maximum time spent on updates in one call of applyUpdates(), in
+     *                         nanoseconds
+     * @param highWatermark    Queue depth at which the backpressure is turned on
+     * @param lowWatermark     Queue depth at which the backpressure is turned off
+     */
+    UpdateQueue(long frameBudgetNanos, int highWatermark, int lowWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("The low watermark must not be above the high watermark");
+        }
+        this.frameBudgetNanos = frameBudgetNanos;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    void setBackpressureHandler(Consumer<Boolean> handler) {
+        backpressureHandler = handler;
+    }
+
+    /**
+     * Queue an update, after the ones posted before it.
+     *
+     * @param update The update
+     */
+    void post(Runnable update) {
+        updates.add(update);
+        int depth = queueDepth.incrementAndGet();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        if (depth >= highWatermark) {
+            updateBackpressure();
+        }
+    }
+
+    /**
+     * Queue an update, after the ones posted before it. If an update with the same key is still
+     * waiting, it is skipped.
+     *
+     * @param key    Identifies the updates which replace each other
+     * @param update The update
+     */
+    void postLatest(Object key, Runnable update) {
+        KeyedUpdate keyed = new KeyedUpdate(key, update);
+        if (latestUpdates.put(key, keyed) != null) {
+            mergedCount.incrementAndGet();
+        }
+        post(keyed);
+    }
+
+    /**
+     * Apply the queued updates in order until the frame budget is used up.
+     *
+     * @return true if the queue is empty now
+     */
+    boolean applyUpdates() {
+        long start = System.nanoTime();
+        long applied = 0;
+        Runnable update;
+        while (System.nanoTime() - start < frameBudgetNanos && (update = updates.poll()) != null) {
+            int depth = queueDepth.decrementAndGet();
+            if (!(update instanceof KeyedUpdate) || ((KeyedUpdate) update).takeLatest()) {
+                runSafely(update);
+                applied++;
+            }
+            if (depth <= lowWatermark) {
+                // Not skipped when the flag looks off: a producer may be turning it on right now,
+                // from a depth which is gone already. This thread must see that and undo it.
+                updateBackpressure();
+            }
+        }
+        long frameTime = System.nanoTime() - start;
+        lastFrameNanos = frameTime;
+        if (frameTime > maxFrameNanos) {
+            maxFrameNanos = frameTime;
+        }
+        appliedCount += applied;
+        return updates.isEmpty();
+    }
+
+    /**
+     * @return true if no update is waiting
+     */
+    boolean isEmpty() {
+        return updates.isEmpty();
+    }
+
+    private static void runSafely(Runnable update) {
+        try {
+            update.run();
+        } catch (RuntimeException e) {
+            // One broken update must not stop the others
+            LOGGER.log(Level.ERROR, "GUI update failed", e);
+        }
+    }
+
+    /**
+     * Turn the backpressure on or off according to the current queue depth, and tell the handler.
+     * The depth is checked again under the lock: the producers and the applying thread may have
+     * changed it since the caller looked at it. Every change of the depth past a watermark is
+     * followed by a call of this, so the last call sees the final depth.
+     */
+    private void updateBackpressure() {
+        synchronized (backpressureLock) {
+            int depth = queueDepth.get();
+            boolean on;
+            if (!backpressure && depth >= highWatermark) {
+                on = true;
+            } else if (backpressure && depth <= lowWatermark) {
+                on = false;
+            } else {
+                return;
+            }
+            backpressure = on;
+            Consumer<Boolean> handler = backpressureHandler;
+            if (handler != null) {
+                handler.accept(on);
+            }
+        }
+    }
+
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    long getMaxFrameNanos() {
+        return maxFrameNanos;
+    }
+
+    long getAppliedCount() {
+        return appliedCount;
+    }
+
+    long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    boolean isBackpressureOn() {
+        return backpressure;
+    }
+}
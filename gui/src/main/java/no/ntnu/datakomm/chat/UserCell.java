@@ -0,0 +1,31 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.scene.control.ListCell;
+
+import java.util.function.Consumer;
+
+/**
+ * A row of the user list. Like the transcript, the user list creates cells only for the visible
+ * rows, and the click handler is set once per cell instead of once per user.
+ */
+public class UserCell extends ListCell<String> {
+
+    /**
+     * @param onClick Called with the name of the user when the row is clicked
+     */
+    public UserCell(Consumer<String> onClick) {
+        getStyleClass().add("user");
+        setOnMouseClicked(event -> {
+            String user = getItem();
+            if (user != null) {
+                onClick.accept(user);
+            }
+        });
+    }
+
+    @Override
+    protected void updateItem(String user, boolean empty) {
+        super.updateItem(user, empty);
+        setText(empty ? null : user);
+    }
+}
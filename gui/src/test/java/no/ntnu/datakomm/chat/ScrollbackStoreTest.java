@@ -0,0 +1,209 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScrollbackStoreTest {
+
+    /**
+     * The resident window must stay within the count limit, and the evicted messages must be paged
+     * back in from disk unchanged and in the right order.
+     *
+     * @throws IOException When the spill segment can't be used
+     */
+    @Test
+    public void testSpillAndPageIn() throws IOException {
+        final int MESSAGES = 5000;
+        List<TranscriptEntry> transcript = new ArrayList<>();
+        ScrollbackStore store = new ScrollbackStore(transcript, 300, Long.MAX_VALUE);
+        for (int i = 0; i < MESSAGES; i++) {
+            store.append(new TranscriptEntry(new TextMessage("user" + i, i % 2 == 0, "Message æøå " + i),
+                    TranscriptEntry.Kind.RECEIVED));
+            assertTrue(transcript.size() <= 300);
+        }
+        assertEquals(MESSAGES, store.getTotalCount());
+        assertEquals(MESSAGES - transcript.size(), store.getSpilledCount());
+        assertTrue(store.getSpilledBytes() > 0);
+        assertEquals("Message æøå " + (MESSAGES - 1), transcript.get(transcript.size() - 1).getMessage().getText());
+
+        // Page everything back in, in uneven steps
+        while (store.hasOlder()) {
+            assertTrue(store.loadOlder(77) > 0);
+        }
+        assertEquals(MESSAGES, transcript.size());
+        for (int i = 0; i < MESSAGES; i++) {
+            TextMessage msg = transcript.get(i).getMessage();
+            assertEquals("user" + i, msg.getSender());
+            assertEquals(i % 2 == 0, msg.isPrivate());
+            assertEquals("Message æøå " + i, msg.getText());
+        }
+
+        // The paged-in messages are already on disk, they are not written again when evicted
+        store.releaseOlder();
+        store.append(new TranscriptEntry(new TextMessage("me", false, "new"), TranscriptEntry.Kind.SENT));
+        assertTrue(transcript.size() <= 300);
+        assertEquals(store.getTotalCount() - transcript.size(), store.getSpilledCount());
+        store.close();
+    }
+
+    /**
+     * The byte limit must evict messages even when the count limit is not reached.
+     *
+     * @throws IOException When the spill segment can't be used
+     */
+    @Test
+    public void testByteLimit() throws IOException {
+        List<TranscriptEntry> transcript = new ArrayList<>();
+        ScrollbackStore store = new ScrollbackStore(transcript, 100000, 64 * 1024);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append('x');
+        }
+        for (int i = 0; i < 1000; i++) {
+            store.append(new TranscriptEntry(new TextMessage("u", false, text.toString()),
+                    TranscriptEntry.Kind.RECEIVED));
+            assertTrue(store.getResidentBytes() <= 64 * 1024);
+        }
+        assertTrue(store.getSpilledCount() > 0);
+        assertEquals(store.getResidentCount(), transcript.size());
+        store.close();
+    }
+
+    /**
+     * History entries put in front of the transcript must be spilled and paged in like the others.
+     *
+     * @throws IOException When the spill segment can't be used
+     */
+    @Test
+    public void testPrependOlder() throws IOException {
+        List<TranscriptEntry> transcript = new ArrayList<>();
+        ScrollbackStore store = new ScrollbackStore(transcript, 100, Long.MAX_VALUE);
+        for (int i = 100; i < 150; i++) {
+            store.append(new TranscriptEntry(new TextMessage("u", false, "m" + i), TranscriptEntry.Kind.RECEIVED));
+        }
+        List<TranscriptEntry> older = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            older.add(new TranscriptEntry(new TextMessage("u", false, "m" + i), TranscriptEntry.Kind.SENT));
+        }
+        store.prependOlder(older);
+        assertEquals(150, store.getTotalCount());
+        assertEquals("m0", transcript.get(0).getMessage().getText());
+
+        // Over the limit now: once released, the next message spills the oldest ones, which can be
+        // paged in again
+        store.releaseOlder();
+        store.append(new TranscriptEntry(new TextMessage("u", false, "m150"), TranscriptEntry.Kind.RECEIVED));
+        assertTrue(store.hasOlder());
+        while (store.hasOlder()) {
+            store.loadOlder(30);
+        }
+        assertEquals(151, transcript.size());
+        for (int i = 0; i <= 150; i++) {
+            assertEquals("m" + i, transcript.get(i).getMessage().getText());
+        }
+        assertEquals(TranscriptEntry.Kind.SENT, transcript.get(99).getKind());
+        store.close();
+    }
+
+    /**
+     * Messages paged in by loadOlder() must stay in memory when new messages arrive while the user
+     * reads them, and be evicted again after releaseOlder(). Far over the limits they are evicted
+     * anyway.
+     *
+     * @throws IOException When the spill segment can't be used
+     */
+    @Test
+    public void testLoadOlderThenAppend() throws IOException {
+        List<TranscriptEntry> transcript = new ArrayList<>();
+        ScrollbackStore store = new ScrollbackStore(transcript, 100, Long.MAX_VALUE);
+        for (int i = 0; i < 300; i++) {
+            store.append(new TranscriptEntry(new TextMessage("u", false, "m" + i), TranscriptEntry.Kind.RECEIVED));
+        }
+        int resident = transcript.size();
+        String firstResident = transcript.get(0).getMessage().getText();
+
+        assertEquals(30, store.loadOlder(30));
+        String firstLoaded = transcript.get(0).getMessage().getText();
+        store.append(new TranscriptEntry(new TextMessage("u", false, "m300"), TranscriptEntry.Kind.RECEIVED));
+        // Both the paged-in page and the newest message are still there
+        assertEquals(firstLoaded, transcript.get(0).getMessage().getText());
+        assertEquals(firstResident, transcript.get(30).getMessage().getText());
+        assertEquals("m300", transcript.get(transcript.size() - 1).getMessage().getText());
+        assertEquals(resident + 31, transcript.size());
+
+        // Released: the next message evicts from the front again
+        store.releaseOlder();
+        store.append(new TranscriptEntry(new TextMessage("u", false, "m301"), TranscriptEntry.Kind.RECEIVED));
+        assertTrue(transcript.size() <= 100);
+        assertEquals("m301", transcript.get(transcript.size() - 1).getMessage().getText());
+        assertEquals(store.getTotalCount() - transcript.size(), store.getSpilledCount());
+
+        // Pinned again, messages keep arriving: the window may grow up to twice the limit
+        store.loadOlder(50);
+        for (int i = 302; i < 600; i++) {
+            store.append(new TranscriptEntry(new TextMessage("u", false, "m" + i), TranscriptEntry.Kind.RECEIVED));
+            assertTrue(transcript.size() <= 200);
+        }
+        assertEquals("m599", transcript.get(transcript.size() - 1).getMessage().getText());
+
+        // Everything can still be paged in, in order
+        store.releaseOlder();
+        while (store.hasOlder()) {
+            store.loadOlder(64);
+        }
+        assertEquals(600, transcript.size());
+        for (int i = 0; i < 600; i++) {
+            assertEquals("m" + i, transcript.get(i).getMessage().getText());
+        }
+        store.close();
+    }
+
+    /**
+     * When the spill segment can't be written, the evicted messages are lost but the store must stay
+     * consistent: nothing older is offered, and once the segment works again the messages spilled
+     * after the loss are paged in correctly.
+     *
+     * @throws IOException When the spill segment can't be used
+     */
+    @Test
+    public void testSpillFailure() throws IOException {
+        Path directory = Files.createTempDirectory("scrollback-test");
+        Path missing = directory.resolve("missing");
+        List<TranscriptEntry> transcript = new ArrayList<>();
+        ScrollbackStore store = new ScrollbackStore(transcript, 100, Long.MAX_VALUE, missing);
+        for (int i = 0; i < 300; i++) {
+            store.append(new TranscriptEntry(new TextMessage("u", false, "m" + i), TranscriptEntry.Kind.RECEIVED));
+            assertTrue(transcript.size() <= 100);
+        }
+        assertFalse(store.hasOlder());
+        assertEquals(0, store.loadOlder(50));
+        long lost = store.getLostCount();
+        assertEquals(300 - transcript.size(), lost);
+        assertEquals("m" + lost, transcript.get(0).getMessage().getText());
+
+        // The directory exists now, the next spills work
+        Files.createDirectory(missing);
+        for (int i = 300; i < 600; i++) {
+            store.append(new TranscriptEntry(new TextMessage("u", false, "m" + i), TranscriptEntry.Kind.RECEIVED));
+        }
+        assertEquals(lost, store.getLostCount());
+        assertTrue(store.hasOlder());
+        while (store.hasOlder()) {
+            assertTrue(store.loadOlder(64) > 0);
+        }
+        assertEquals(600 - lost, transcript.size());
+        for (int i = 0; i < transcript.size(); i++) {
+            assertEquals("m" + (lost + i), transcript.get(i).getMessage().getText());
+        }
+        store.close();
+        Files.delete(missing);
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,163 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UpdateQueueTest {
+    private static final Object USER_LIST = new Object();
+    private static final Object STATUS = new Object();
+
+    private final List<String> applied = new ArrayList<>();
+
+    private Runnable update(String name) {
+        return () -> applied.add(name);
+    }
+
+    /**
+     * Keyed and ordinary updates must be applied in the order they were posted: a keyed update does
+     * not overtake the ones posted before it.
+     */
+    @Test
+    public void testOrder() {
+        UpdateQueue queue = new UpdateQueue(Long.MAX_VALUE, 100, 10);
+        queue.post(update("msg 1"));
+        queue.postLatest(USER_LIST, update("users"));
+        queue.post(update("msg 2"));
+        queue.postLatest(STATUS, update("status"));
+        assertEquals(4, queue.getQueueDepth());
+
+        assertTrue(queue.applyUpdates());
+        assertEquals(Arrays.asList("msg 1", "users", "msg 2", "status"), applied);
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(4, queue.getAppliedCount());
+    }
+
+    /**
+     * Of the keyed updates waiting with the same key only the latest one must be applied, at the
+     * place where it was posted. Other keys are not affected.
+     */
+    @Test
+    public void testKeyedCoalescing() {
+        UpdateQueue queue = new UpdateQueue(Long.MAX_VALUE, 100, 10);
+        queue.postLatest(USER_LIST, update("users 1"));
+        queue.post(update("msg 1"));
+        queue.postLatest(USER_LIST, update("users 2"));
+        queue.postLatest(STATUS, update("status"));
+        queue.postLatest(USER_LIST, update("users 3"));
+        queue.post(update("msg 2"));
+
+        assertTrue(queue.applyUpdates());
+        assertEquals(Arrays.asList("msg 1", "status", "users 3", "msg 2"), applied);
+        assertEquals(2, queue.getMergedCount());
+        assertEquals(4, queue.getAppliedCount());
+
+        // Once applied, the next update with the key is not merged with it
+        queue.postLatest(USER_LIST, update("users 4"));
+        assertTrue(queue.applyUpdates());
+        assertEquals("users 4", applied.get(applied.size() - 1));
+        assertEquals(2, queue.getMergedCount());
+    }
+
+    /**
+     * The backpressure must be turned on once when the queue reaches the high watermark, and off once
+     * when it is drained to the low watermark; then on again when the queue grows again.
+     */
+    @Test
+    public void testBackpressure() {
+        UpdateQueue queue = new UpdateQueue(Long.MAX_VALUE, 5, 2);
+        List<Boolean> signals = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        queue.setBackpressureHandler(on -> {
+            signals.add(on);
+            depths.add(queue.getQueueDepth());
+        });
+
+        for (int i = 0; i < 4; i++) {
+            queue.post(update("msg " + i));
+        }
+        assertTrue(signals.isEmpty());
+        queue.post(update("msg 4"));
+        assertEquals(Collections.singletonList(true), signals);
+        assertTrue(queue.isBackpressureOn());
+        // Already on, not signalled again; keyed updates count too
+        queue.post(update("msg 5"));
+        queue.postLatest(USER_LIST, update("users"));
+        assertEquals(1, signals.size());
+        assertEquals(7, queue.getMaxQueueDepth());
+
+        assertTrue(queue.applyUpdates());
+        assertEquals(Arrays.asList(true, false), signals);
+        assertEquals(Arrays.asList(5, 2), depths);
+        assertFalse(queue.isBackpressureOn());
+        assertEquals(7, applied.size());
+
+        for (int i = 0; i < 5; i++) {
+            queue.post(update("more " + i));
+        }
+        assertEquals(Arrays.asList(true, false, true), signals);
+    }
+
+    /**
+     * The handler must get the changes in the same order as the flag changes, also when the applying
+     * thread drains the queue while a producer is still telling the handler that the backpressure is
+     * on. Otherwise the last thing the handler hears is "on", and reading from the server stays
+     * paused forever.
+     */
+    @Test
+    public void testBackpressureRace() throws Exception {
+        UpdateQueue queue = new UpdateQueue(Long.MAX_VALUE, 2, 0);
+        List<Boolean> signals = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch drained = new CountDownLatch(1);
+        queue.setBackpressureHandler(on -> {
+            if (on) {
+                // Give the applying thread a chance to drain the queue meanwhile
+                try {
+                    drained.await(200, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            signals.add(on);
+        });
+        queue.post(update("msg 1"));
+        Thread producer = new Thread(() -> queue.post(update("msg 2")));
+        producer.start();
+        while (queue.getQueueDepth() < 2) {
+            Thread.yield();
+        }
+        Thread consumer = new Thread(() -> {
+            queue.applyUpdates();
+            drained.countDown();
+        });
+        consumer.start();
+        producer.join(5000);
+        consumer.join(5000);
+
+        assertEquals(Arrays.asList(true, false), signals);
+        assertFalse(queue.isBackpressureOn());
+    }
+
+    /**
+     * An update which throws must not stop the updates after it.
+     */
+    @Test
+    public void testFailingUpdate() {
+        UpdateQueue queue = new UpdateQueue(Long.MAX_VALUE, 100, 10);
+        queue.post(update("msg 1"));
+        queue.post(() -> {
+            throw new IllegalStateException("Broken update");
+        });
+        queue.post(update("msg 2"));
+        assertTrue(queue.applyUpdates());
+        assertEquals(Arrays.asList("msg 1", "msg 2"), applied);
+        assertTrue(queue.isEmpty());
+    }
+}